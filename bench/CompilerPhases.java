@@ -0,0 +1,76 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * The compiler split into phases for the JMH benchmarks in jmh/, each phase starting from the
+ * output of the one before it, which is prepared up front: lexing the source, parsing the
+ * tokens, generating IR from the tree and emitting the unoptimized module.
+ */
+public class CompilerPhases implements AutoCloseable {
+    private final String source;
+    private final List<? extends Token> tokens;
+    private final SysYParser.ProgramContext tree;
+    private final LLVMContextRef context;
+    private final LLVMModuleRef module;
+
+    public CompilerPhases(int functions, int depth, int expressionLength, int arraySize){
+        source = SyntheticProgram.generate(functions, depth, expressionLength, arraySize);
+        tokens = lex();
+        tree = parse();
+
+        context = LLVMContextCreate();
+        try (LLVMVisitor visitor = new LLVMVisitor(context, false)) {
+            visitor.visit(tree);
+            module = visitor.getModule();
+        }
+        Emitter.configureTarget(module);
+    }
+
+    public List<Token> lex(){
+        CommonTokenStream stream = new CommonTokenStream(new SysYLexer(CharStreams.fromString(source)));
+        stream.fill();
+        return stream.getTokens();
+    }
+
+    public SysYParser.ProgramContext parse(){
+        SysYParser parser = new SysYParser(new CommonTokenStream(new ListTokenSource(tokens)));
+        parser.removeErrorListeners();
+        return parser.program();
+    }
+
+    // includes disposing the module, which is small next to building it
+    public long codegen(){
+        LLVMModuleRef generated;
+        try (LLVMVisitor visitor = new LLVMVisitor(context, false)) {
+            visitor.visit(tree);
+            generated = visitor.getModule();
+        }
+        long blocks = 0;
+        for(LLVMValueRef function = LLVMGetFirstFunction(generated);function != null;function = LLVMGetNextFunction(function)){
+            blocks += LLVMCountBasicBlocks(function);
+        }
+        LLVMDisposeModule(generated);
+        return blocks;
+    }
+
+    public byte[] emit(String format) throws IOException {
+        return Emitter.emit(module, Emitter.Format.valueOf(format), 0);
+    }
+
+    @Override
+    public void close(){
+        LLVMDisposeModule(module);
+        LLVMContextDispose(context);
+    }
+
+}
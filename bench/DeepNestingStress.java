@@ -0,0 +1,131 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Compiles programs whose operator chains and else-if ladders are tens of thousands long, on
+ * the default thread stack, in the plain, --ssa and --mir codegen modes, and runs them to check
+ * the results, with --mir also on the interpreter. The time per length should grow linearly;
+ * a StackOverflowError anywhere fails the run.
+ * <pre>
+ *   java DeepNestingStress [max-length] [--no-run]
+ * </pre>
+ */
+public class DeepNestingStress {
+
+    private interface Shape {
+        String generate(int length);
+    }
+
+    private static class Case {
+        final String name;
+        final Shape shape;
+        final int expected;
+
+        Case(String name, Shape shape, int expected){
+            this.name = name;
+            this.shape = shape;
+            this.expected = expected;
+        }
+    }
+
+    private static final Case[] CASES = {
+            new Case("plus", n -> main("int a = 1;\n    return " + chain("a", " + ", n) + ";"), -1),
+            new Case("mul", n -> main("int a = 1;\n    return " + chain("a", " * ", n) + " + 41;"), 42),
+            new Case("and", n -> main("int a = 1;\n    if(" + chain("a < 2", " && ", n) + ") return 43;\n    return 0;"), 43),
+            new Case("or", n -> main("int a = 1;\n    if(" + chain("a > 5", " || ", n) + " || a == 1) return 44;\n    return 0;"), 44),
+            new Case("compare", n -> main("int a = 2;\n    if(" + chain("a", " < ", n) + ") return 45;\n    return 0;"), 45),
+            new Case("ladder", DeepNestingStress::ladder, 7),
+    };
+
+    public static void main(String[] args) throws IOException {
+        int max = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        boolean run = !(args.length > 1 && args[1].equals("--no-run"));
+        int[] lengths = {max / 4, max / 2, max};
+        boolean failed = false;
+
+        LLVMContextRef context = LLVMContextCreate();
+        for(Case c: CASES){
+            for(String mode: new String[]{"", "--ssa", "--mir"}){
+                Options options = mode.isEmpty() ? Options.parse(new String[]{"deep.sysy", "-"})
+                        : Options.parse(new String[]{"deep.sysy", "-", mode});
+                StringBuilder line = new StringBuilder(String.format("%-8s %-6s", c.name,
+                        mode.isEmpty() ? "plain" : mode.substring(2)));
+                for(int length: lengths){
+                    String source = c.shape.generate(length);
+                    long start = System.nanoTime();
+                    SysYParser.ProgramContext tree;
+                    LLVMModuleRef module;
+                    try {
+                        tree = Compiler.parse(CharStreams.fromString(source), "deep");
+                        module = Compiler.compile(tree, options, context, new PhaseTimer("deep"));
+                    } catch (StackOverflowError e) {
+                        line.append(String.format(" n=%d overflow", length));
+                        failed = true;
+                        break;
+                    }
+                    long millis = (System.nanoTime() - start) / 1000000;
+                    line.append(String.format(" n=%d %dms", length, millis));
+
+                    if(run && length == max){
+                        int expected = c.expected < 0 ? length & 0xff : c.expected;
+                        int exitCode = JitRunner.run(module, 0).exitCode;
+                        line.append(exitCode == expected ? " ok" : " got " + exitCode + " expected " + expected);
+                        failed |= exitCode != expected;
+                        if(options.mir){
+                            // the interpreter runs the same MIR, as the x86 backend lowers it
+                            int interpreted = interpret(tree);
+                            line.append(interpreted == expected ? " interpreted ok"
+                                    : " interpreted " + interpreted + " expected " + expected);
+                            failed |= interpreted != expected;
+                        }
+                    } else {
+                        LLVMDisposeModule(module);
+                    }
+                }
+                System.out.println(line);
+            }
+        }
+        LLVMContextDispose(context);
+        if(failed){
+            System.exit(1);
+        }
+    }
+
+    private static int interpret(SysYParser.ProgramContext tree) throws IOException {
+        try {
+            Bytecode bytecode = Compiler.bytecode(tree, new PhaseTimer("deep"));
+            return Interpreter.run(bytecode, InputStream.nullInputStream(), OutputStream.nullOutputStream(), System.err);
+        } catch (StackOverflowError e) {
+            return -1;
+        }
+    }
+
+    private static String main(String body){
+        return "int main(){\n    " + body + "\n}\n";
+    }
+
+    private static String chain(String operand, String operator, int length){
+        StringBuilder text = new StringBuilder(operand);
+        for(int i = 1;i < length;i++){
+            text.append(operator).append(operand);
+        }
+        return text.toString();
+    }
+
+    private static String ladder(int length){
+        StringBuilder text = new StringBuilder("int x = 7;\n    int r = -1;\n    if(x == 0) r = 0;\n");
+        for(int i = 1;i < length;i++){
+            text.append("    else if(x == ").append(i).append(") r = ").append(i).append(";\n");
+        }
+        text.append("    else r = 255;\n    return r;");
+        return main(text.toString());
+    }
+
+}
@@ -0,0 +1,77 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Runs every program on the JIT and on the interpreter and checks that they agree, printing
+ * the time each engine takes from the parse tree to the exit of the program. A program reads
+ * the file next to it with the extension .in as its input, if there is one. Without paths, the
+ * files of tests/ and a few synthetic programs are run. Options such as -O2 or --ssa choose
+ * the code generation of the JIT.
+ * <pre>
+ *   java EngineDifferential [options] [file-or-directory...]
+ * </pre>
+ */
+public class EngineDifferential {
+
+    public static void main(String[] args) throws IOException {
+        List<String> flags = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        for(String arg: args){
+            if(arg.startsWith("-")){
+                flags.add(arg);
+            } else if(Files.isDirectory(Paths.get(arg))){
+                try (Stream<Path> walk = Files.walk(Paths.get(arg))) {
+                    files.addAll(walk.filter(p -> p.toString().endsWith(".sysy")).sorted().collect(Collectors.toList()));
+                }
+            } else files.add(Paths.get(arg));
+        }
+        flags.add("differential.sysy");
+        flags.add("--differential");
+        Options options = Options.parse(flags.toArray(new String[0]));
+
+        List<String[]> programs = new ArrayList<>();
+        if(files.isEmpty()){
+            try (Stream<Path> walk = Files.walk(Paths.get("tests"))) {
+                files.addAll(walk.filter(p -> p.toString().endsWith(".sysy")).sorted().collect(Collectors.toList()));
+            }
+            programs.add(new String[]{"synthetic-small", SyntheticProgram.generate(20, 2, 8, 16)});
+            programs.add(new String[]{"synthetic-deep", SyntheticProgram.generate(40, 6, 12, 64)});
+            programs.add(new String[]{"synthetic-wide", SyntheticProgram.generate(400, 3, 16, 256)});
+        }
+        for(Path file: files){
+            programs.add(new String[]{file.toString(), Files.readString(file)});
+        }
+
+        LLVMContextRef context = LLVMContextCreate();
+        Compiler.warmUp();
+        boolean failed = false;
+        for(String[] program: programs){
+            Path inputFile = Paths.get(program[0].replaceAll("\\.sysy$", ".in"));
+            byte[] input = program[0].endsWith(".sysy") && Files.isRegularFile(inputFile)
+                    ? Files.readAllBytes(inputFile) : new byte[0];
+            SysYParser.ProgramContext tree = Compiler.parse(CharStreams.fromString(program[1]), program[0]);
+            Differential result = Differential.run(tree, options, context, input, new PhaseTimer(program[0]));
+            String mismatch = result.mismatch();
+            System.out.printf("%-32s exit=%-3s jit_ms=%.1f interpreter_ms=%.1f %s%n", program[0],
+                    result.compiled == null ? "-" : String.valueOf(result.compiled.exitCode), result.compiledNanos / 1e6, result.interpretedNanos / 1e6,
+                    mismatch == null ? "ok" : "DIFFERS: " + mismatch);
+            failed |= mismatch != null;
+        }
+        LLVMContextDispose(context);
+        if(failed){
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+import org.antlr.v4.runtime.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lexing throughput of SysYLexer against FastLexer on a generated multi-megabyte file, after
+ * checking that both produce the same tokens and errors on it and on a set of corner cases.
+ * <pre>
+ *   java LexerBenchmark [megabytes] [iterations]
+ * </pre>
+ */
+public class LexerBenchmark {
+
+    private static final String[] CORNER_CASES = {
+            "0x1F 0X0 0xabcDEF 017 089 0 00 01238 123abc 0x 0xg 0X",
+            "int int1 _a while1 continue constant voidx returnreturn",
+            "a&&b a||b &x |\n& |",
+            "@ # $ \\ \f ~ ` ? : . \" '",
+            "== = != ! <= < >= > =>= !== <<=",
+            "// comment\nx /* multi\n line */ y /**/ z /*/ still */ w",
+            "/* \u4e2d\u6587\u6ce8\u91ca */ x = 1; // \u6ce8\u91ca\n y",
+            "x // no newline at the end",
+            "x /* unterminated\n comment",
+            "a/b/ /c//",
+            "\t\r\n  \r\n",
+            "",
+            "\u00e9 x",
+    };
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        for(String text: CORNER_CASES){
+            compare(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Path file = Files.createTempFile("lexer", ".sysy");
+        try {
+            Files.write(file, generate(megabytes << 20).getBytes(StandardCharsets.UTF_8));
+            compare(Files.readAllBytes(file));
+            long bytes = Files.size(file);
+
+            long antlr = Long.MAX_VALUE, packed = Long.MAX_VALUE, tokens = Long.MAX_VALUE;
+            int count = 0;
+            for(int i = 0;i < iterations;i++){
+                long start = System.nanoTime();
+                CommonTokenStream stream = new CommonTokenStream(new SysYLexer(CharStreams.fromPath(file)));
+                stream.fill();
+                count = stream.size();
+                antlr = Math.min(antlr, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                FastLexer.map(file).scan();
+                packed = Math.min(packed, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                new CommonTokenStream(FastLexer.map(file)).fill();
+                tokens = Math.min(tokens, System.nanoTime() - start);
+            }
+            report("antlr", bytes, count, antlr);
+            report("fast-packed", bytes, count, packed);
+            report("fast-tokens", bytes, count, tokens);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void report(String lexer, long bytes, int tokens, long nanos){
+        System.out.printf("lexer=%s bytes=%d tokens=%d ms=%.2f mb_per_sec=%.1f tokens_per_sec=%.0f%n",
+                lexer, bytes, tokens, nanos / 1e6, bytes / (nanos / 1e9) / (1 << 20), tokens / (nanos / 1e9));
+    }
+
+    private static String generate(int size){
+        StringBuilder text = new StringBuilder();
+        String program = SyntheticProgram.generate(50, 3, 12, 64).replace("const int N", "// generated\nconst int N");
+        for(int i = 0;text.length() < size;i++){
+            text.append("/* part ").append(i).append(", \u4e2d\u6587\u6ce8\u91ca */\n");
+            text.append("const int H").append(i).append(" = 0x").append(Integer.toHexString(i))
+                    .append(", O").append(i).append(" = 0").append(Integer.toOctalString(i + 1)).append(";\n");
+            text.append(program.replaceAll("\\bf([0-9]+)\\b", "f$1_" + i).replace("int main()", "int main" + i + "()")
+                    .replace("N", "N" + i).replace("g[", "g" + i + "["));
+        }
+        return text.toString();
+    }
+
+    private static void compare(byte[] source){
+        compare(tokens(new SysYLexer(CharStreams.fromString(new String(source, StandardCharsets.UTF_8)))),
+                tokens(new FastLexer(ByteBuffer.wrap(source), "bench")));
+    }
+
+    private static void compare(List<String> expected, List<String> actual){
+        for(int i = 0;i < Math.max(expected.size(), actual.size());i++){
+            String want = i < expected.size() ? expected.get(i) : "nothing";
+            String got = i < actual.size() ? actual.get(i) : "nothing";
+            if(!want.equals(got)){
+                throw new IllegalStateException("entry " + i + ": SysYLexer gave " + want + ", FastLexer gave " + got);
+            }
+        }
+    }
+
+    // all tokens followed by all errors: FastLexer reports its errors before handing out tokens
+    private static <L extends Recognizer<?, ?> & TokenSource> List<String> tokens(L lexer){
+        List<String> tokens = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(recorder(errors));
+        for(Token token = lexer.nextToken();;token = lexer.nextToken()){
+            tokens.add(describe(token));
+            if(token.getType() == Token.EOF){
+                break;
+            }
+        }
+        tokens.addAll(errors);
+        return tokens;
+    }
+
+    private static BaseErrorListener recorder(List<String> out){
+        return new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                out.add("error " + line + ":" + charPositionInLine + " " + msg);
+            }
+        };
+    }
+
+    private static String describe(Token token){
+        return token.getType() + " '" + token.getText() + "' " + token.getLine() + ":" + token.getCharPositionInLine()
+                + " [" + token.getStartIndex() + ".." + token.getStopIndex() + "]";
+    }
+
+}
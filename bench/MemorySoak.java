@@ -0,0 +1,76 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Compiles thousands of programs in one JVM and one context, the way a --batch worker or a
+ * server connection does, and checks that the resident set stays flat. Every tenth program
+ * fails halfway through codegen, so the cleanup on errors is soaked too. The first tenth of
+ * the runs is warmup; RSS growth after that beyond the limit fails the run. javacpp_kb is the
+ * native memory javacpp allocated and has not freed yet.
+ * <pre>
+ *   java -Xms256m -Xmx256m -XX:+AlwaysPreTouch MemorySoak [programs] [limit-mb]
+ * </pre>
+ */
+public class MemorySoak {
+
+    public static void main(String[] args) throws IOException {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long limit = (args.length > 1 ? Long.parseLong(args[1]) : 16) << 20;
+        Options options = Options.parse(new String[]{"soak.sysy", "-", "-O1"});
+        String failing = "int main(){\n    int n = 3;\n    int a[n];\n    return 0;\n}\n";
+
+        LLVMContextRef context = LLVMContextCreate();
+        long warm = 0;
+        long peak = 0;
+        int failed = 0;
+        long start = System.nanoTime();
+        for(int i = 0;i < programs;i++){
+            String source = i % 10 == 9 ? failing : SyntheticProgram.generate(2 + i % 8, 1 + i % 3, 4 + i % 16, 8 + i % 32);
+            try {
+                SysYParser.ProgramContext tree = Compiler.parse(CharStreams.fromString(source), "soak");
+                LLVMModuleRef module = Compiler.compile(tree, options, context, new PhaseTimer("soak"));
+                Emitter.emit(module, Emitter.Format.OBJ, options.optLevel);
+                LLVMDisposeModule(module);
+            } catch (CompileException e) {
+                failed++;
+            }
+
+            if((i + 1) % Math.max(programs / 10, 1) == 0){
+                long rss = rss();
+                if(warm == 0){
+                    warm = rss;
+                }
+                peak = Math.max(peak, rss);
+                System.out.printf("programs=%d rss_mb=%.1f javacpp_kb=%d%n", i + 1, rss / 1048576.0,
+                        Pointer.totalBytes() >> 10);
+            }
+        }
+        LLVMContextDispose(context);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("programs=%d failed=%d seconds=%.1f growth_mb=%.1f%n",
+                programs, failed, seconds, (peak - warm) / 1048576.0);
+        if(peak - warm > limit){
+            System.out.println("resident set grew by more than " + (limit >> 20) + " MB");
+            System.exit(1);
+        }
+    }
+
+    private static long rss() throws IOException {
+        for(String line: Files.readAllLines(Paths.get("/proc/self/status"))){
+            if(line.startsWith("VmRSS:")){
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        throw new IOException("no VmRSS in /proc/self/status");
+    }
+
+}
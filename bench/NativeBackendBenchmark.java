@@ -0,0 +1,121 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Builds a few compute kernels into executables twice, once with the x86-64 backend and once
+ * through LLVM at -O1 with an object file linked by cc, checks that both agree and prints the
+ * compile time and the best run time of each out of a few runs.
+ * <pre>
+ *   java NativeBackendBenchmark [runs]
+ * </pre>
+ */
+public class NativeBackendBenchmark {
+
+    private static final String[][] KERNELS = {
+            {"matmul", "int a[200][200], b[200][200], c[200][200];\n"
+                    + "int main(){\n"
+                    + "    int n = 200, i = 0;\n"
+                    + "    while(i < n){ int j = 0; while(j < n){ a[i][j] = i + j; b[i][j] = i - j; j = j + 1; } i = i + 1; }\n"
+                    + "    int r = 0;\n"
+                    + "    while(r < 5){\n"
+                    + "        i = 0;\n"
+                    + "        while(i < n){ int j = 0;\n"
+                    + "            while(j < n){ int k = 0, s = 0; while(k < n){ s = s + a[i][k] * b[k][j]; k = k + 1; } c[i][j] = s; j = j + 1; }\n"
+                    + "            i = i + 1; }\n"
+                    + "        r = r + 1;\n"
+                    + "    }\n"
+                    + "    putint(c[17][42]); putch(10);\n"
+                    + "    return c[199][199] % 256;\n"
+                    + "}\n"},
+            {"fib", "int fib(int n){ if(n < 2) return n; return fib(n - 1) + fib(n - 2); }\n"
+                    + "int main(){ putint(fib(32)); putch(10); return 0; }\n"},
+            {"sieve", "int composite[4000000];\n"
+                    + "int main(){\n"
+                    + "    int n = 4000000, i = 2, count = 0;\n"
+                    + "    while(i < n){\n"
+                    + "        if(!composite[i]){ count = count + 1; int j = i + i; while(j < n){ composite[j] = 1; j = j + i; } }\n"
+                    + "        i = i + 1;\n"
+                    + "    }\n"
+                    + "    putint(count); putch(10);\n"
+                    + "    return count % 256;\n"
+                    + "}\n"},
+            {"collatz", "int steps(int n){ int s = 0; while(n != 1){ if(n % 2 == 0) n = n / 2; else n = 3 * n + 1; s = s + 1; } return s; }\n"
+                    + "int main(){ int i = 1, best = 0; while(i < 100000){ int s = steps(i); if(s > best) best = s; i = i + 1; }\n"
+                    + "    putint(best); putch(10); return best % 256; }\n"},
+    };
+
+    public static void main(String[] args) throws IOException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Path directory = Files.createTempDirectory("native-bench");
+        LLVMContextRef context = LLVMContextCreate();
+        Options llvm = Options.parse(new String[]{"kernel.sysy", "kernel.o", "-O1"});
+        boolean failed = false;
+        for(String[] kernel: KERNELS){
+            Path assembly = directory.resolve(kernel[0] + ".s");
+            Path object = directory.resolve(kernel[0] + ".o");
+            Path x86 = directory.resolve(kernel[0] + "-x86");
+            Path o1 = directory.resolve(kernel[0] + "-O1");
+
+            long start = System.nanoTime();
+            SysYParser.ProgramContext tree = Compiler.parse(CharStreams.fromString(kernel[1]), kernel[0]);
+            Files.writeString(assembly, Compiler.assembly(tree, new PhaseTimer(kernel[0])));
+            long x86Compile = System.nanoTime() - start;
+            Assembler.link(assembly.toString(), x86.toString());
+
+            start = System.nanoTime();
+            tree = Compiler.parse(CharStreams.fromString(kernel[1]), kernel[0]);
+            LLVMModuleRef module = Compiler.compile(tree, llvm, context, new PhaseTimer(kernel[0]));
+            Emitter.emit(module, Emitter.Format.OBJ, llvm.optLevel, object.toString());
+            long o1Compile = System.nanoTime() - start;
+            LLVMDisposeModule(module);
+            Assembler.link(object.toString(), o1.toString());
+
+            String[] x86Result = best(x86, runs);
+            String[] o1Result = best(o1, runs);
+            boolean agree = x86Result[1].equals(o1Result[1]);
+            System.out.printf("%-8s compile_ms x86=%.1f O1=%.1f  run_ms x86=%s O1=%s %s%n", kernel[0],
+                    x86Compile / 1e6, o1Compile / 1e6, x86Result[0], o1Result[0], agree ? "ok" : "DIFFERS");
+            failed |= !agree;
+        }
+        LLVMContextDispose(context);
+        try (Stream<Path> files = Files.list(directory)) {
+            for(Path file: files.collect(Collectors.toList())){
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        if(failed){
+            System.exit(1);
+        }
+    }
+
+    // the best time of the runs in milliseconds, and the exit code and output of the last
+    private static String[] best(Path executable, int runs) throws IOException {
+        long best = Long.MAX_VALUE;
+        String result = null;
+        for(int i = 0;i < runs;i++){
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(executable.toString()).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes());
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            result = exitCode + " " + output.trim();
+        }
+        return new String[]{String.format("%.1f", best / 1e6), result};
+    }
+
+}
@@ -0,0 +1,76 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Compares sequential codegen with parallel per-function codegen on a synthetic program. Two
+ * parallel runs must print the same module, and it must match the sequential one up to
+ * comments: the bitcode round trip does not keep use-list order, which only shows in the
+ * "; preds =" lists.
+ * <pre>
+ *   java ParallelCodegenBenchmark [functions] [iterations]
+ * </pre>
+ */
+public class ParallelCodegenBenchmark {
+
+    public static void main(String[] args){
+        int functions = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String source = SyntheticProgram.generate(functions, 3, 12, 64);
+        SysYParser.ProgramContext tree = Compiler.parse(CharStreams.fromString(source), "synthetic");
+
+        String parallelText = print(tree, true);
+        if(!parallelText.equals(print(tree, true))){
+            throw new IllegalStateException("parallel codegen is not deterministic");
+        }
+        if(!stripComments(parallelText).equals(stripComments(print(tree, false)))){
+            throw new IllegalStateException("parallel codegen printed a different module");
+        }
+
+        long sequential = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        for(int i = 0;i < iterations;i++){
+            sequential = Math.min(sequential, time(tree, false));
+            parallel = Math.min(parallel, time(tree, true));
+        }
+        System.out.printf("functions=%d threads=%d sequential_ms=%.2f parallel_ms=%.2f speedup=%.2f%n",
+                functions, ForkJoinPool.getCommonPoolParallelism(), sequential / 1e6, parallel / 1e6,
+                (double) sequential / parallel);
+    }
+
+    private static long time(SysYParser.ProgramContext tree, boolean parallel){
+        LLVMContextRef context = LLVMContextCreate();
+        long start = System.nanoTime();
+        LLVMModuleRef module = generate(tree, parallel, context);
+        long elapsed = System.nanoTime() - start;
+        LLVMDisposeModule(module);
+        LLVMContextDispose(context);
+        return elapsed;
+    }
+
+    private static String print(SysYParser.ProgramContext tree, boolean parallel){
+        LLVMContextRef context = LLVMContextCreate();
+        LLVMModuleRef module = generate(tree, parallel, context);
+        BytePointer text = LLVMPrintModuleToString(module);
+        String result = text.getString();
+        LLVMDisposeMessage(text);
+        LLVMDisposeModule(module);
+        LLVMContextDispose(context);
+        return result;
+    }
+
+    private static String stripComments(String text){
+        return text.replaceAll("(?m)\\s*;.*$", "");
+    }
+
+    private static LLVMModuleRef generate(SysYParser.ProgramContext tree, boolean parallel, LLVMContextRef context){
+        return parallel ? Compiler.generateParallel(tree, false, context)
+                : Compiler.generate(tree, false, context, funcDef -> true);
+    }
+
+}
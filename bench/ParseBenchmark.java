@@ -0,0 +1,49 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+/**
+ * Parse time and throughput on large synthetic inputs for plain LL parsing (what Main.parser
+ * does), the two-stage SLL/LL parse of Compiler.parse and the tree-less --syntax-only check.
+ * Lexing is included in every mode.
+ * <pre>
+ *   java ParseBenchmark [iterations]
+ * </pre>
+ */
+public class ParseBenchmark {
+
+    private interface Mode {
+        void parse(String source);
+    }
+
+    public static void main(String[] args){
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String[][] inputs = {
+                {"many-functions", SyntheticProgram.generate(400, 3, 12, 64)},
+                {"long-expressions", SyntheticProgram.generate(20, 2, 2000, 16)},
+                {"deep-nesting", SyntheticProgram.generate(20, 12, 8, 16)},
+        };
+        String[] names = {"ll", "sll-ll", "sll-ll-no-tree"};
+        Mode[] modes = {
+                source -> Main.parser(new SysYLexer(CharStreams.fromString(source))).program(),
+                source -> Compiler.parse(CharStreams.fromString(source), "bench"),
+                source -> Compiler.check(CharStreams.fromString(source), "bench"),
+        };
+
+        for(String[] input: inputs){
+            CommonTokenStream tokens = new CommonTokenStream(new SysYLexer(CharStreams.fromString(input[1])));
+            tokens.fill();
+            int count = tokens.size();
+            for(int m = 0;m < modes.length;m++){
+                long best = Long.MAX_VALUE;
+                for(int i = 0;i < iterations;i++){
+                    long start = System.nanoTime();
+                    modes[m].parse(input[1]);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("input=%s mode=%s tokens=%d parse_ms=%.2f tokens_per_sec=%.0f%n",
+                        input[0], names[m], count, best / 1e6, count / (best / 1e9));
+            }
+        }
+    }
+
+}
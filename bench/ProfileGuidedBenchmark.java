@@ -0,0 +1,109 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Trains each kernel once on an instrumented build, then builds it at -O2 with and without the
+ * profile into executables, checks that they agree and prints the best run time of each out
+ * of a few runs. The kernels branch one way far more often than the other, which is what the
+ * branch weights are for.
+ * <pre>
+ *   java ProfileGuidedBenchmark [runs]
+ * </pre>
+ */
+public class ProfileGuidedBenchmark {
+
+    private static final String[][] KERNELS = {
+            {"skewed", "int rare(int x){ putint(x); putch(10); return x % 7; }\n"
+                    + "int step(int x){ if(x % 1000003 == 0) return rare(x); return (x * 17 + 5) % 65536; }\n"
+                    + "int main(){ int i = 0, s = 0;\n"
+                    + "    while(i < 30000000){ s = s + step(i); if(s > 100000000) s = s - 100000000; i = i + 1; }\n"
+                    + "    putint(s); putch(10); return s % 256; }\n"},
+            {"search", "int a[100000];\n"
+                    + "int find(int n, int x){ int lo = 0, hi = n - 1;\n"
+                    + "    while(lo <= hi){ int mid = (lo + hi) / 2; if(a[mid] == x) return mid; if(a[mid] < x) lo = mid + 1; else hi = mid - 1; }\n"
+                    + "    return -1; }\n"
+                    + "int main(){ int n = 100000, i = 0; while(i < n){ a[i] = i * 3; i = i + 1; }\n"
+                    + "    int found = 0, r = 0; while(r < 3000000){ if(find(n, (r * 7) % 300000) >= 0) found = found + 1; r = r + 1; }\n"
+                    + "    putint(found); putch(10); return found % 256; }\n"},
+            {"ackermann", "int ack(int m, int n){ if(m == 0) return n + 1; if(n == 0) return ack(m - 1, 1); return ack(m - 1, ack(m, n - 1)); }\n"
+                    + "int main(){ int s = 0, i = 0; while(i < 40){ s = s + ack(2, 2000); i = i + 1; } putint(s); putch(10); return s % 256; }\n"},
+    };
+
+    public static void main(String[] args) throws IOException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Path directory = Files.createTempDirectory("pgo-bench");
+        LLVMContextRef context = LLVMContextCreate();
+        boolean failed = false;
+        for(String[] kernel: KERNELS){
+            Path profile = directory.resolve(kernel[0] + ".profile");
+            Options instrumented = Options.parse(new String[]{"kernel.sysy", "--run", "-O2", "--profile-generate=" + profile});
+            JitRunner.run(compile(kernel, instrumented, context), instrumented.optLevel);
+
+            Path plain = build(kernel, Options.parse(new String[]{"kernel.sysy", "kernel.o", "-O2"}), context, directory, "");
+            Path guided = build(kernel, Options.parse(new String[]{"kernel.sysy", "kernel.o", "-O2", "--profile-use=" + profile}),
+                    context, directory, "-pgo");
+            String[] plainResult = best(plain, runs);
+            String[] guidedResult = best(guided, runs);
+            boolean agree = plainResult[1].equals(guidedResult[1]);
+            System.out.printf("%-10s run_ms O2=%s O2+profile=%s %s%n", kernel[0], plainResult[0], guidedResult[0],
+                    agree ? "ok" : "DIFFERS");
+            failed |= !agree;
+        }
+        LLVMContextDispose(context);
+        try (Stream<Path> files = Files.list(directory)) {
+            for(Path file: files.collect(Collectors.toList())){
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        if(failed){
+            System.exit(1);
+        }
+    }
+
+    private static LLVMModuleRef compile(String[] kernel, Options options, LLVMContextRef context){
+        SysYParser.ProgramContext tree = Compiler.parse(CharStreams.fromString(kernel[1]), kernel[0]);
+        return Compiler.compile(tree, options, context, new PhaseTimer(kernel[0]));
+    }
+
+    private static Path build(String[] kernel, Options options, LLVMContextRef context, Path directory, String suffix)
+            throws IOException {
+        Path object = directory.resolve(kernel[0] + suffix + ".o");
+        Path executable = directory.resolve(kernel[0] + suffix);
+        LLVMModuleRef module = compile(kernel, options, context);
+        Emitter.emit(module, Emitter.Format.OBJ, options.optLevel, object.toString());
+        LLVMDisposeModule(module);
+        Assembler.link(object.toString(), executable.toString());
+        return executable;
+    }
+
+    // the best time of the runs in milliseconds, and the exit code and output of the last
+    private static String[] best(Path executable, int runs) throws IOException {
+        long best = Long.MAX_VALUE;
+        String result = null;
+        for(int i = 0;i < runs;i++){
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(executable.toString()).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes());
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            result = exitCode + " " + output.trim();
+        }
+        return new String[]{String.format("%.1f", best / 1e6), result};
+    }
+
+}
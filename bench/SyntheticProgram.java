@@ -0,0 +1,61 @@
+/**
+ * Generates SysY programs that scale along independent axes, for benchmarks:
+ * the number of functions, how deeply their loops and ifs nest, how long their
+ * expressions are and how large the global array initializer is.
+ */
+public class SyntheticProgram {
+
+    public static String generate(int functions, int depth, int expressionLength, int arraySize){
+        StringBuilder text = new StringBuilder();
+        text.append("const int N = ").append(Math.max(arraySize, 1)).append(";\n");
+        text.append("int g[N] = {");
+        for(int i = 0;i < arraySize;i++){
+            text.append(i == 0 ? "" : ", ").append(i * 7 % 13);
+        }
+        text.append("};\n\n");
+
+        for(int f = 0;f < functions;f++){
+            text.append("int f").append(f).append("(int a, int b){\n");
+            text.append("    int s = 0;\n");
+            nest(text, f, depth, expressionLength, 1);
+            if(f > 0){
+                text.append("    s = s + f").append(f - 1).append("(a - 1, s % 7);\n");
+            }
+            text.append("    return s;\n}\n\n");
+        }
+
+        text.append("int main(){\n    return f").append(functions - 1).append("(3, 5) % 256;\n}\n");
+        return text.toString();
+    }
+
+    private static void nest(StringBuilder text, int f, int depth, int expressionLength, int level){
+        String indent = "    ".repeat(level);
+        if(level > depth){
+            text.append(indent).append("s = s + ").append(expression(f, expressionLength)).append(";\n");
+            return;
+        }
+        String i = "i" + level;
+        text.append(indent).append("int ").append(i).append(" = 0;\n");
+        text.append(indent).append("while(").append(i).append(" < ").append(level + 2).append("){\n");
+        text.append(indent).append("    if(").append(i).append(" % 2 == 0 && s < 100000){\n");
+        nest(text, f, depth, expressionLength, level + 2);
+        text.append(indent).append("    } else {\n");
+        text.append(indent).append("        s = s - g[").append(i).append(" % N];\n");
+        text.append(indent).append("    }\n");
+        text.append(indent).append("    ").append(i).append(" = ").append(i).append(" + 1;\n");
+        text.append(indent).append("}\n");
+    }
+
+    private static String expression(int f, int length){
+        StringBuilder exp = new StringBuilder("a");
+        String[] ops = {" + ", " * ", " - ", " + ", " / "};
+        for(int i = 1;i < length;i++){
+            String op = ops[(f + i) % ops.length];
+            exp.append(op);
+            // never divide by a variable, so every program runs to completion
+            exp.append(i % 3 == 0 && !op.equals(" / ") ? "b" : String.valueOf(i % 9 + 1));
+        }
+        return exp.toString();
+    }
+
+}
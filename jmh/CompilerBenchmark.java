@@ -0,0 +1,95 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the lex, parse, codegen and emit phases on synthetic programs scaled by
+ * function count, nesting depth, expression length and global array initializer size.
+ * <p>
+ * JMH does not accept benchmarks in the default package, and a named package cannot refer to
+ * the compiler's classes, so the phases are reached through the default-package
+ * CompilerPhases with method handles looked up once per trial.
+ * <pre>
+ *   make bench-jmh                                       # results in jmh-result.json
+ *   make bench-jmh JMH_ARGS="-p functions=400 codegen"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g"})
+public class CompilerBenchmark {
+
+    @Param({"20", "200"})
+    public int functions;
+
+    @Param({"2", "6"})
+    public int depth;
+
+    @Param({"8", "256"})
+    public int expressionLength;
+
+    @Param({"16", "4096"})
+    public int arraySize;
+
+    private AutoCloseable phases;
+    private MethodHandle lex;
+    private MethodHandle parse;
+    private MethodHandle codegen;
+    private MethodHandle emit;
+
+    // the output format only matters to emit, so it lives in its own state
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({"LL", "BC", "OBJ"})
+        public String format;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Class<?> type = Class.forName("CompilerPhases");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        phases = (AutoCloseable) lookup.findConstructor(type,
+                MethodType.methodType(void.class, int.class, int.class, int.class, int.class))
+                .invoke(functions, depth, expressionLength, arraySize);
+        lex = lookup.findVirtual(type, "lex", MethodType.methodType(List.class)).bindTo(phases);
+        parse = lookup.findVirtual(type, "parse", MethodType.methodType(Class.forName("SysYParser$ProgramContext")))
+                .bindTo(phases);
+        codegen = lookup.findVirtual(type, "codegen", MethodType.methodType(long.class)).bindTo(phases);
+        emit = lookup.findVirtual(type, "emit", MethodType.methodType(byte[].class, String.class)).bindTo(phases);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        phases.close();
+    }
+
+    @Benchmark
+    public Object lex() throws Throwable {
+        return lex.invoke();
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return parse.invoke();
+    }
+
+    @Benchmark
+    public long codegen() throws Throwable {
+        return (long) codegen.invoke();
+    }
+
+    @Benchmark
+    public byte[] emit(Output output) throws Throwable {
+        return (byte[]) emit.invoke(output.format);
+    }
+
+}
@@ -0,0 +1,178 @@
+#include "sylib.h"
+
+#include <stdio.h>
+#include <time.h>
+#include <unistd.h>
+
+/*
+ * Input and output go through one large buffer each and plain read/write calls, so a
+ * program reading a million integers makes a few dozen system calls instead of a million
+ * scanf calls.
+ */
+
+#define BUFFER_SIZE (1 << 16)
+#define MAX_TIMERS 1024
+
+static char input[BUFFER_SIZE];
+static int input_position = 0;
+static int input_length = 0;
+
+static char output[BUFFER_SIZE];
+static int output_length = 0;
+
+static struct {
+    int start_line;
+    int stop_line;
+    long long micros;
+} timers[MAX_TIMERS];
+static int timer_count = 0;
+static struct timespec timer_start;
+
+static void flush_output(void) {
+    int written = 0;
+    while (written < output_length) {
+        ssize_t n = write(1, output + written, output_length - written);
+        if (n <= 0) {
+            break;
+        }
+        written += n;
+    }
+    output_length = 0;
+}
+
+static int next_char(void) {
+    if (input_position == input_length) {
+        /* a prompt written before waiting for input should be visible */
+        flush_output();
+        ssize_t n = read(0, input, BUFFER_SIZE);
+        if (n <= 0) {
+            return -1;
+        }
+        input_position = 0;
+        input_length = n;
+    }
+    return (unsigned char) input[input_position++];
+}
+
+static void put_char(int c) {
+    if (output_length == BUFFER_SIZE) {
+        flush_output();
+    }
+    output[output_length++] = (char) c;
+}
+
+int getch(void) {
+    return next_char();
+}
+
+int getint(void) {
+    int c = next_char();
+    while (c != -1 && c != '-' && (c < '0' || c > '9')) {
+        c = next_char();
+    }
+    int negative = c == '-';
+    if (negative) {
+        c = next_char();
+    }
+    unsigned value = 0;
+    while (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        c = next_char();
+    }
+    /* the character after the number is left for the next read, as scanf("%d") leaves it */
+    if (c != -1) {
+        input_position--;
+    }
+    return (int) (negative ? 0u - value : value);
+}
+
+int getarray(int a[]) {
+    int n = getint();
+    for (int i = 0; i < n; i++) {
+        a[i] = getint();
+    }
+    return n;
+}
+
+void putch(int a) {
+    put_char(a);
+}
+
+void putint(int a) {
+    char digits[12];
+    int count = 0;
+    unsigned value = a < 0 ? 0u - (unsigned) a : (unsigned) a;
+    if (output_length > BUFFER_SIZE - (int) sizeof(digits)) {
+        flush_output();
+    }
+    if (a < 0) {
+        output[output_length++] = '-';
+    }
+    do {
+        digits[count++] = (char) ('0' + value % 10);
+        value /= 10;
+    } while (value != 0);
+    while (count > 0) {
+        output[output_length++] = digits[--count];
+    }
+}
+
+void putarray(int n, int a[]) {
+    putint(n);
+    put_char(':');
+    for (int i = 0; i < n; i++) {
+        put_char(' ');
+        putint(a[i]);
+    }
+    put_char('\n');
+}
+
+void _sysy_starttime(int line) {
+    if (timer_count < MAX_TIMERS) {
+        timers[timer_count].start_line = line;
+    }
+    clock_gettime(CLOCK_MONOTONIC, &timer_start);
+}
+
+void _sysy_stoptime(int line) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    if (timer_count < MAX_TIMERS) {
+        timers[timer_count].stop_line = line;
+        timers[timer_count].micros = (now.tv_sec - timer_start.tv_sec) * 1000000LL
+                + (now.tv_nsec - timer_start.tv_nsec) / 1000;
+        timer_count++;
+    }
+}
+
+static void print_time(long long micros) {
+    fprintf(stderr, "%lldH-%lldM-%lldS-%lldus\n", micros / 3600000000LL, micros / 60000000LL % 60,
+            micros / 1000000 % 60, micros % 1000000);
+}
+
+void _sysy_finish(void) {
+    flush_output();
+    if (timer_count == 0) {
+        return;
+    }
+    long long total = 0;
+    for (int i = 0; i < timer_count; i++) {
+        fprintf(stderr, "Timer@%04d-%04d: ", timers[i].start_line, timers[i].stop_line);
+        print_time(timers[i].micros);
+        total += timers[i].micros;
+    }
+    fprintf(stderr, "TOTAL: ");
+    print_time(total);
+    timer_count = 0;
+}
+
+void _sysy_reset(void) {
+    input_position = 0;
+    input_length = 0;
+    output_length = 0;
+    timer_count = 0;
+}
+
+__attribute__((destructor)) static void finish_at_exit(void) {
+    _sysy_finish();
+}
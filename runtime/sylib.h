@@ -0,0 +1,26 @@
+#ifndef SYSY_SYLIB_H
+#define SYSY_SYLIB_H
+
+/*
+ * The SysY runtime library. The compiler declares these in every program; starttime() and
+ * stoptime() become calls of _sysy_starttime and _sysy_stoptime with the line of the call.
+ */
+
+int getint(void);
+int getch(void);
+int getarray(int a[]);
+void putint(int a);
+void putch(int a);
+void putarray(int n, int a[]);
+
+#define starttime() _sysy_starttime(__LINE__)
+#define stoptime() _sysy_stoptime(__LINE__)
+void _sysy_starttime(int line);
+void _sysy_stoptime(int line);
+
+/* writes out buffered output and reports the timers on stderr, also run at exit */
+void _sysy_finish(void);
+/* forgets buffered input, output and timers before the next program runs in this process */
+void _sysy_reset(void);
+
+#endif
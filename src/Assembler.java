@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Assembles what {@link X86Lowering} writes and links it with the runtime library by running
+ * the system C compiler, cc or the one named by -Dsysy.cc, on the assembly and
+ * runtime/sylib.c, or the source named by -Dsysy.runtime.source.
+ */
+public class Assembler {
+
+    public static String cc(){
+        return System.getProperty("sysy.cc", "cc");
+    }
+
+    public static String runtimeSource(){
+        return System.getProperty("sysy.runtime.source", "runtime/sylib.c");
+    }
+
+    // throws CompileException with what cc printed if it fails
+    public static void link(String assembly, String executable) throws IOException {
+        Process process = new ProcessBuilder(List.of(cc(), "-O2", "-o", executable, assembly, runtimeSource()))
+                .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if(waitFor(process) != 0){
+            throw new CompileException(assembly + ": " + cc() + " failed\n" + output);
+        }
+    }
+
+    // runs the executable on the standard streams of this process and returns its exit code
+    public static int run(String executable) throws IOException {
+        return waitFor(new ProcessBuilder(executable).inheritIO().start());
+    }
+
+    private static int waitFor(Process process){
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Compiles many files on a pool of workers. Each worker owns an LLVM context for its whole
+ * life and builds every module of its files in it; a failure only affects its own file.
+ * <p>
+ * Under --out-dir, a file found in a directory keeps its path relative to that directory, and
+ * one named directly only its name; two files that would still write the same output are
+ * refused before anything is compiled.
+ */
+public class BatchCompiler {
+
+    private static class Input {
+        final Path file;
+        // where it goes under --out-dir
+        final Path relative;
+
+        Input(Path file, Path relative){
+            this.file = file;
+            this.relative = relative;
+        }
+    }
+
+    private static class Outcome {
+        final Path file;
+        final String error;
+
+        Outcome(Path file, String error){
+            this.file = file;
+            this.error = error;
+        }
+    }
+
+    public static int run(Options options) throws IOException {
+        List<Input> files = collect(options.inputs);
+        Map<Path, Path> outputs = new HashMap<>();
+        for(Input input: files){
+            Path output = outputPath(input, options).toAbsolutePath().normalize();
+            Path other = outputs.put(output, input.file);
+            if(other != null){
+                System.err.println("batch: " + other + " and " + input.file + " would both be written to " + output);
+                return 1;
+            }
+        }
+        Outcome[] outcomes = new Outcome[files.size()];
+        AtomicInteger next = new AtomicInteger();
+        int jobs = Math.max(1, Math.min(options.jobs, files.size()));
+
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[jobs];
+        for(int i = 0;i < jobs;i++){
+            workers[i] = new Thread(() -> work(files, outcomes, next, options), "batch-worker-" + i);
+            workers[i].start();
+        }
+        for(Thread worker: workers){
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int failed = 0;
+        for(Outcome outcome: outcomes){
+            if(outcome.error != null){
+                failed++;
+                System.err.println("failed: " + outcome.file + "\n" + outcome.error);
+            }
+        }
+        System.err.printf("batch: %d files, %d ok, %d failed in %.2f s (%.1f files/s, %d workers)%n",
+                files.size(), files.size() - failed, failed, seconds, files.size() / seconds, jobs);
+        if(options.cacheDir != null){
+            System.err.println(FunctionCache.of(options).stats());
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private static void work(List<Input> files, Outcome[] outcomes, AtomicInteger next, Options options){
+        LLVMContextRef context = LLVMContextCreate();
+        try {
+            for(int i = next.getAndIncrement();i < files.size();i = next.getAndIncrement()){
+                outcomes[i] = compileOne(files.get(i), options, context);
+            }
+        } finally {
+            LLVMContextDispose(context);
+        }
+    }
+
+    private static Outcome compileOne(Input input, Options options, LLVMContextRef context){
+        Path file = input.file;
+        LLVMModuleRef module = null;
+        PhaseTimer timer = new PhaseTimer(file.toString());
+        try {
+            if(options.syntaxOnly){
+                Compiler.check(file.toString(), options.fastLexer, timer);
+                if(options.timePhases){
+                    System.err.println(timer.toJson());
+                }
+                return new Outcome(file, null);
+            }
+            module = Compiler.compile(file.toString(), options, context, timer);
+            timer.start(PhaseTimer.Phase.EMIT);
+            Path output = outputPath(input, options);
+            if(output.getParent() != null){
+                Files.createDirectories(output.getParent());
+            }
+            Emitter.emit(module, options.format, options.optLevel, output.toString());
+            timer.stop();
+            Main.report(options, timer, module);
+            return new Outcome(file, null);
+        } catch (Exception | StackOverflowError e) {
+            return new Outcome(file, e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            if(module != null){
+                LLVMDisposeModule(module);
+            }
+        }
+    }
+
+    private static Path outputPath(Input input, Options options){
+        String name = input.file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        name = (dot > 0 ? name.substring(0, dot) : name) + "." + options.format.extension;
+        if(options.outDir == null){
+            return input.file.toAbsolutePath().getParent().resolve(name);
+        }
+        Path dir = Paths.get(options.outDir);
+        Path parent = input.relative.getParent();
+        return (parent != null ? dir.resolve(parent) : dir).resolve(name);
+    }
+
+    private static List<Input> collect(List<String> inputs) throws IOException {
+        List<Input> files = new ArrayList<>();
+        for(String input: inputs){
+            Path path = Paths.get(input);
+            if(Files.isDirectory(path)){
+                try (Stream<Path> walk = Files.walk(path)) {
+                    files.addAll(walk.filter(p -> p.toString().endsWith(".sysy"))
+                            .sorted()
+                            .map(p -> new Input(p, path.relativize(p)))
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                files.add(new Input(path, path.getFileName()));
+            }
+        }
+        return files;
+    }
+
+}
@@ -0,0 +1,102 @@
+import java.util.List;
+
+/**
+ * The register bytecode {@link BytecodeCompiler} makes of a {@link Mir} and {@link Interpreter}
+ * runs. The code of all functions is one int array, an opcode followed by its operands. A
+ * register is an offset into the frame of the running function, and a frame holds its
+ * parameters first, then its constants, which the function sets on entry, then its other
+ * values. Memory is one int array with the globals at the start and the local arrays of the
+ * calls running above them, so an address is an index into it. Jump targets are absolute.
+ */
+public class Bytecode {
+    // d = s
+    public static final int MOV = 0;
+    // d = a op b
+    public static final int ADD = 1;
+    public static final int SUB = 2;
+    public static final int MUL = 3;
+    public static final int DIV = 4;
+    public static final int REM = 5;
+    // d = 1 if a op b holds, else 0
+    public static final int EQ = 6;
+    public static final int NE = 7;
+    public static final int LT = 8;
+    public static final int GT = 9;
+    public static final int LE = 10;
+    public static final int GE = 11;
+    // d = memory[a], and d = memory[a + b]
+    public static final int LOAD = 12;
+    public static final int LOADX = 13;
+    // memory[a] = v, and memory[a + b] = v: a v, a b v
+    public static final int STORE = 14;
+    public static final int STOREX = 15;
+    // d n: d = the address of n fresh ints, freed when the function returns
+    public static final int ALLOCA = 16;
+    // a n: n ints at a set to zero
+    public static final int CLEAR = 17;
+    // d s n: n ints copied from s to d
+    public static final int COPY = 18;
+    // base count values...: the constants of the function put in count registers from base
+    public static final int CONSTS = 19;
+    // d frame f count args...: the result of function f in d, the frame of the caller being frame long
+    public static final int CALL = 20;
+    // d f count args...: the result of library function f in d
+    public static final int LIB = 21;
+    // t: jump to t
+    public static final int JMP = 22;
+    // c t: jump to t if c is not zero, and if it is
+    public static final int JNZ = 23;
+    public static final int JZ = 24;
+    // a b t: jump to t if a op b holds
+    public static final int JEQ = 25;
+    public static final int JNE = 26;
+    public static final int JLT = 27;
+    public static final int JGT = 28;
+    public static final int JLE = 29;
+    public static final int JGE = 30;
+    // v: return v, and return nothing
+    public static final int RET = 31;
+    public static final int RETV = 32;
+
+    // the library functions, in the order of the operand of LIB
+    public static final int GETINT = 0;
+    public static final int GETCH = 1;
+    public static final int GETARRAY = 2;
+    public static final int PUTINT = 3;
+    public static final int PUTCH = 4;
+    public static final int PUTARRAY = 5;
+    public static final int STARTTIME = 6;
+    public static final int STOPTIME = 7;
+    static final List<String> LIBRARY = List.of("getint", "getch", "getarray", "putint", "putch", "putarray",
+            "_sysy_starttime", "_sysy_stoptime");
+
+    public final int[] code;
+    // the first instruction of each function, -1 for the library
+    public final int[] entries;
+    public final int[] frameSizes;
+    public final String[] names;
+    // the globals, as they are when the program starts
+    public final int[] memory;
+    public final int main;
+
+    Bytecode(int[] code, int[] entries, int[] frameSizes, String[] names, int[] memory, int main){
+        this.code = code;
+        this.entries = entries;
+        this.frameSizes = frameSizes;
+        this.names = names;
+        this.memory = memory;
+        this.main = main;
+    }
+
+    // the function the instruction at pc belongs to
+    String functionAt(int pc){
+        int function = -1;
+        for(int i = 0;i < entries.length;i++){
+            if(entries[i] >= 0 && entries[i] <= pc && (function < 0 || entries[i] > entries[function])){
+                function = i;
+            }
+        }
+        return function < 0 ? "?" : names[function];
+    }
+
+}
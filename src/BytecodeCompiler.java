@@ -0,0 +1,419 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates an optimized {@link Mir} into {@link Bytecode}, one function after another in a
+ * single pass over its blocks in reverse postorder. Every value gets a register of its own, so
+ * leaving SSA only takes the copies of the phis: they go at the end of a predecessor that
+ * jumps, and on an edge of their own when the predecessor branches, so no value a branch
+ * leaves live is overwritten. The copies of one edge are ordered so none overwrites a register
+ * another still reads, breaking cycles through a spare register. A comparison only branched on
+ * and an element address only loaded or stored through are folded into the instruction using
+ * them, and a jump to the next block is left out.
+ */
+public class BytecodeCompiler {
+    private final Mir program;
+    private final int[] globals;
+    private int[] code = new int[1024];
+    private int length = 0;
+
+    // per function
+    private Mir.Function function = null;
+    private int[] registers = null;
+    private int spare = 0;
+    private int[] uses = null;
+    private boolean[] folded = null;
+    // the pc of each label, and the places jumping to it; blocks, then the edges made for copies
+    private int[] labels = null;
+    private int[] fixups = new int[64];
+    private int[] fixupLabels = new int[64];
+    private int fixupCount = 0;
+    // the CALL operands waiting for the size of the frame
+    private int[] frameFixups = new int[16];
+    private int frameFixupCount = 0;
+    // the operand of each phi of the target the copies on an edge read, by the block they leave
+    private int[] jumpEdges = null;
+    private int[] trueEdges = null;
+    private int[] falseEdges = null;
+
+    private BytecodeCompiler(Mir program){
+        this.program = program;
+        globals = new int[program.globals.size()];
+    }
+
+    public static Bytecode compile(Mir program){
+        return new BytecodeCompiler(program).compile();
+    }
+
+    private Bytecode compile(){
+        int size = 0;
+        for(int i = 0;i < globals.length;i++){
+            globals[i] = size;
+            size += program.globals.get(i).size;
+        }
+        int[] memory = new int[size];
+        for(int i = 0;i < globals.length;i++){
+            Mir.Global global = program.globals.get(i);
+            if(global.values != null){
+                System.arraycopy(global.values, 0, memory, globals[i], Math.min(global.size, global.values.length));
+            }
+        }
+
+        List<Mir.Function> functions = program.functions;
+        int[] entries = new int[functions.size()];
+        int[] frameSizes = new int[functions.size()];
+        String[] names = new String[functions.size()];
+        int main = -1;
+        for(int i = 0;i < entries.length;i++){
+            function = functions.get(i);
+            names[i] = function.name;
+            if(function.external){
+                entries[i] = -1;
+                continue;
+            }
+            main = function.name.equals("main") ? i : main;
+            entries[i] = length;
+            frameSizes[i] = compileFunction();
+        }
+        if(main < 0){
+            throw new CompileException("no main function to run");
+        }
+        return new Bytecode(Arrays.copyOf(code, length), entries, frameSizes, names, memory, main);
+    }
+
+    private int compileFunction(){
+        int[] order = function.reversePostorder();
+        int frameSize = assignRegisters(order);
+        findEdges(order);
+        labels = new int[function.blocks + 2 * function.blocks];
+        fixupCount = 0;
+        frameFixupCount = 0;
+
+        for(int at = 0;at < order.length;at++){
+            int block = order[at];
+            labels[block] = length;
+            int next = at + 1 < order.length ? order[at + 1] : -1;
+            for(int i = 0;i < function.codeLength[block];i++){
+                compileInstruction(function.code[block][i], block, next);
+            }
+        }
+
+        // the edges that need copies of their own
+        for(int block: order){
+            int terminator = function.terminator(block);
+            if(trueEdges[block] >= 0){
+                labels[function.blocks + 2 * block] = length;
+                copies(function.b[terminator], trueEdges[block]);
+                jump(Bytecode.JMP, function.b[terminator]);
+            }
+            if(falseEdges[block] >= 0){
+                labels[function.blocks + 2 * block + 1] = length;
+                copies(function.c[terminator], falseEdges[block]);
+                jump(Bytecode.JMP, function.c[terminator]);
+            }
+        }
+        for(int i = 0;i < fixupCount;i++){
+            code[fixups[i]] = labels[fixupLabels[i]];
+        }
+        for(int i = 0;i < frameFixupCount;i++){
+            code[frameFixups[i]] = frameSize;
+        }
+        return frameSize;
+    }
+
+    /**
+     * Parameters keep their index, then come the constants and global addresses, one register
+     * for each distinct value, set by a CONSTS at the entry, then everything else that has a
+     * value and the spare register.
+     */
+    private int assignRegisters(int[] order){
+        registers = new int[function.count];
+        uses = new int[function.count];
+        folded = new boolean[function.count];
+        Arrays.fill(registers, -1);
+        int next = function.arrayParams.length;
+        Map<Integer, Integer> constants = new HashMap<>();
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                for(int j = 0;j < function.operandCount(v);j++){
+                    uses[function.operand(v, j)]++;
+                }
+                int op = function.op[v];
+                if(op == Mir.PARAM){
+                    registers[v] = function.a[v];
+                } else if(op == Mir.CONST || op == Mir.GLOBAL){
+                    int value = op == Mir.CONST ? function.a[v] : globals[function.a[v]];
+                    Integer register = constants.get(value);
+                    if(register == null){
+                        register = next++;
+                        constants.put(value, register);
+                    }
+                    registers[v] = register;
+                }
+            }
+        }
+
+        int base = function.arrayParams.length;
+        if(!constants.isEmpty()){
+            emit(Bytecode.CONSTS, base, constants.size());
+            int offset = reserve(constants.size());
+            for(Map.Entry<Integer, Integer> constant: constants.entrySet()){
+                code[offset + constant.getValue() - base] = constant.getKey();
+            }
+        }
+
+        for(int block: order){
+            int terminator = function.terminator(block);
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int op = function.op[v];
+                if(op == Mir.NOP || registers[v] >= 0 || op == Mir.CALL && uses[v] == 0
+                        || op == Mir.STORE || op == Mir.CLEAR || op == Mir.COPY || Mir.isTerminator(op)){
+                    continue;
+                }
+                if(Mir.isCompare(op) && uses[v] == 1 && terminator >= 0 && function.op[terminator] == Mir.BRANCH
+                        && function.a[terminator] == v){
+                    folded[v] = true;
+                } else if(op == Mir.ELEM && uses[v] == 1 && addressedOnly(v, block)){
+                    folded[v] = true;
+                } else {
+                    registers[v] = next++;
+                }
+            }
+        }
+        spare = next++;
+        return next;
+    }
+
+    // whether the one use of an element address is a load or store through it in the same block
+    private boolean addressedOnly(int elem, int block){
+        for(int i = 0;i < function.codeLength[block];i++){
+            int v = function.code[block][i];
+            if((function.op[v] == Mir.LOAD || function.op[v] == Mir.STORE) && function.a[v] == elem){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // which operand of the phis of its target each edge carries, and which edges need copies
+    private void findEdges(int[] order){
+        jumpEdges = new int[function.blocks];
+        trueEdges = new int[function.blocks];
+        falseEdges = new int[function.blocks];
+        Arrays.fill(jumpEdges, -1);
+        Arrays.fill(trueEdges, -1);
+        Arrays.fill(falseEdges, -1);
+        for(int block: order){
+            if(function.codeLength[block] == 0 || function.op[function.code[block][0]] != Mir.PHI){
+                continue;
+            }
+            for(int i = 0;i < function.predCount[block];i++){
+                int pred = function.preds[block][i];
+                int terminator = function.terminator(pred);
+                if(function.op[terminator] == Mir.JUMP){
+                    jumpEdges[pred] = i;
+                } else if(function.b[terminator] == block && trueEdges[pred] < 0){
+                    trueEdges[pred] = i;
+                } else falseEdges[pred] = i;
+            }
+        }
+    }
+
+    private void compileInstruction(int v, int block, int next){
+        int op = function.op[v];
+        int a = function.a[v];
+        int b = function.b[v];
+        switch (op){
+            case Mir.ADD:
+            case Mir.SUB:
+            case Mir.MUL:
+            case Mir.DIV:
+            case Mir.REM:
+            case Mir.EQ:
+            case Mir.NE:
+            case Mir.LT:
+            case Mir.GT:
+            case Mir.LE:
+            case Mir.GE:
+                if(!folded[v]){
+                    emit(Bytecode.ADD + op - Mir.ADD, registers[v], registers[a], registers[b]);
+                }
+                break;
+            case Mir.ELEM:
+                if(!folded[v]){
+                    emit(Bytecode.ADD, registers[v], registers[a], registers[b]);
+                }
+                break;
+            case Mir.ALLOCA:
+                emit(Bytecode.ALLOCA, registers[v], a);
+                break;
+            case Mir.LOAD:
+                if(folded[a]){
+                    emit(Bytecode.LOADX, registers[v], registers[function.a[a]], registers[function.b[a]]);
+                } else emit(Bytecode.LOAD, registers[v], registers[a]);
+                break;
+            case Mir.STORE:
+                if(folded[a]){
+                    emit(Bytecode.STOREX, registers[function.a[a]], registers[function.b[a]], registers[b]);
+                } else emit(Bytecode.STORE, registers[a], registers[b]);
+                break;
+            case Mir.CLEAR:
+                emit(Bytecode.CLEAR, registers[a], b);
+                break;
+            case Mir.COPY:
+                emit(Bytecode.COPY, registers[a], registers[b], function.c[v]);
+                break;
+            case Mir.CALL:
+                compileCall(v);
+                break;
+            case Mir.JUMP:
+                if(jumpEdges[block] >= 0){
+                    copies(a, jumpEdges[block]);
+                }
+                if(a != next){
+                    jump(Bytecode.JMP, a);
+                }
+                break;
+            case Mir.BRANCH:
+                compileBranch(v, block, next);
+                break;
+            case Mir.RET:
+                if(a < 0){
+                    emit(Bytecode.RETV);
+                } else emit(Bytecode.RET, registers[a]);
+                break;
+        }
+    }
+
+    private void compileCall(int v){
+        Mir.Function callee = program.functions.get(function.a[v]);
+        int count = function.c[v];
+        int result = registers[v] >= 0 ? registers[v] : spare;
+        if(callee.external){
+            int library = Bytecode.LIBRARY.indexOf(callee.name);
+            if(library < 0){
+                throw new CompileException("the interpreter has no library function " + callee.name);
+            }
+            emit(Bytecode.LIB, result, library, count);
+        } else {
+            emit(Bytecode.CALL, result, -1, function.a[v], count);
+            // the frame size is only known at the end of the function
+            if(frameFixupCount == frameFixups.length){
+                frameFixups = Arrays.copyOf(frameFixups, frameFixupCount * 2);
+            }
+            frameFixups[frameFixupCount++] = length - 3;
+        }
+        int offset = reserve(count);
+        for(int i = 0;i < count;i++){
+            code[offset + i] = registers[function.extra[function.b[v] + i]];
+        }
+    }
+
+    private void compileBranch(int v, int block, int next){
+        int cond = function.a[v];
+        int whenTrue = trueEdges[block] >= 0 ? function.blocks + 2 * block : function.b[v];
+        int whenFalse = falseEdges[block] >= 0 ? function.blocks + 2 * block + 1 : function.c[v];
+        if(whenFalse == next || whenTrue != next){
+            jumpIf(cond, true, whenTrue);
+            if(whenFalse != next){
+                jump(Bytecode.JMP, whenFalse);
+            }
+        } else jumpIf(cond, false, whenFalse);
+    }
+
+    private void jumpIf(int cond, boolean holds, int target){
+        if(folded[cond]){
+            int op = function.op[cond];
+            int jump = holds ? Bytecode.JEQ + op - Mir.EQ : Bytecode.JEQ + negate(op) - Mir.EQ;
+            jump(jump, target, registers[function.a[cond]], registers[function.b[cond]]);
+        } else jump(holds ? Bytecode.JNZ : Bytecode.JZ, target, registers[cond]);
+    }
+
+    private static int negate(int op){
+        switch (op){
+            case Mir.EQ: return Mir.NE;
+            case Mir.NE: return Mir.EQ;
+            case Mir.LT: return Mir.GE;
+            case Mir.GT: return Mir.LE;
+            case Mir.LE: return Mir.GT;
+            default: return Mir.LT;
+        }
+    }
+
+    /**
+     * The copies into the phis of target on the edge carrying their operand index, in an
+     * order where each register is read before it is written.
+     */
+    private void copies(int target, int index){
+        int count = 0;
+        int[] to = new int[function.codeLength[target]];
+        int[] from = new int[to.length];
+        for(int i = 0;i < function.codeLength[target];i++){
+            int phi = function.code[target][i];
+            if(function.op[phi] != Mir.PHI){
+                break;
+            }
+            int source = registers[function.operand(phi, index)];
+            if(source != registers[phi]){
+                to[count] = registers[phi];
+                from[count++] = source;
+            }
+        }
+        while(count > 0){
+            int free = -1;
+            for(int i = 0;i < count && free < 0;i++){
+                free = i;
+                for(int j = 0;j < count;j++){
+                    if(j != i && from[j] == to[i]){
+                        free = -1;
+                        break;
+                    }
+                }
+            }
+            if(free < 0){
+                // only cycles are left: the register one copy writes is saved first
+                emit(Bytecode.MOV, spare, to[0]);
+                for(int j = 0;j < count;j++){
+                    from[j] = from[j] == to[0] ? spare : from[j];
+                }
+                free = 0;
+            }
+            emit(Bytecode.MOV, to[free], from[free]);
+            count--;
+            to[free] = to[count];
+            from[free] = from[count];
+        }
+    }
+
+    // a jump to the label, whose target is filled in once the function is done
+    private void jump(int op, int label, int... operands){
+        emit(op, operands);
+        int at = reserve(1);
+        if(fixupCount == fixups.length){
+            fixups = Arrays.copyOf(fixups, fixupCount * 2);
+            fixupLabels = Arrays.copyOf(fixupLabels, fixupCount * 2);
+        }
+        fixups[fixupCount] = at;
+        fixupLabels[fixupCount++] = label;
+    }
+
+    private void emit(int op, int... operands){
+        int offset = reserve(operands.length + 1);
+        code[offset] = op;
+        System.arraycopy(operands, 0, code, offset + 1, operands.length);
+    }
+
+    private int reserve(int count){
+        if(length + count > code.length){
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + count));
+        }
+        int offset = length;
+        length += count;
+        return offset;
+    }
+
+}
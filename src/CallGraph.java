@@ -0,0 +1,355 @@
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What each function of a whole program may do, found from the parse tree after {@link Resolver}
+ * put its slots on it. Functions are numbered with the runtime library first, in the order of
+ * {@link SysYLib#FUNCTIONS}, then the functions of the program in the order they are defined.
+ * <p>
+ * SysY has no pointers but array parameters, and the only thing a function can do with one is
+ * to index it or pass it on to another call, so an array argument is never captured, and where
+ * it can point is the set of arrays, global or local, passed down to it along the call graph.
+ * Effects are propagated the same way until nothing changes: a callee writing through its
+ * parameter writes what the caller passed, which only the caller's callers can see if it was a
+ * global or a parameter of the caller itself.
+ */
+public class CallGraph {
+    public final List<String> names = new ArrayList<>();
+    public final List<SysYParser.FuncDefContext> definitions = new ArrayList<>();
+    // the runtime library reads and writes outside the program
+    public boolean[] io;
+    public boolean[] readsGlobals;
+    public boolean[] writesGlobals;
+    public boolean[][] readsParam;
+    public boolean[][] writesParam;
+    // which parameters are arrays
+    public boolean[][] arrayParam;
+    public boolean[] recursive;
+    // no loop and no call of a function that might not return
+    public boolean[] returns;
+    // the array parameters that no other array the function can reach may point into
+    public boolean[][] unaliased;
+
+    // an array passed where a parameter is an array
+    private static class Argument {
+        final int caller;
+        final int callee;
+        final int index;
+        // the slot of a global or local array, or -index - 1 of a parameter of the caller
+        final int source;
+
+        Argument(int caller, int callee, int index, int source){
+            this.caller = caller;
+            this.callee = callee;
+            this.index = index;
+            this.source = source;
+        }
+    }
+
+    private final List<BitSet> calls = new ArrayList<>();
+    private final List<Argument> arguments = new ArrayList<>();
+    // the global slots each function names, its callees' included once propagated
+    private final List<BitSet> named = new ArrayList<>();
+    private final List<Boolean> loops = new ArrayList<>();
+
+    private CallGraph(){
+    }
+
+    public static CallGraph build(SysYParser.ProgramContext tree){
+        Resolver.resolve(tree);
+        CallGraph graph = new CallGraph();
+        Scanner scanner = new Scanner(graph);
+        for(SysYLib.Function function: SysYLib.FUNCTIONS){
+            graph.add(function.symbol, null);
+        }
+        new IterativeParseTreeWalker().walk(scanner, tree);
+        graph.propagate(scanner);
+        return graph;
+    }
+
+    private int add(String name, SysYParser.FuncDefContext definition){
+        names.add(name);
+        definitions.add(definition);
+        calls.add(new BitSet());
+        named.add(new BitSet());
+        loops.add(false);
+        return names.size() - 1;
+    }
+
+    public int size(){
+        return names.size();
+    }
+
+    public boolean isLibrary(int function){
+        return function < SysYLib.FUNCTIONS.size();
+    }
+
+    // what is known about a slot, from the declaration it names
+    private static class Declaration {
+        final boolean global;
+        final boolean constant;
+        // -1 for a scalar; a parameter has one more than its brackets with a size
+        final int dimensions;
+        // the index of a parameter, -1 if it is not one
+        final int param;
+
+        Declaration(boolean global, boolean constant, int dimensions, int param){
+            this.global = global;
+            this.constant = constant;
+            this.dimensions = dimensions;
+            this.param = param;
+        }
+    }
+
+    private static class Scanner extends SysYParserBaseListener {
+        final CallGraph graph;
+        final Map<Integer, Declaration> declarations = new HashMap<>();
+        // user functions by slot
+        final Map<Integer, Integer> functions = new HashMap<>();
+        final List<Boolean> reads = new ArrayList<>();
+        final List<Boolean> writes = new ArrayList<>();
+        final List<BitSet> paramReads = new ArrayList<>();
+        final List<BitSet> paramWrites = new ArrayList<>();
+        final List<BitSet> arrayParams = new ArrayList<>();
+        final List<Integer> paramCounts = new ArrayList<>();
+        int current = -1;
+
+        Scanner(CallGraph graph){
+            this.graph = graph;
+            for(int i = 0;i < SysYLib.FUNCTIONS.size();i++){
+                functions.put(i, i);
+                String params = SysYLib.FUNCTIONS.get(i).params;
+                BitSet arrays = new BitSet();
+                for(int j = 0;j < params.length();j++){
+                    arrays.set(j, params.charAt(j) == 'p');
+                }
+                reads.add(false);
+                writes.add(false);
+                // getarray fills its array, putarray prints one
+                paramReads.add(SysYLib.FUNCTIONS.get(i).name.equals("putarray") ? arrays : new BitSet());
+                paramWrites.add(SysYLib.FUNCTIONS.get(i).name.equals("getarray") ? arrays : new BitSet());
+                arrayParams.add(arrays);
+                paramCounts.add(params.length());
+            }
+        }
+
+        @Override
+        public void enterFuncDef(SysYParser.FuncDefContext ctx) {
+            current = graph.add(ctx.IDENT().getText(), ctx);
+            functions.put(ctx.slot, current);
+            reads.add(false);
+            writes.add(false);
+            paramReads.add(new BitSet());
+            paramWrites.add(new BitSet());
+            arrayParams.add(new BitSet());
+            paramCounts.add(ctx.funcFParams() == null ? 0 : ctx.funcFParams().funcFParam().size());
+        }
+
+        @Override
+        public void exitFuncDef(SysYParser.FuncDefContext ctx) {
+            current = -1;
+        }
+
+        @Override
+        public void exitFuncFParam(SysYParser.FuncFParamContext ctx) {
+            int index = ((SysYParser.FuncFParamsContext) ctx.getParent()).funcFParam().indexOf(ctx);
+            boolean array = ctx.L_BRACKT().size() > 0;
+            declarations.put(ctx.slot, new Declaration(false, false, array ? ctx.exp().size() + 1 : -1, index));
+            arrayParams.get(current).set(index, array);
+        }
+
+        @Override
+        public void exitConstDef(SysYParser.ConstDefContext ctx) {
+            int dimensions = ctx.constExp().size();
+            declarations.put(ctx.slot, new Declaration(current < 0, true, dimensions == 0 ? -1 : dimensions, -1));
+        }
+
+        @Override
+        public void exitVarDef(SysYParser.VarDefContext ctx) {
+            int dimensions = ctx.constExp().size();
+            declarations.put(ctx.slot, new Declaration(current < 0, false, dimensions == 0 ? -1 : dimensions, -1));
+        }
+
+        @Override
+        public void enterWhileStmt(SysYParser.WhileStmtContext ctx) {
+            graph.loops.set(current, true);
+        }
+
+        // an element or a scalar read or assigned; arrays passed whole are seen at the call
+        @Override
+        public void enterLVal(SysYParser.LValContext ctx) {
+            Declaration declaration = declarations.get(ctx.slot);
+            if(current < 0 || declaration == null || ctx.exp().size() < declaration.dimensions){
+                return;
+            }
+            boolean write = ctx.getParent() instanceof SysYParser.AssignStmtContext;
+            if(declaration.param >= 0 && declaration.dimensions > 0){
+                (write ? paramWrites : paramReads).get(current).set(declaration.param);
+            } else if(declaration.global && !(declaration.constant && declaration.dimensions < 0)){
+                // constant scalars are folded where they are used
+                (write ? writes : reads).set(current, true);
+                graph.named.get(current).set(ctx.slot);
+            }
+        }
+
+        @Override
+        public void enterFuncExp(SysYParser.FuncExpContext ctx) {
+            Integer callee = functions.get(ctx.slot);
+            if(current < 0 || callee == null){
+                return;
+            }
+            graph.calls.get(current).set(callee);
+            if(ctx.funcRParams() == null){
+                return;
+            }
+            List<SysYParser.ParamContext> params = ctx.funcRParams().param();
+            for(int i = 0;i < params.size();i++){
+                SysYParser.ExpContext exp = params.get(i).exp();
+                while(exp instanceof SysYParser.ParenExpContext){
+                    exp = ((SysYParser.ParenExpContext) exp).exp();
+                }
+                if(!(exp instanceof SysYParser.LValExpContext)){
+                    continue;
+                }
+                SysYParser.LValContext lVal = ((SysYParser.LValExpContext) exp).lVal();
+                Declaration declaration = declarations.get(lVal.slot);
+                if(declaration == null || lVal.exp().size() >= declaration.dimensions){
+                    continue;
+                }
+                int source = declaration.param >= 0 ? -declaration.param - 1 : lVal.slot;
+                if(declaration.global){
+                    graph.named.get(current).set(lVal.slot);
+                }
+                graph.arguments.add(new Argument(current, callee, i, source));
+            }
+        }
+    }
+
+    private void propagate(Scanner scanner){
+        int n = size();
+        io = new boolean[n];
+        readsGlobals = new boolean[n];
+        writesGlobals = new boolean[n];
+        readsParam = new boolean[n][];
+        writesParam = new boolean[n][];
+        arrayParam = new boolean[n][];
+        List<List<BitSet>> targets = new ArrayList<>();
+        for(int f = 0;f < n;f++){
+            int params = scanner.paramCounts.get(f);
+            io[f] = isLibrary(f);
+            readsGlobals[f] = scanner.reads.get(f);
+            writesGlobals[f] = scanner.writes.get(f);
+            readsParam[f] = new boolean[params];
+            writesParam[f] = new boolean[params];
+            arrayParam[f] = new boolean[params];
+            List<BitSet> roots = new ArrayList<>();
+            for(int i = 0;i < params;i++){
+                readsParam[f][i] = scanner.paramReads.get(f).get(i);
+                writesParam[f][i] = scanner.paramWrites.get(f).get(i);
+                arrayParam[f][i] = scanner.arrayParams.get(f).get(i);
+                roots.add(new BitSet());
+            }
+            targets.add(roots);
+        }
+
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(int f = 0;f < n;f++){
+                for(int g = calls.get(f).nextSetBit(0);g >= 0;g = calls.get(f).nextSetBit(g + 1)){
+                    changed |= io[g] && !io[f];
+                    io[f] |= io[g];
+                    changed |= readsGlobals[g] && !readsGlobals[f] || writesGlobals[g] && !writesGlobals[f];
+                    readsGlobals[f] |= readsGlobals[g];
+                    writesGlobals[f] |= writesGlobals[g];
+                    int before = named.get(f).cardinality();
+                    named.get(f).or(named.get(g));
+                    changed |= named.get(f).cardinality() != before;
+                }
+            }
+            for(Argument argument: arguments){
+                int f = argument.caller;
+                boolean reads = readsParam[argument.callee][argument.index];
+                boolean writes = writesParam[argument.callee][argument.index];
+                BitSet roots = targets.get(argument.callee).get(argument.index);
+                int before = roots.cardinality();
+                if(argument.source < 0){
+                    int param = -argument.source - 1;
+                    changed |= reads && !readsParam[f][param] || writes && !writesParam[f][param];
+                    readsParam[f][param] |= reads;
+                    writesParam[f][param] |= writes;
+                    roots.or(targets.get(f).get(param));
+                } else {
+                    roots.set(argument.source);
+                    if(scanner.declarations.get(argument.source).global){
+                        changed |= reads && !readsGlobals[f] || writes && !writesGlobals[f];
+                        readsGlobals[f] |= reads;
+                        writesGlobals[f] |= writes;
+                    }
+                }
+                changed |= roots.cardinality() != before;
+            }
+        }
+
+        recursive = new boolean[n];
+        for(int f = 0;f < n;f++){
+            recursive[f] = reaches(f, f);
+        }
+        returns = new boolean[n];
+        for(int f = 0;f < n;f++){
+            returns[f] = !loops.get(f) && !recursive[f];
+        }
+        changed = true;
+        while(changed){
+            changed = false;
+            for(int f = 0;f < n;f++){
+                for(int g = calls.get(f).nextSetBit(0);g >= 0 && returns[f];g = calls.get(f).nextSetBit(g + 1)){
+                    if(!returns[g]){
+                        returns[f] = false;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        unaliased = new boolean[n][];
+        for(int f = 0;f < n;f++){
+            List<BitSet> roots = targets.get(f);
+            unaliased[f] = new boolean[roots.size()];
+            for(int i = 0;i < roots.size();i++){
+                boolean alone = arrayParam[f][i] && !roots.get(i).intersects(named.get(f));
+                for(int j = 0;j < roots.size() && alone;j++){
+                    alone = j == i || !arrayParam[f][j] || !roots.get(i).intersects(roots.get(j));
+                }
+                unaliased[f][i] = alone;
+            }
+        }
+    }
+
+    // whether a call of from can lead to a call of to, one call at least
+    private boolean reaches(int from, int to){
+        BitSet seen = new BitSet();
+        List<Integer> pending = new ArrayList<>();
+        pending.add(from);
+        while(!pending.isEmpty()){
+            int f = pending.remove(pending.size() - 1);
+            BitSet callees = calls.get(f);
+            for(int g = callees.nextSetBit(0);g >= 0;g = callees.nextSetBit(g + 1)){
+                if(g == to){
+                    return true;
+                }
+                if(!seen.get(g)){
+                    seen.set(g);
+                    pending.add(g);
+                }
+            }
+        }
+        return false;
+    }
+
+}
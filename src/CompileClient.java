@@ -0,0 +1,70 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for {@link CompileServer}: it loads neither ANTLR nor LLVM.
+ * <pre>
+ *   java CompileClient &lt;socket&gt; &lt;input&gt; &lt;output&gt; [options...]
+ * </pre>
+ */
+public class CompileClient {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3){
+            System.err.println("usage: CompileClient <socket> <input> <output> [options...]");
+            System.exit(2);
+        }
+        byte[] source = Files.readAllBytes(Paths.get(args[1]));
+        String name = Paths.get(args[1]).getFileName().toString().replaceAll("\\s", "_");
+        StringBuilder header = new StringBuilder("compile ").append(source.length);
+        for(int i = 3;i < args.length;i++){
+            header.append(' ').append(args[i]);
+        }
+        header.append(' ').append(name).append('\n');
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(args[0]));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(source);
+            out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            String line = readLine(in);
+            if(line == null){
+                System.err.println("server closed the connection");
+                System.exit(1);
+            }
+            String[] words = line.split(" ");
+            byte[] payload = in.readNBytes(Integer.parseInt(words[1]));
+            System.err.println(name + ": " + words[2] + " us");
+            if(!words[0].equals("ok")){
+                System.err.println(new String(payload, StandardCharsets.UTF_8));
+                System.exit(1);
+            }
+            if(args[2].equals("-")){
+                System.out.write(payload);
+                System.out.flush();
+            } else {
+                Files.write(Paths.get(args[2]), payload);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while((c = in.read()) != '\n' && c != -1){
+            line.write(c);
+        }
+        return c == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,11 @@
+/**
+ * A problem with the program being compiled (syntax errors, non-constant dimensions, a module
+ * that fails verification), as opposed to a bug in the compiler itself.
+ */
+public class CompileException extends RuntimeException {
+
+    public CompileException(String message){
+        super(message);
+    }
+
+}
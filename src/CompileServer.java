@@ -0,0 +1,259 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Keeps one process alive for many compilations so JVM startup, ANTLR ATN deserialization and
+ * LLVM target initialization are paid once. It speaks a line protocol on stdin/stdout, or on a
+ * Unix domain socket with one thread and one LLVM context per connection:
+ * <pre>
+ *   compile &lt;bytes&gt; [options...] &lt;name&gt;\n&lt;source&gt;  ->  ok|error &lt;bytes&gt; &lt;micros&gt;\n&lt;output or diagnostics&gt;
+ *   stats                                      ->  stats requests=N errors=N mean_us=N p50_us=N p99_us=N max_us=N
+ *   quit                                       ->  closes the connection
+ * </pre>
+ * Options are the per-file ones of the command line: -O0..-O3, --ssa, --verify, --emit,
+ * --syntax-only, --fast-lexer, and --time-phases and --stats, which log to the server's stderr.
+ * A --cache and --cache-size given to the server itself apply to every request.
+ */
+public class CompileServer {
+    // options that run the program, build it without LLVM or touch files, none of which a reply carries;
+    // the cache is the server's own, from its command line
+    private static final String[] REJECTED = {"--run", "--batch", "--server", "--interpret", "--differential", "--x86",
+            "--profile-generate", "--profile-use", "--cache", "--cache-size", "--out-dir"};
+    // the longest source a byte array holds
+    private static final int MAX_SOURCE = Integer.MAX_VALUE - 8;
+    // 8 buckets per power of two, so a percentile is within an eighth of its value whatever the uptime
+    private static final int SUB_BUCKETS = 8;
+    private final long[] latencies = new long[SUB_BUCKETS * 61];
+    private long requests = 0;
+    private long total = 0;
+    private long max = 0;
+    private long errors = 0;
+    // the --cache and --cache-size every request compiles with
+    private final String cacheDir;
+    private final long cacheLimit;
+
+    private CompileServer(Options options){
+        cacheDir = options.cacheDir;
+        cacheLimit = options.cacheLimit;
+    }
+
+    public static void run(Options options) throws IOException {
+        CompileServer server = new CompileServer(options);
+        Compiler.warmUp();
+        if(options.server.isEmpty()){
+            server.handle(System.in, new FileOutputStream(FileDescriptor.out));
+        } else {
+            server.listen(Paths.get(options.server));
+        }
+    }
+
+    private void listen(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.bind(UnixDomainSocketAddress.of(path));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> path.toFile().delete()));
+            System.err.println("listening on " + path);
+            while(true){
+                SocketChannel client = channel.accept();
+                Thread thread = new Thread(() -> {
+                    try (client) {
+                        handle(Channels.newInputStream(client), Channels.newOutputStream(client));
+                    } catch (IOException e) {
+                        System.err.println("connection failed: " + e.getMessage());
+                    }
+                }, "server-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private void handle(InputStream input, OutputStream output) throws IOException {
+        InputStream in = new BufferedInputStream(input);
+        OutputStream out = new BufferedOutputStream(output);
+        LLVMContextRef context = LLVMContextCreate();
+        try {
+            String line;
+            while((line = readLine(in)) != null){
+                String[] words = line.trim().split("\\s+");
+                switch (words[0]){
+                    case "":
+                        continue;
+                    case "quit":
+                        return;
+                    case "stats":
+                        out.write((stats() + "\n").getBytes(StandardCharsets.UTF_8));
+                        break;
+                    case "compile":
+                        compile(words, in, out, context);
+                        break;
+                    default:
+                        reply(out, "error", ("unknown command: " + words[0]).getBytes(StandardCharsets.UTF_8), 0);
+                }
+                out.flush();
+            }
+        } finally {
+            out.flush();
+            LLVMContextDispose(context);
+        }
+    }
+
+    private void compile(String[] words, InputStream in, OutputStream out, LLVMContextRef context) throws IOException {
+        long length = -1;
+        try {
+            length = words.length >= 2 && words[1].matches("[0-9]+") ? Long.parseLong(words[1]) : -1;
+        } catch (NumberFormatException e) {
+            // more digits than a long holds; nothing can be skipped, the client is out of step anyway
+        }
+        // a source of a length that parses is read even when the request is refused, so the next line is a command
+        if(length >= 0 && (words.length < 3 || length > MAX_SOURCE)){
+            in.skipNBytes(length);
+        }
+        if(words.length < 3 || length < 0 || length > MAX_SOURCE){
+            String usage = length > MAX_SOURCE ? "the source is longer than " + MAX_SOURCE + " bytes"
+                    : "usage: compile <bytes> [options...] <name>";
+            reply(out, "error", usage.getBytes(StandardCharsets.UTF_8), 0);
+            return;
+        }
+        byte[] source = in.readNBytes((int) length);
+        String name = words[words.length - 1];
+
+        long start = System.nanoTime();
+        LLVMModuleRef module = null;
+        byte[] payload;
+        boolean ok = false;
+        try {
+            Options options = requestOptions(words, name);
+            PhaseTimer timer = new PhaseTimer(name);
+            SysYParser.ProgramContext tree = options.fastLexer
+                    ? Compiler.parse(new FastLexer(ByteBuffer.wrap(source), name), name, !options.syntaxOnly, timer)
+                    : Compiler.parse(new SysYLexer(CharStreams.fromString(new String(source, StandardCharsets.UTF_8), name)),
+                                     name, !options.syntaxOnly, timer);
+            if(options.syntaxOnly){
+                payload = new byte[0];
+            } else {
+                module = Compiler.compile(tree, options, context, timer);
+                timer.start(PhaseTimer.Phase.EMIT);
+                payload = Emitter.emit(module, options.format, options.optLevel);
+                timer.stop();
+                Main.report(options, timer, module);
+            }
+            ok = true;
+        } catch (Exception | StackOverflowError e) {
+            payload = (e.getMessage() != null ? e.getMessage() : e.toString()).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            if(module != null){
+                LLVMDisposeModule(module);
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        record(micros, ok);
+        reply(out, ok ? "ok" : "error", payload, micros);
+        System.err.printf("%s %s %d us%n", name, ok ? "ok" : "error", micros);
+    }
+
+    private Options requestOptions(String[] words, String name){
+        List<String> args = new ArrayList<>(Arrays.asList(words).subList(2, words.length - 1));
+        for(String arg: args){
+            for(String rejected: REJECTED){
+                if(arg.equals(rejected) || arg.startsWith(rejected + "=")){
+                    throw new IllegalArgumentException(rejected + " cannot be used on the server, only per-file options are allowed");
+                }
+            }
+        }
+        args.add(name);
+        args.add("-");
+        Options options = Options.parse(args.toArray(new String[0]));
+        if(!options.mir){
+            options.cacheDir = cacheDir;
+            options.cacheLimit = cacheLimit;
+        }
+        return options;
+    }
+
+    private static void reply(OutputStream out, String status, byte[] payload, long micros) throws IOException {
+        out.write((status + " " + payload.length + " " + micros + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(payload);
+    }
+
+    private synchronized void record(long micros, boolean ok){
+        latencies[bucket(micros)]++;
+        requests++;
+        total += micros;
+        max = Math.max(max, micros);
+        if(!ok){
+            errors++;
+        }
+    }
+
+    private synchronized String stats(){
+        return String.format("stats requests=%d errors=%d mean_us=%d p50_us=%d p99_us=%d max_us=%d",
+                requests, errors, requests == 0 ? 0 : total / requests, percentile(50), percentile(99), max);
+    }
+
+    // the upper end of the bucket the p-th percentile falls in, at most the largest latency seen
+    private long percentile(int p){
+        if(requests == 0){
+            return 0;
+        }
+        long rank = Math.min(requests - 1, requests * p / 100);
+        long seen = 0;
+        for(int i = 0;i < latencies.length;i++){
+            seen += latencies[i];
+            if(seen > rank){
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    // values below 8 get a bucket each, then every power of two is split into 8
+    private static int bucket(long micros){
+        if(micros < SUB_BUCKETS){
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        return (exponent - 2) * SUB_BUCKETS + (int) ((micros >> (exponent - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBound(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while((c = in.read()) != '\n'){
+            if(c == -1){
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+}
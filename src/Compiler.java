@@ -0,0 +1,418 @@
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMMemoryBufferRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * The per-file pipeline shared by the command line, batch mode and the JIT runner:
+ * lex, parse, generate code into the given context and optimize.
+ */
+public class Compiler {
+
+    public static SysYParser.ProgramContext parse(String path) throws IOException {
+        return parse(CharStreams.fromFileName(path), path);
+    }
+
+    public static SysYParser.ProgramContext parse(String path, boolean fastLexer, PhaseTimer timer) throws IOException {
+        if(fastLexer){
+            return parse(FastLexer.map(Paths.get(path)), path, true, timer);
+        }
+        return parse(new SysYLexer(CharStreams.fromFileName(path)), path, true, timer);
+    }
+
+    public static SysYParser.ProgramContext parse(CharStream input, String name){
+        return parse(new SysYLexer(input), name, true, new PhaseTimer(name));
+    }
+
+    /**
+     * Only reports syntax errors: no parse tree is built, so nothing is kept per rule.
+     */
+    public static void check(String path, boolean fastLexer, PhaseTimer timer) throws IOException {
+        if(fastLexer){
+            parse(FastLexer.map(Paths.get(path)), path, false, timer);
+        } else {
+            parse(new SysYLexer(CharStreams.fromFileName(path)), path, false, timer);
+        }
+    }
+
+    public static void check(CharStream input, String name){
+        parse(new SysYLexer(input), name, false, new PhaseTimer(name));
+    }
+
+    /**
+     * Parses in two stages. SLL prediction is much cheaper than full LL on the left-recursive
+     * exp and cond rules and gives the same tree for every input that is correct SLL, so it goes
+     * first and gives up on the first error. Only then is the (already lexed) input parsed again
+     * with full LL and the normal error reporting. The DFA both stages fill is static to
+     * SysYParser, so it stays warm across all files compiled by one process.
+     * <p>
+     * All tokens are read before parsing starts, so lexing and parsing are timed apart.
+     */
+    static <L extends Recognizer<?, ?> & TokenSource> SysYParser.ProgramContext parse(L lexer, String name,
+                                                                                   boolean buildParseTree,
+                                                                                   PhaseTimer timer){
+        List<String> errors = new ArrayList<>();
+        BaseErrorListener listener = new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                errors.add(name + ":" + line + ":" + charPositionInLine + ": " + msg);
+            }
+        };
+
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(listener);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        timer.start(PhaseTimer.Phase.LEX);
+        tokens.fill();
+        timer.start(PhaseTimer.Phase.PARSE);
+        SysYParser parser = new SysYParser(tokens);
+        parser.setBuildParseTree(buildParseTree);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+
+        SysYParser.ProgramContext tree;
+        try {
+            tree = parser.program();
+        } catch (ParseCancellationException e) {
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            tree = parser.program();
+        }
+        timer.stop();
+        if(!errors.isEmpty()){
+            throw new CompileException(String.join("\n", errors));
+        }
+        return tree;
+    }
+
+    /**
+     * Parses a small program that goes through every rule, so the first real file does not pay
+     * for building the prediction DFA.
+     */
+    public static void warmUp(){
+        parse(CharStreams.fromString(WARM_UP), "warm-up");
+    }
+
+    private static final String WARM_UP = String.join("\n",
+            "const int N = 4, M[2] = {1, 2};",
+            "int g[N] = {1, 2}, h;",
+            "void f(int a[], int b){ a[0] = b; return; }",
+            "int main(){",
+            "    int x = 0, y[2] = {0};",
+            "    while(x < 10 && !x == 0 || x >= N){ if(x % 2 != 0) continue; else { x = x + 1; } break; }",
+            "    f(y, -x * 2 / 1);",
+            "    ;",
+            "    return (x + M[1]) - y[0];",
+            "}");
+
+    public static LLVMModuleRef compile(String path, Options options) throws IOException {
+        return compile(path, options, LLVMGetGlobalContext());
+    }
+
+    public static LLVMModuleRef compile(String path, Options options, LLVMContextRef context) throws IOException {
+        return compile(path, options, context, new PhaseTimer(path));
+    }
+
+    public static LLVMModuleRef compile(String path, Options options, LLVMContextRef context, PhaseTimer timer)
+            throws IOException {
+        return compile(parse(path, options.fastLexer, timer), options, context, timer);
+    }
+
+    public static LLVMModuleRef compile(SysYParser.ProgramContext tree, Options options, LLVMContextRef context,
+                                        PhaseTimer timer){
+        return compile(tree, options, context, timer, profile(options));
+    }
+
+    /**
+     * The profile --profile-generate or --profile-use asks for, null for neither. It is handed
+     * to {@link #compile} by a caller that reports its warnings.
+     *
+     * @throws CompileException if the profile to use cannot be read
+     */
+    public static Profile profile(Options options){
+        if(options.profileGenerate != null){
+            return Profile.instrument(options.profileGenerate);
+        }
+        return options.profileUse != null ? Profile.read(options.profileUse) : null;
+    }
+
+    public static LLVMModuleRef compile(SysYParser.ProgramContext tree, Options options, LLVMContextRef context,
+                                        PhaseTimer timer, Profile profile){
+        timer.start(PhaseTimer.Phase.CODEGEN);
+        LLVMModuleRef module;
+        if(options.mir){
+            module = MirLowering.lower(MirOptimizer.optimize(MirBuilder.build(tree)), context);
+        } else if(options.cacheDir != null){
+            module = FunctionCache.of(options).generate(tree, options.ssa, options.parallel, context);
+        } else if(options.parallel){
+            module = generateParallel(tree, options.ssa, context);
+        } else if(profile != null){
+            module = generate(tree, options.ssa, context, funcDef -> true, profile);
+        } else {
+            module = generate(tree, options.ssa, context, funcDef -> true);
+        }
+        if(options.optLevel > 0){
+            // -O0 stays exactly what the visitor built
+            FunctionAttributes.apply(CallGraph.build(tree), module, options.profileGenerate != null);
+        }
+
+        Emitter.configureTarget(module);
+        timer.start(PhaseTimer.Phase.OPTIMIZE);
+        Optimizer.optimize(module, options.optLevel, options.verify);
+        timer.stop();
+        return module;
+    }
+
+    /**
+     * The bytecode {@link Interpreter} runs, built from the optimized MIR without loading LLVM.
+     */
+    public static Bytecode bytecode(SysYParser.ProgramContext tree, PhaseTimer timer){
+        timer.start(PhaseTimer.Phase.CODEGEN);
+        Bytecode bytecode = BytecodeCompiler.compile(MirOptimizer.optimize(MirBuilder.build(tree)));
+        timer.stop();
+        return bytecode;
+    }
+
+    public static String assembly(SysYParser.ProgramContext tree, PhaseTimer timer){
+        timer.start(PhaseTimer.Phase.CODEGEN);
+        String assembly = X86Lowering.lower(MirOptimizer.optimize(MirBuilder.build(tree)));
+        timer.stop();
+        return assembly;
+    }
+
+    static LLVMModuleRef generate(SysYParser.ProgramContext tree, boolean ssa, LLVMContextRef context,
+                                  Predicate<SysYParser.FuncDefContext> emitBody){
+        return generate(tree, ssa, context, emitBody, null);
+    }
+
+    static LLVMModuleRef generate(SysYParser.ProgramContext tree, boolean ssa, LLVMContextRef context,
+                                  Predicate<SysYParser.FuncDefContext> emitBody, Profile profile){
+        try (LLVMVisitor visitor = new LLVMVisitor(context, ssa, funcDef -> true, emitBody, profile)) {
+            visitor.visit(tree);
+            return visitor.getModule();
+        }
+    }
+
+    /**
+     * Generates the given functions as bitcode, declaring only the other functions they name.
+     * Source-level globals are turned into declarations, so the result links into a module built with no
+     * bodies at all.
+     */
+    static byte[] generateFunctions(SysYParser.ProgramContext tree, Collection<SysYParser.FuncDefContext> funcDefs,
+                                    boolean ssa, LLVMContextRef context){
+        Set<String> names = new HashSet<>();
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            names.addAll(identifiers(funcDef.block()));
+        }
+        LLVMModuleRef module;
+        try (LLVMVisitor visitor = new LLVMVisitor(context, ssa,
+                funcDef -> funcDefs.contains(funcDef) || names.contains(funcDef.IDENT().getText()),
+                funcDefs::contains)) {
+            visitor.visit(tree);
+            module = visitor.getModule();
+        }
+        for(LLVMValueRef global = LLVMGetFirstGlobal(module);global != null;global = LLVMGetNextGlobal(global)){
+            // private globals are the constant initializers of the functions' own local arrays
+            if(LLVMGetLinkage(global) != LLVMPrivateLinkage){
+                LLVMSetInitializer(global, null);
+            }
+        }
+        byte[] bitcode = Emitter.bitcode(module);
+        LLVMDisposeModule(module);
+        return bitcode;
+    }
+
+    /**
+     * Declares every global and function first, then generates the bodies concurrently in one
+     * contiguous run of functions per processor, balanced by token count, and links the runs in
+     * source order. Linking fills in the existing declarations, so the result does not depend on
+     * which run finished first.
+     */
+    static LLVMModuleRef generateParallel(SysYParser.ProgramContext tree, boolean ssa, LLVMContextRef context){
+        List<SysYParser.FuncDefContext> funcDefs = tree.compUnit().funcDef();
+        int runs = Math.min(Runtime.getRuntime().availableProcessors(), funcDefs.size());
+        if(runs <= 1){
+            // the bitcode round trip only pays off when runs actually overlap
+            return generate(tree, ssa, context, funcDef -> true);
+        }
+
+        LLVMModuleRef module = generate(tree, ssa, context, funcDef -> false);
+        long total = 0;
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            total += tokens(funcDef);
+        }
+        List<Set<SysYParser.FuncDefContext>> groups = new ArrayList<>();
+        Set<SysYParser.FuncDefContext> group = new HashSet<>();
+        long size = 0;
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            group.add(funcDef);
+            size += tokens(funcDef);
+            if(size * runs >= total * (groups.size() + 1)){
+                groups.add(group);
+                group = new HashSet<>();
+            }
+        }
+        if(!group.isEmpty()){
+            groups.add(group);
+        }
+
+        List<LLVMModuleRef> modules = new ArrayList<>();
+        for(byte[] bitcode: fork(tree, groups, ssa)){
+            modules.add(readBitcode(context, bitcode));
+        }
+        linkAll(module, modules);
+        return module;
+    }
+
+    /**
+     * Generates every function on its own, on the fork-join pool if parallel.
+     */
+    static List<byte[]> generateEach(SysYParser.ProgramContext tree, List<SysYParser.FuncDefContext> funcDefs,
+                                     boolean ssa, boolean parallel, LLVMContextRef context){
+        List<Set<SysYParser.FuncDefContext>> groups = new ArrayList<>();
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            groups.add(Collections.singleton(funcDef));
+        }
+        if(parallel){
+            return fork(tree, groups, ssa);
+        }
+        List<byte[]> bitcodes = new ArrayList<>();
+        for(Set<SysYParser.FuncDefContext> group: groups){
+            bitcodes.add(generateFunctions(tree, group, ssa, context));
+        }
+        return bitcodes;
+    }
+
+    // each task gets a context of its own, since a context must never be used by two threads at once
+    private static List<byte[]> fork(SysYParser.ProgramContext tree, List<Set<SysYParser.FuncDefContext>> groups, boolean ssa){
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+        for(Set<SysYParser.FuncDefContext> group: groups){
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                LLVMContextRef own = LLVMContextCreate();
+                try {
+                    return generateFunctions(tree, group, ssa, own);
+                } finally {
+                    LLVMContextDispose(own);
+                }
+            }));
+        }
+        List<byte[]> bitcodes = new ArrayList<>();
+        for(ForkJoinTask<byte[]> task: tasks){
+            bitcodes.add(task.join());
+        }
+        return bitcodes;
+    }
+
+    private static int tokens(SysYParser.FuncDefContext funcDef){
+        return funcDef.getStop().getTokenIndex() - funcDef.getStart().getTokenIndex() + 1;
+    }
+
+    static Set<String> identifiers(ParseTree tree){
+        Set<String> idents = new HashSet<>();
+        for(TerminalNode terminal: terminals(tree)){
+            if(terminal.getSymbol().getType() == SysYParser.IDENT){
+                idents.add(terminal.getText());
+            }
+        }
+        return idents;
+    }
+
+    // in source order, walked with a stack of its own since operator chains nest as deep as they are long
+    static List<TerminalNode> terminals(ParseTree tree){
+        List<TerminalNode> terminals = new ArrayList<>();
+        Deque<ParseTree> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while(!pending.isEmpty()){
+            ParseTree node = pending.pop();
+            if(node instanceof TerminalNode){
+                terminals.add((TerminalNode) node);
+                continue;
+            }
+            for(int i = node.getChildCount() - 1;i >= 0;i--){
+                pending.push(node.getChild(i));
+            }
+        }
+        return terminals;
+    }
+
+    static LLVMModuleRef readBitcode(LLVMContextRef context, byte[] bitcode){
+        LLVMMemoryBufferRef buffer;
+        try (BytePointer bytes = new BytePointer(bitcode); BytePointer name = new BytePointer("function")) {
+            buffer = LLVMCreateMemoryBufferWithMemoryRangeCopy(bytes, bitcode.length, name);
+        }
+        LLVMModuleRef module = new LLVMModuleRef();
+        BytePointer error = new BytePointer();
+        // unlike the *2 variant this reports errors back instead of to the context, which exits
+        boolean failed = LLVMParseBitcodeInContext(context, buffer, module, error) != 0;
+        LLVMDisposeMemoryBuffer(buffer);
+        if(failed){
+            String message = error.getString();
+            LLVMDisposeMessage(error);
+            throw new CompileException("malformed function bitcode: " + message);
+        }
+        return module;
+    }
+
+    /**
+     * Links modules into module, taking ownership of them. They are merged pairwise first:
+     * every link walks the whole destination, so linking them one after another into a growing
+     * module would be quadratic.
+     */
+    static void linkAll(LLVMModuleRef module, List<LLVMModuleRef> modules){
+        while(modules.size() > 1){
+            List<LLVMModuleRef> merged = new ArrayList<>();
+            for(int i = 0;i < modules.size();i += 2){
+                if(i + 1 < modules.size()){
+                    link(modules.get(i), modules.get(i + 1));
+                }
+                merged.add(modules.get(i));
+            }
+            modules = merged;
+        }
+        if(!modules.isEmpty()){
+            link(module, modules.get(0));
+        }
+    }
+
+    private static void link(LLVMModuleRef module, LLVMModuleRef other){
+        if(LLVMLinkModules2(module, other) != 0){
+            throw new CompileException("cannot link function bitcode");
+        }
+    }
+
+}
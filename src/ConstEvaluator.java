@@ -0,0 +1,201 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Folds constExp/exp subtrees to an int at compile time. References to earlier consts are
+ * found through the slots {@link Resolver} bound them to; anything that is not a compile-time
+ * constant (variables, calls, a division that traps) evaluates to null. Results are memoized per
+ * parse node, which is safe because a node always refers to the same symbols.
+ */
+public class ConstEvaluator extends SysYParserBaseVisitor<Integer> {
+    private final Map<ParseTree, Integer> cache = new HashMap<>();
+    private Symbol[] symbols = null;
+
+    public Integer evaluate(ParseTree tree, Symbol[] symbols){
+        this.symbols = symbols;
+        return visit(tree);
+    }
+
+    @Override
+    public Integer visit(ParseTree tree) {
+        if(cache.containsKey(tree)){
+            return cache.get(tree);
+        }
+        Integer value = tree.accept(this);
+        cache.put(tree, value);
+        return value;
+    }
+
+    @Override
+    protected Integer defaultResult() {
+        return null;
+    }
+
+    @Override
+    protected boolean shouldVisitNextChild(RuleNode node, Integer currentResult) {
+        return false;
+    }
+
+    @Override
+    public Integer visitConstExp(SysYParser.ConstExpContext ctx) {
+        return visit(ctx.exp());
+    }
+
+    @Override
+    public Integer visitParenExp(SysYParser.ParenExpContext ctx) {
+        return visit(ctx.exp());
+    }
+
+    @Override
+    public Integer visitNumberExp(SysYParser.NumberExpContext ctx) {
+        return parseInteger(ctx.number().getText());
+    }
+
+    @Override
+    public Integer visitFuncExp(SysYParser.FuncExpContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Integer visitLValExp(SysYParser.LValExpContext ctx) {
+        return visit(ctx.lVal());
+    }
+
+    @Override
+    public Integer visitLVal(SysYParser.LValContext ctx) {
+        Symbol symbol = symbols[ctx.slot];
+        if(symbol == null || symbol.constValues == null){
+            return null;
+        }
+
+        int[] dims = symbol.constDims;
+        // a partially indexed const array is an address, not a value
+        if(ctx.exp().size() != dims.length){
+            return null;
+        }
+        int offset = 0;
+        for(int i = 0;i < dims.length;i++){
+            Integer index = visit(ctx.exp(i));
+            if(index == null || index < 0 || index >= dims[i]){
+                return null;
+            }
+            offset = offset * dims[i] + index;
+        }
+        return symbol.constValues[offset];
+    }
+
+    @Override
+    public Integer visitUnaryExp(SysYParser.UnaryExpContext ctx) {
+        Integer value = visit(ctx.exp());
+        if(value == null){
+            return null;
+        }
+        switch (ctx.unaryOp().getText()){
+            case "-":
+                return -value;
+            case "!":
+                return value == 0 ? 1 : 0;
+            default:
+                return value;
+        }
+    }
+
+    @Override
+    public Integer visitMulDivModExp(SysYParser.MulDivModExpContext ctx) {
+        return arithmetic(ctx);
+    }
+
+    @Override
+    public Integer visitPlusMinusExp(SysYParser.PlusMinusExpContext ctx) {
+        return arithmetic(ctx);
+    }
+
+    // folds a chain down its left operands in a loop, as LLVMVisitor does
+    private Integer arithmetic(SysYParser.ExpContext ctx){
+        Deque<SysYParser.ExpContext> spine = new ArrayDeque<>();
+        SysYParser.ExpContext left = ctx;
+        while((left instanceof SysYParser.MulDivModExpContext || left instanceof SysYParser.PlusMinusExpContext)
+                && !cache.containsKey(left)){
+            spine.push(left);
+            left = left.getRuleContext(SysYParser.ExpContext.class, 0);
+        }
+        Integer lVal = visit(left);
+        while(!spine.isEmpty()){
+            SysYParser.ExpContext node = spine.pop();
+            Integer rVal = lVal == null ? null : visit(node.getRuleContext(SysYParser.ExpContext.class, 1));
+            lVal = lVal == null || rVal == null ? null : apply(node, lVal, rVal);
+            cache.put(node, lVal);
+        }
+        return lVal;
+    }
+
+    private static Integer apply(SysYParser.ExpContext ctx, int lVal, int rVal){
+        if(ctx instanceof SysYParser.PlusMinusExpContext){
+            return ((SysYParser.PlusMinusExpContext) ctx).PLUS() != null ? lVal + rVal : lVal - rVal;
+        }
+        SysYParser.MulDivModExpContext mulDivMod = (SysYParser.MulDivModExpContext) ctx;
+        if(mulDivMod.MUL() != null){
+            return lVal * rVal;
+        }
+        // like division by zero, MIN_VALUE / -1 traps at run time, so it is left to do so
+        if(rVal == 0 || rVal == -1 && lVal == Integer.MIN_VALUE){
+            return null;
+        }
+        return mulDivMod.DIV() != null ? lVal / rVal : lVal % rVal;
+    }
+
+    /**
+     * The expressions of a brace initializer of an array with the given dimensions in row-major
+     * order, null where none is given. As in C, a nested brace initializes the largest subarray
+     * that starts at the current element, below the level of the enclosing brace.
+     */
+    static ParseTree[] flatten(ParserRuleContext init, int[] dims){
+        // sizes[i] is the number of elements of a subarray of level i
+        int[] sizes = new int[dims.length + 1];
+        sizes[dims.length] = 1;
+        for(int i = dims.length - 1;i >= 0;i--){
+            sizes[i] = sizes[i + 1] * dims[i];
+        }
+        ParseTree[] items = new ParseTree[sizes[0]];
+        flatten(init, items, sizes, 0, 0);
+        return items;
+    }
+
+    private static void flatten(ParserRuleContext brace, ParseTree[] items, int[] sizes, int level, int offset){
+        int position = offset;
+        int end = offset + sizes[level];
+        for(ParserRuleContext item: brace.getRuleContexts(ParserRuleContext.class)){
+            if(position >= end){
+                return;
+            }
+            ParseTree first = item.getChild(0);
+            if(first instanceof TerminalNode){
+                int subLevel = Math.min(level + 1, sizes.length - 1);
+                while(position % sizes[subLevel] != 0){
+                    subLevel++;
+                }
+                flatten(item, items, sizes, subLevel, position);
+                position += sizes[subLevel];
+            } else {
+                items[position++] = first;
+            }
+        }
+    }
+
+    public static int parseInteger(String text){
+        if (text.length() > 2 && (text.startsWith("0x") || text.startsWith("0X"))) {
+            return (int) Long.parseLong(text.substring(2), 16);
+        } else if (text.length() > 1 && text.startsWith("0")) {
+            return (int) Long.parseLong(text.substring(1), 8);
+        }
+        return (int) Long.parseLong(text);
+    }
+
+}
@@ -0,0 +1,93 @@
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Runs one program on both engines, the JIT with the code generation the options choose and
+ * the {@link Interpreter}, on the same input, and compares their exit codes and output. A
+ * program the interpreter stops, on a division that traps or an access past the end of its
+ * memory, is not run on the JIT, where it would fault and take the JVM down with it before
+ * anything is reported. An access out of a local array that stays in memory is not caught, and
+ * may still fault on the JIT.
+ */
+public class Differential {
+    // null if the interpreter stopped the program
+    public final JitRunner.Result compiled;
+    // null if the interpreter stopped the program
+    public final JitRunner.Result interpreted;
+    public final String error;
+    // from the parse tree to the exit of the program, on each engine
+    public final long compiledNanos;
+    public final long interpretedNanos;
+
+    private Differential(JitRunner.Result compiled, JitRunner.Result interpreted, String error,
+                         long compiledNanos, long interpretedNanos){
+        this.compiled = compiled;
+        this.interpreted = interpreted;
+        this.error = error;
+        this.compiledNanos = compiledNanos;
+        this.interpretedNanos = interpretedNanos;
+    }
+
+    public static Differential run(SysYParser.ProgramContext tree, Options options, LLVMContextRef context,
+                                   byte[] input, PhaseTimer timer) throws IOException {
+        return run(tree, options, context, input, timer, Compiler.profile(options));
+    }
+
+    // the JIT compiles with the given profile, null for none
+    public static Differential run(SysYParser.ProgramContext tree, Options options, LLVMContextRef context,
+                                   byte[] input, PhaseTimer timer, Profile profile) throws IOException {
+        long start = System.nanoTime();
+        Bytecode bytecode = Compiler.bytecode(tree, timer);
+        JitRunner.Result interpreted = null;
+        String error = null;
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int exitCode = Interpreter.run(bytecode, new ByteArrayInputStream(input), output, System.err);
+            interpreted = new JitRunner.Result(exitCode, output.toString(StandardCharsets.UTF_8));
+        } catch (IllegalStateException e) {
+            error = e.getMessage();
+        }
+        long interpretedNanos = System.nanoTime() - start;
+        if(error != null){
+            return new Differential(null, null, error, 0, interpretedNanos);
+        }
+
+        Path inputFile = Files.createTempFile("sysy", ".in");
+        try {
+            Files.write(inputFile, input);
+            start = System.nanoTime();
+            JitRunner.Result compiled = JitRunner.run(Compiler.compile(tree, options, context, timer, profile),
+                    options.optLevel, inputFile.toString());
+            return new Differential(compiled, interpreted, error, System.nanoTime() - start, interpretedNanos);
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    // how the engines disagree, null if they do not
+    public String mismatch(){
+        if(interpreted == null){
+            return "the interpreter stopped: " + error + ", not run on the JIT";
+        }
+        if(compiled.exitCode != interpreted.exitCode){
+            return "exit code " + compiled.exitCode + " compiled, " + interpreted.exitCode + " interpreted";
+        }
+        if(!compiled.stdout.equals(interpreted.stdout)){
+            int at = 0;
+            while(at < compiled.stdout.length() && at < interpreted.stdout.length()
+                    && compiled.stdout.charAt(at) == interpreted.stdout.charAt(at)){
+                at++;
+            }
+            return "output differs from character " + at + " of " + compiled.stdout.length() + " compiled, "
+                    + interpreted.stdout.length() + " interpreted";
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,162 @@
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Writes a module as textual IR, bitcode, a native object file or native assembly, either to a
+ * file, to stdout ("-") or to a byte array.
+ */
+public class Emitter {
+
+    public enum Format {
+        LL("ll"), BC("bc"), OBJ("o"), ASM("s");
+
+        public final String extension;
+
+        Format(String extension){
+            this.extension = extension;
+        }
+    }
+
+    private static final String TRIPLE;
+    private static final String DATA_LAYOUT;
+    private static final String CPU;
+    private static final String FEATURES;
+
+    static {
+        LLVMInitializeNativeTarget();
+        LLVMInitializeNativeAsmPrinter();
+        LLVMInitializeNativeAsmParser();
+
+        BytePointer triple = LLVMGetDefaultTargetTriple();
+        BytePointer cpu = LLVMGetHostCPUName();
+        BytePointer features = LLVMGetHostCPUFeatures();
+        TRIPLE = triple.getString();
+        CPU = cpu.getString();
+        FEATURES = features.getString();
+        LLVMDisposeMessage(triple);
+        LLVMDisposeMessage(cpu);
+        LLVMDisposeMessage(features);
+
+        LLVMTargetMachineRef machine = createTargetMachine(0);
+        LLVMTargetDataRef data = LLVMCreateTargetDataLayout(machine);
+        BytePointer layout = LLVMCopyStringRepOfTargetData(data);
+        DATA_LAYOUT = layout.getString();
+        LLVMDisposeMessage(layout);
+        LLVMDisposeTargetData(data);
+        LLVMDisposeTargetMachine(machine);
+    }
+
+    public static Format formatOf(String name){
+        switch (name.substring(name.lastIndexOf('.') + 1)){
+            case "bc":
+                return Format.BC;
+            case "o":
+            case "obj":
+                return Format.OBJ;
+            case "s":
+            case "asm":
+                return Format.ASM;
+            default:
+                return Format.LL;
+        }
+    }
+
+    /**
+     * Sets the host triple and data layout so the optimizer knows pointer sizes and alignments.
+     */
+    public static void configureTarget(LLVMModuleRef module){
+        LLVMSetTarget(module, TRIPLE);
+        LLVMSetDataLayout(module, DATA_LAYOUT);
+    }
+
+    public static void emit(LLVMModuleRef module, Format format, int optLevel, String path) throws IOException {
+        if(path.equals("-")){
+            System.out.write(emit(module, format, optLevel));
+            System.out.flush();
+            return;
+        }
+
+        BytePointer error = new BytePointer();
+        boolean failed;
+        switch (format){
+            case BC:
+                failed = LLVMWriteBitcodeToFile(module, path) != 0;
+                break;
+            case OBJ:
+            case ASM:
+                LLVMTargetMachineRef machine = createTargetMachine(optLevel);
+                try (BytePointer file = new BytePointer(path)) {
+                    failed = LLVMTargetMachineEmitToFile(machine, module, file, fileType(format), error) != 0;
+                }
+                LLVMDisposeTargetMachine(machine);
+                break;
+            default:
+                failed = LLVMPrintModuleToFile(module, path, error) != 0;
+        }
+        if(failed){
+            String message = error.getString();
+            LLVMDisposeMessage(error);
+            throw new IOException("cannot write " + path + ": " + message);
+        }
+    }
+
+    public static byte[] emit(LLVMModuleRef module, Format format, int optLevel) throws IOException {
+        switch (format){
+            case BC:
+                return bitcode(module);
+            case OBJ:
+            case ASM:
+                LLVMTargetMachineRef machine = createTargetMachine(optLevel);
+                BytePointer error = new BytePointer();
+                LLVMMemoryBufferRef buffer = new LLVMMemoryBufferRef();
+                int failed = LLVMTargetMachineEmitToMemoryBuffer(machine, module, fileType(format), error, buffer);
+                LLVMDisposeTargetMachine(machine);
+                if(failed != 0){
+                    String message = error.getString();
+                    LLVMDisposeMessage(error);
+                    throw new IOException(message);
+                }
+                return toBytes(buffer);
+            default:
+                BytePointer text = LLVMPrintModuleToString(module);
+                byte[] bytes = text.getString().getBytes(StandardCharsets.UTF_8);
+                LLVMDisposeMessage(text);
+                return bytes;
+        }
+    }
+
+    public static byte[] bitcode(LLVMModuleRef module){
+        return toBytes(LLVMWriteBitcodeToMemoryBuffer(module));
+    }
+
+    private static LLVMTargetMachineRef createTargetMachine(int optLevel){
+        LLVMTargetRef target = new LLVMTargetRef();
+        BytePointer error = new BytePointer();
+        try (BytePointer triple = new BytePointer(TRIPLE)) {
+            if(LLVMGetTargetFromTriple(triple, target, error) != 0){
+                String message = error.getString();
+                LLVMDisposeMessage(error);
+                throw new IllegalStateException(message);
+            }
+        }
+        return LLVMCreateTargetMachine(target, TRIPLE, CPU, FEATURES, Math.min(optLevel, LLVMCodeGenLevelAggressive),
+                LLVMRelocPIC, LLVMCodeModelDefault);
+    }
+
+    private static int fileType(Format format){
+        return format == Format.ASM ? LLVMAssemblyFile : LLVMObjectFile;
+    }
+
+    private static byte[] toBytes(LLVMMemoryBufferRef buffer){
+        byte[] bytes = new byte[(int) LLVMGetBufferSize(buffer)];
+        LLVMGetBufferStart(buffer).get(bytes);
+        LLVMDisposeMemoryBuffer(buffer);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,565 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A hand-written replacement for SysYLexer that scans UTF-8 bytes, typically a memory-mapped
+ * file, in one pass. Tokens are kept in packed arrays (type, start, line, column and an index
+ * into a table of interned texts), and Token objects are only made when a parser pulls them.
+ * <p>
+ * The output is token for token what SysYLexer.g4 produces, including its corner cases: a
+ * "//" comment without a final newline and an unterminated "/*" are not comments but DIV
+ * tokens, "0x" without hex digits is INTEGER_CONST "0" followed by an IDENT, "089" is "0" and
+ * "89", and a lone '&amp;' or '|' is reported together with the character after it, which is
+ * skipped as well. Start and stop indexes and columns count code points, like a CharStream.
+ */
+public class FastLexer extends Recognizer<Integer, LexerATNSimulator> implements TokenSource {
+    private static final String[] LITERALS = new String[SysYLexer.VOCABULARY.getMaxTokenType() + 1];
+    private static final String[] KEYWORDS = {"const", "int", "void", "if", "else", "while", "break", "continue", "return"};
+    private static final int[] KEYWORD_TYPES = {SysYLexer.CONST, SysYLexer.INT, SysYLexer.VOID, SysYLexer.IF,
+            SysYLexer.ELSE, SysYLexer.WHILE, SysYLexer.BREAK, SysYLexer.CONTINUE, SysYLexer.RETURN};
+
+    static {
+        for(int type = 1;type < LITERALS.length;type++){
+            String literal = SysYLexer.VOCABULARY.getLiteralName(type);
+            if(literal != null){
+                LITERALS[type] = literal.substring(1, literal.length() - 1);
+            }
+        }
+    }
+
+    private ByteBuffer buffer;
+    private String sourceName;
+    // the CharStream of setInputStream, null for the bytes given to the constructor
+    private Pair<TokenSource, CharStream> source;
+    private TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+
+    // packed token data; texts[i] indexes symbols, -1 means the literal of the type
+    private int count = 0;
+    private int[] types;
+    private int[] starts;
+    private int[] lines;
+    private int[] columns;
+    private int[] texts;
+
+    // interned identifier and number texts, open addressing on the bytes
+    private String[] symbols = new String[256];
+    private int symbolCount = 0;
+    private int[] table = new int[1024];
+
+    private int newlineMissedFrom = Integer.MAX_VALUE;
+    private int closeMissedFrom = Integer.MAX_VALUE;
+
+    private boolean scanned = false;
+    private int next = 0;
+
+    // scanner position: byte offset, code point index, line and column
+    private int pos = 0;
+    private int index = 0;
+    private int line = 1;
+    private int column = 0;
+
+    public FastLexer(ByteBuffer buffer, String sourceName){
+        Arrays.fill(table, -1);
+        start(buffer, sourceName, null);
+    }
+
+    // the interned texts are kept, since they are compared by text
+    private void start(ByteBuffer buffer, String sourceName, CharStream input){
+        this.buffer = buffer;
+        this.sourceName = sourceName;
+        this.source = new Pair<>(this, input);
+        // SysY averages three to four bytes a token, so this rarely has to grow
+        int capacity = buffer.limit() / 4 + 16;
+        types = new int[capacity];
+        starts = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+        texts = new int[capacity];
+        count = 0;
+        newlineMissedFrom = Integer.MAX_VALUE;
+        closeMissedFrom = Integer.MAX_VALUE;
+        scanned = false;
+        next = 0;
+        pos = 0;
+        index = 0;
+        line = 1;
+        column = 0;
+    }
+
+    public static FastLexer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new FastLexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path.toString());
+        }
+    }
+
+    /**
+     * Scans the whole input into the packed arrays and returns the number of tokens, EOF included.
+     * Errors go to the error listeners as they are found.
+     */
+    public int scan(){
+        if(scanned){
+            return count;
+        }
+        scanned = true;
+        int limit = buffer.limit();
+        while(pos < limit){
+            int c = buffer.get(pos) & 0xff;
+            switch (c){
+                case ' ':
+                case '\t':
+                case '\r':
+                    pos++;
+                    index++;
+                    column++;
+                    break;
+                case '\n':
+                    pos++;
+                    index++;
+                    line++;
+                    column = 0;
+                    break;
+                case '/':
+                    if(!skipComment(limit)){
+                        single(SysYLexer.DIV);
+                    }
+                    break;
+                case '+': single(SysYLexer.PLUS); break;
+                case '-': single(SysYLexer.MINUS); break;
+                case '*': single(SysYLexer.MUL); break;
+                case '%': single(SysYLexer.MOD); break;
+                case '(': single(SysYLexer.L_PAREN); break;
+                case ')': single(SysYLexer.R_PAREN); break;
+                case '{': single(SysYLexer.L_BRACE); break;
+                case '}': single(SysYLexer.R_BRACE); break;
+                case '[': single(SysYLexer.L_BRACKT); break;
+                case ']': single(SysYLexer.R_BRACKT); break;
+                case ',': single(SysYLexer.COMMA); break;
+                case ';': single(SysYLexer.SEMICOLON); break;
+                case '=': pair(limit, '=', SysYLexer.EQ, SysYLexer.ASSIGN); break;
+                case '!': pair(limit, '=', SysYLexer.NEQ, SysYLexer.NOT); break;
+                case '<': pair(limit, '=', SysYLexer.LE, SysYLexer.LT); break;
+                case '>': pair(limit, '=', SysYLexer.GE, SysYLexer.GT); break;
+                case '&': doubled(limit, '&', SysYLexer.AND); break;
+                case '|': doubled(limit, '|', SysYLexer.OR); break;
+                default:
+                    if(isLetter(c) || c == '_'){
+                        identifier(limit);
+                    } else if(c >= '0' && c <= '9'){
+                        number(limit);
+                    } else {
+                        int startLine = line, startColumn = column;
+                        String text = consumeCodePoint(limit);
+                        error(startLine, startColumn, text);
+                    }
+            }
+        }
+        add(Token.EOF, index, line, column, -1);
+        return count;
+    }
+
+    public int size(){
+        return scan();
+    }
+
+    public int type(int i){
+        scan();
+        return types[i];
+    }
+
+    public String text(int i){
+        scan();
+        if(types[i] == Token.EOF){
+            return "<EOF>";
+        }
+        return texts[i] >= 0 ? symbols[texts[i]] : LITERALS[types[i]];
+    }
+
+    public int start(int i){
+        scan();
+        return starts[i];
+    }
+
+    public int line(int i){
+        scan();
+        return lines[i];
+    }
+
+    public int column(int i){
+        scan();
+        return columns[i];
+    }
+
+    @Override
+    public Token nextToken() {
+        scan();
+        int i = next < count ? next++ : count - 1;
+        String text = text(i);
+        int stop = types[i] == Token.EOF ? starts[i] - 1 : starts[i] + text.length() - 1;
+        return factory.create(source, types[i], text, Token.DEFAULT_CHANNEL, starts[i], stop, lines[i], columns[i]);
+    }
+
+    @Override
+    public int getLine() {
+        scan();
+        return lines[Math.min(next, count - 1)];
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        scan();
+        return columns[Math.min(next, count - 1)];
+    }
+
+    // null unless the input was given by setInputStream
+    @Override
+    public CharStream getInputStream() {
+        return source.b;
+    }
+
+    /**
+     * Starts over on the whole of a CharStream, as a Lexer would, by scanning its text encoded
+     * as UTF-8; token indexes count its code points as before. Tokens handed out earlier keep
+     * the input they were made from.
+     */
+    @Override
+    public void setInputStream(IntStream input) {
+        CharStream chars = (CharStream) input;
+        String text = chars.size() == 0 ? "" : chars.getText(Interval.of(0, chars.size() - 1));
+        start(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), chars.getSourceName(), chars);
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+
+    @Override
+    @Deprecated
+    public String[] getTokenNames() {
+        return SysYLexer.tokenNames;
+    }
+
+    @Override
+    public Vocabulary getVocabulary() {
+        return SysYLexer.VOCABULARY;
+    }
+
+    @Override
+    public String[] getRuleNames() {
+        return SysYLexer.ruleNames;
+    }
+
+    @Override
+    public String getGrammarFileName() {
+        return "SysYLexer.g4";
+    }
+
+    @Override
+    public ATN getATN() {
+        return SysYLexer._ATN;
+    }
+
+    private boolean skipComment(int limit){
+        if(pos + 1 >= limit){
+            return false;
+        }
+        int second = buffer.get(pos + 1);
+        int end;
+        if(second == '/'){
+            end = indexOf(pos + 2, limit, '\n', -1);
+            if(end < 0){
+                return false;
+            }
+            end += 1;
+        } else if(second == '*'){
+            end = indexOf(pos + 2, limit, '*', '/');
+            if(end < 0){
+                return false;
+            }
+            end += 2;
+        } else {
+            return false;
+        }
+        advance(end);
+        return true;
+    }
+
+    // first offset of first (followed by second unless second is -1), or -1
+    private int indexOf(int from, int limit, int first, int second){
+        // a failed search is remembered, or every '/' after an unclosed comment would rescan the rest
+        int missed = first == '\n' ? newlineMissedFrom : closeMissedFrom;
+        if(from >= missed){
+            return -1;
+        }
+        for(int i = from;i < limit;i++){
+            if(buffer.get(i) == first && (second < 0 || (i + 1 < limit && buffer.get(i + 1) == second))){
+                return i;
+            }
+        }
+        if(first == '\n'){
+            newlineMissedFrom = from;
+        } else {
+            closeMissedFrom = from;
+        }
+        return -1;
+    }
+
+    // moves to end, keeping line, column and code point index right across multi-byte characters
+    private void advance(int end){
+        for(;pos < end;pos++){
+            int b = buffer.get(pos);
+            if((b & 0xc0) == 0x80){
+                continue;
+            }
+            index++;
+            if(b == '\n'){
+                line++;
+                column = 0;
+            } else {
+                column++;
+            }
+        }
+    }
+
+    private void single(int type){
+        add(type, index, line, column, -1);
+        pos++;
+        index++;
+        column++;
+    }
+
+    private void pair(int limit, int second, int pairType, int singleType){
+        if(pos + 1 < limit && buffer.get(pos + 1) == second){
+            add(pairType, index, line, column, -1);
+            pos += 2;
+            index += 2;
+            column += 2;
+        } else {
+            single(singleType);
+        }
+    }
+
+    // "&&" and "||"; a single one fails only after looking at the next character, which goes too
+    private void doubled(int limit, int c, int type){
+        if(pos + 1 < limit && buffer.get(pos + 1) == c){
+            add(type, index, line, column, -1);
+            pos += 2;
+            index += 2;
+            column += 2;
+            return;
+        }
+        int startLine = line, startColumn = column;
+        pos++;
+        index++;
+        column++;
+        String text = String.valueOf((char) c);
+        if(pos < limit){
+            text += consumeCodePoint(limit);
+        }
+        error(startLine, startColumn, text);
+    }
+
+    private void identifier(int limit){
+        int start = pos;
+        int end = pos + 1;
+        while(end < limit){
+            int c = buffer.get(end);
+            if(!isLetter(c) && c != '_' && !(c >= '0' && c <= '9')){
+                break;
+            }
+            end++;
+        }
+        int length = end - start;
+        int type = keyword(start, length);
+        add(type, index, line, column, type == SysYLexer.IDENT ? intern(start, length) : -1);
+        pos = end;
+        index += length;
+        column += length;
+    }
+
+    private void number(int limit){
+        int start = pos;
+        int end = pos + 1;
+        if(buffer.get(start) == '0'){
+            int second = end < limit ? buffer.get(end) : -1;
+            if((second == 'x' || second == 'X') && end + 1 < limit && isHexDigit(buffer.get(end + 1))){
+                end += 2;
+                while(end < limit && isHexDigit(buffer.get(end))){
+                    end++;
+                }
+            } else if(second >= '1' && second <= '7'){
+                end++;
+                while(end < limit && buffer.get(end) >= '0' && buffer.get(end) <= '7'){
+                    end++;
+                }
+            }
+        } else {
+            while(end < limit && buffer.get(end) >= '0' && buffer.get(end) <= '9'){
+                end++;
+            }
+        }
+        int length = end - start;
+        add(SysYLexer.INTEGER_CONST, index, line, column, intern(start, length));
+        pos = end;
+        index += length;
+        column += length;
+    }
+
+    private int keyword(int start, int length){
+        for(int k = 0;k < KEYWORDS.length;k++){
+            String keyword = KEYWORDS[k];
+            if(keyword.length() != length){
+                continue;
+            }
+            int i = 0;
+            while(i < length && buffer.get(start + i) == keyword.charAt(i)){
+                i++;
+            }
+            if(i == length){
+                return KEYWORD_TYPES[k];
+            }
+        }
+        return SysYLexer.IDENT;
+    }
+
+    private int intern(int start, int length){
+        int hash = 0;
+        for(int i = 0;i < length;i++){
+            hash = hash * 31 + buffer.get(start + i);
+        }
+        int mask = table.length - 1;
+        for(int slot = spread(hash) & mask;;slot = (slot + 1) & mask){
+            int symbol = table[slot];
+            if(symbol < 0){
+                byte[] bytes = new byte[length];
+                buffer.get(start, bytes);
+                if(symbolCount == symbols.length){
+                    symbols = Arrays.copyOf(symbols, symbolCount * 2);
+                }
+                symbols[symbolCount] = new String(bytes, StandardCharsets.ISO_8859_1);
+                table[slot] = symbolCount;
+                if(++symbolCount * 2 > table.length){
+                    rehash();
+                }
+                return symbolCount - 1;
+            }
+            if(sameText(symbols[symbol], start, length)){
+                return symbol;
+            }
+        }
+    }
+
+    private boolean sameText(String text, int start, int length){
+        if(text.length() != length){
+            return false;
+        }
+        for(int i = 0;i < length;i++){
+            if(text.charAt(i) != buffer.get(start + i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(){
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for(int symbol = 0;symbol < symbolCount;symbol++){
+            int slot = spread(symbols[symbol].hashCode()) & mask;
+            while(table[slot] >= 0){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = symbol;
+        }
+    }
+
+    // consumes one character the grammar has no use for and returns it for the error message
+    private String consumeCodePoint(int limit){
+        int b = buffer.get(pos) & 0xff;
+        int length = b < 0x80 ? 1 : b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        length = Math.min(length, limit - pos);
+        byte[] bytes = new byte[length];
+        buffer.get(pos, bytes);
+        pos += length;
+        index++;
+        if(b == '\n'){
+            line++;
+            column = 0;
+        } else {
+            column++;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void error(int startLine, int startColumn, String text){
+        String message = "token recognition error at: '" + getErrorDisplay(text) + "'";
+        getErrorListenerDispatch().syntaxError(this, null, startLine, startColumn, message, null);
+    }
+
+    private String getErrorDisplay(String text){
+        StringBuilder display = new StringBuilder();
+        for(char c: text.toCharArray()){
+            switch (c){
+                case '\n': display.append("\\n"); break;
+                case '\t': display.append("\\t"); break;
+                case '\r': display.append("\\r"); break;
+                default: display.append(c);
+            }
+        }
+        return display.toString();
+    }
+
+    private void add(int type, int start, int line, int column, int text){
+        if(count == types.length){
+            int capacity = count + (count >> 1);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+        types[count] = type;
+        starts[count] = start;
+        lines[count] = line;
+        columns[count] = column;
+        texts[count] = text;
+        count++;
+    }
+
+    // names like t1, t2, t3 hash to neighbouring slots, which linear probing turns into long runs
+    private static int spread(int hash){
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isLetter(int c){
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isHexDigit(int c){
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+}
@@ -0,0 +1,63 @@
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Puts what the {@link CallGraph} found on the functions of a whole-program module, after it
+ * was generated and linked and before it is optimized at -O1 and above. Every function but main becomes
+ * internal, since nothing outside the program calls it, and gets the attributes that let LLVM
+ * move, merge and drop calls: none unwinds, array parameters are never captured, and
+ * readnone, readonly, norecurse, willreturn and noalias where they were shown to hold. In an
+ * instrumented module every function writes its counters, so none is readnone or readonly.
+ */
+public class FunctionAttributes {
+
+    public static void apply(CallGraph graph, LLVMModuleRef module, boolean instrumented){
+        LLVMContextRef context = LLVMGetModuleContext(module);
+        for(int f = 0;f < graph.size();f++){
+            if(graph.isLibrary(f)){
+                continue;
+            }
+            LLVMValueRef function = LLVMGetNamedFunction(module, graph.names.get(f));
+            if(function == null || LLVMIsDeclaration(function) != 0){
+                continue;
+            }
+            if(!graph.names.get(f).equals("main")){
+                LLVMSetLinkage(function, LLVMInternalLinkage);
+            }
+            add(context, function, LLVMAttributeFunctionIndex, "nounwind");
+            boolean readsParams = false;
+            boolean writesParams = false;
+            for(int i = 0;i < graph.arrayParam[f].length;i++){
+                readsParams |= graph.readsParam[f][i];
+                writesParams |= graph.writesParam[f][i];
+            }
+            if(!instrumented && !graph.io[f] && !graph.writesGlobals[f] && !writesParams){
+                boolean reads = graph.readsGlobals[f] || readsParams;
+                add(context, function, LLVMAttributeFunctionIndex, reads ? "readonly" : "readnone");
+            }
+            if(!graph.recursive[f]){
+                add(context, function, LLVMAttributeFunctionIndex, "norecurse");
+            }
+            if(graph.returns[f]){
+                add(context, function, LLVMAttributeFunctionIndex, "willreturn");
+            }
+            for(int i = 0;i < graph.arrayParam[f].length;i++){
+                if(graph.arrayParam[f][i]){
+                    add(context, function, i + 1, "nocapture");
+                    if(graph.unaliased[f][i]){
+                        add(context, function, i + 1, "noalias");
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(LLVMContextRef context, LLVMValueRef function, int index, String name){
+        int kind = LLVMGetEnumAttributeKindForName(name, name.length());
+        LLVMAddAttributeAtIndex(function, index, LLVMCreateEnumAttribute(context, kind, 0));
+    }
+
+}
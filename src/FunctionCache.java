@@ -0,0 +1,282 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of the unoptimized bitcode of single functions. The key hashes a function's
+ * tokens, with the line of each starttime() and stoptime() call, which the bitcode passes,
+ * together with everything its code depends on: the global declarations it names
+ * (transitively, since consts can be defined in terms of other consts), the signatures of the
+ * functions it calls, the codegen mode and the class files of the code generator. Only
+ * functions whose key misses go through {@link LLVMVisitor}; the rest are read back and
+ * linked into a module holding the globals.
+ * Entries are evicted least recently used first once the directory outgrows its limit.
+ */
+public class FunctionCache {
+    // bump whenever codegen changes so stale bitcode is never reused
+    private static final String VERSION = "5";
+    // the classes whose code decides the bitcode of a function; their bytes go into every key,
+    // so a build that changes them does not read back what an older build stored
+    private static final Class<?>[] CODEGEN = {LLVMVisitor.class, SSABuilder.class, ConstEvaluator.class,
+            Resolver.class, Symbol.class, SysYLib.class, Compiler.class};
+    // starttime and stoptime, whose calls pass their line, which therefore goes into the key too
+    private static final Set<String> LINE_PASSING = SysYLib.FUNCTIONS.stream()
+            .filter(SysYLib.Function::passesLine).map(function -> function.name)
+            .collect(Collectors.toSet());
+    private static String revision = null;
+    private static final Map<Path, FunctionCache> caches = new HashMap<>();
+
+    private final Path dir;
+    private final long limit;
+    // file name -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public static synchronized FunctionCache of(Options options){
+        Path dir = Paths.get(options.cacheDir).toAbsolutePath();
+        return caches.computeIfAbsent(dir, key -> new FunctionCache(key, options.cacheLimit));
+    }
+
+    private FunctionCache(Path dir, long limit){
+        this.dir = dir;
+        this.limit = limit;
+        try {
+            Files.createDirectories(dir);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dir)) {
+                files = new ArrayList<>(list.filter(p -> p.toString().endsWith(".bc")).toList());
+            }
+            Map<Path, FileTime> times = new HashMap<>();
+            for(Path file: files){
+                times.put(file, Files.getLastModifiedTime(file));
+            }
+            files.sort(Comparator.comparing(times::get));
+            for(Path file: files){
+                long length = Files.size(file);
+                entries.put(file.getFileName().toString(), length);
+                size += length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public LLVMModuleRef generate(SysYParser.ProgramContext tree, boolean ssa, boolean parallel, LLVMContextRef context){
+        LLVMModuleRef module = Compiler.generate(tree, ssa, context, funcDef -> false);
+        Map<String, List<ParseTree>> globals = globalDeclarations(tree);
+
+        List<SysYParser.FuncDefContext> funcDefs = tree.compUnit().funcDef();
+        Map<SysYParser.FuncDefContext, LLVMModuleRef> modules = new HashMap<>();
+        List<SysYParser.FuncDefContext> misses = new ArrayList<>();
+        List<String> missKeys = new ArrayList<>();
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            String key = key(funcDef, globals, ssa);
+            byte[] bitcode = load(key);
+            if(bitcode != null){
+                try {
+                    modules.put(funcDef, Compiler.readBitcode(context, bitcode));
+                    continue;
+                } catch (CompileException e) {
+                    remove(key);
+                }
+            }
+            misses.add(funcDef);
+            missKeys.add(key);
+        }
+
+        List<byte[]> generated = Compiler.generateEach(tree, misses, ssa, parallel, context);
+        for(int i = 0;i < misses.size();i++){
+            store(missKeys.get(i), generated.get(i));
+            modules.put(misses.get(i), Compiler.readBitcode(context, generated.get(i)));
+        }
+
+        List<LLVMModuleRef> ordered = new ArrayList<>();
+        for(SysYParser.FuncDefContext funcDef: funcDefs){
+            ordered.add(modules.get(funcDef));
+        }
+        Compiler.linkAll(module, ordered);
+        return module;
+    }
+
+    public synchronized String stats(){
+        return String.format("cache: %d hits, %d misses, %d evictions, %d entries, %d KiB",
+                hits, misses, evictions, entries.size(), size >> 10);
+    }
+
+    private synchronized byte[] load(String key){
+        String name = key + ".bc";
+        if(entries.get(name) != null){
+            Path file = dir.resolve(name);
+            try {
+                byte[] bitcode = Files.readAllBytes(file);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                hits++;
+                return bitcode;
+            } catch (IOException e) {
+                forget(name);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private synchronized void store(String key, byte[] bitcode){
+        String name = key + ".bc";
+        try {
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(temp, bitcode);
+            Files.move(temp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // a cache that cannot be written only costs time
+            return;
+        }
+        forget(name);
+        entries.put(name, (long) bitcode.length);
+        size += bitcode.length;
+
+        Iterator<Map.Entry<String, Long>> oldest = entries.entrySet().iterator();
+        while(size > limit && oldest.hasNext()){
+            Map.Entry<String, Long> entry = oldest.next();
+            if(entry.getKey().equals(name)){
+                continue;
+            }
+            dir.resolve(entry.getKey()).toFile().delete();
+            size -= entry.getValue();
+            oldest.remove();
+            evictions++;
+        }
+    }
+
+    // an entry that was read but could not be used counts as a miss
+    private synchronized void remove(String key){
+        String name = key + ".bc";
+        hits--;
+        misses++;
+        dir.resolve(name).toFile().delete();
+        forget(name);
+    }
+
+    private void forget(String name){
+        Long length = entries.remove(name);
+        if(length != null){
+            size -= length;
+        }
+    }
+
+    // name -> declarations of that name at file level: global consts/vars and function signatures
+    private static Map<String, List<ParseTree>> globalDeclarations(SysYParser.ProgramContext tree){
+        Map<String, List<ParseTree>> globals = new HashMap<>();
+        for(ParseTree child: tree.compUnit().children){
+            if(child instanceof SysYParser.FuncDefContext){
+                SysYParser.FuncDefContext funcDef = (SysYParser.FuncDefContext) child;
+                // only the signature matters to callers, the body is behind the symbol
+                List<ParseTree> signature = new ArrayList<>(funcDef.children);
+                signature.remove(funcDef.block());
+                globals.computeIfAbsent(funcDef.IDENT().getText(), k -> new ArrayList<>()).addAll(signature);
+            } else if(child instanceof SysYParser.DeclContext){
+                SysYParser.DeclContext decl = (SysYParser.DeclContext) child;
+                List<TerminalNode> names = new ArrayList<>();
+                if(decl.constDecl() != null){
+                    decl.constDecl().constDef().forEach(def -> names.add(def.IDENT()));
+                } else {
+                    decl.varDecl().varDef().forEach(def -> names.add(def.IDENT()));
+                }
+                for(TerminalNode name: names){
+                    globals.computeIfAbsent(name.getText(), k -> new ArrayList<>()).add(decl);
+                }
+            }
+        }
+        return globals;
+    }
+
+    private static String key(SysYParser.FuncDefContext funcDef, Map<String, List<ParseTree>> globals, boolean ssa){
+        StringBuilder text = new StringBuilder(VERSION).append(' ').append(revision()).append(ssa ? " ssa\n" : "\n");
+        appendTokens(funcDef, text);
+
+        Set<String> seen = new HashSet<>();
+        Set<ParseTree> included = new LinkedHashSet<>();
+        Deque<ParseTree> pending = new ArrayDeque<>();
+        pending.add(funcDef);
+        while(!pending.isEmpty()){
+            for(String ident: Compiler.identifiers(pending.poll())){
+                if(seen.add(ident) && globals.containsKey(ident)){
+                    for(ParseTree decl: globals.get(ident)){
+                        if(decl != funcDef && included.add(decl)){
+                            pending.add(decl);
+                        }
+                    }
+                }
+            }
+        }
+        for(ParseTree decl: included){
+            text.append('\n');
+            appendTokens(decl, text);
+        }
+
+        return sha256(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static synchronized String revision(){
+        if(revision == null){
+            ByteArrayOutputStream classes = new ByteArrayOutputStream();
+            Deque<Class<?>> pending = new ArrayDeque<>(Arrays.asList(CODEGEN));
+            while(!pending.isEmpty()){
+                Class<?> type = pending.poll();
+                pending.addAll(Arrays.asList(type.getDeclaredClasses()));
+                String name = type.getName();
+                try (InputStream in = type.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+                    if(in == null){
+                        throw new IllegalStateException("cannot read the class file of " + type.getName());
+                    }
+                    in.transferTo(classes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            revision = sha256(classes.toByteArray());
+        }
+        return revision;
+    }
+
+    private static String sha256(byte[] bytes){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder();
+            for(byte b: digest){
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // tokens separated by spaces: whitespace and comments do not change the key, "int a" and "inta" do
+    private static void appendTokens(ParseTree tree, StringBuilder text){
+        for(TerminalNode terminal: Compiler.terminals(tree)){
+            text.append(terminal.getText());
+            if(LINE_PASSING.contains(terminal.getText())){
+                text.append('@').append(terminal.getSymbol().getLine());
+            }
+            text.append(' ');
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Runs {@link Bytecode} without LLVM, for the programs of a test run where compiling to native
+ * code would take longer than running them. The registers of every call are one int array, the
+ * frame of a callee starting where the frame of its caller ends, and calls and returns only
+ * move the frame pointer and a stack of return addresses kept beside it, so deep recursion
+ * does not use the Java stack. Memory grows with the local arrays of the calls running.
+ * <p>
+ * The runtime library is built in and behaves as runtime/sylib.c does: input and output are
+ * buffered, output is flushed before reading, and the timers are reported on stderr at exit.
+ */
+public class Interpreter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_TIMERS = 1024;
+
+    private final Bytecode program;
+    private final InputStream in;
+    private final OutputStream out;
+    private final PrintStream err;
+    private int[] memory;
+
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int inputPosition = 0;
+    private int inputLength = 0;
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputLength = 0;
+
+    private final int[] timerLines = new int[2 * MAX_TIMERS];
+    private final long[] timerMicros = new long[MAX_TIMERS];
+    private int timerCount = 0;
+    private long timerStart = 0;
+
+    private Interpreter(Bytecode program, InputStream in, OutputStream out, PrintStream err){
+        this.program = program;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs main and returns its exit code, the low byte of what it returns. A division by zero,
+     * MIN_VALUE / -1 or MIN_VALUE % -1, or an access past the end of the whole memory stops the
+     * program with an IllegalStateException. An access that only leaves a local array for the
+     * memory next to it is not caught.
+     */
+    public static int run(Bytecode program, InputStream in, OutputStream out, PrintStream err) throws IOException {
+        Interpreter interpreter = new Interpreter(program, in, out, err);
+        int exitCode = interpreter.execute() & 0xff;
+        interpreter.finish();
+        return exitCode;
+    }
+
+    private int execute() throws IOException {
+        final int[] code = program.code;
+        int[] registers = new int[Math.max(1 << 16, 2 * program.frameSizes[program.main])];
+        int[] memory = this.memory = Arrays.copyOf(program.memory, program.memory.length + (1 << 16));
+        // return address, frame pointer, result register and stack pointer of each call running
+        int[] calls = new int[4 * 256];
+        int depth = 0;
+        int fp = 0;
+        int sp = program.memory.length;
+        int pc = program.entries[program.main];
+        try {
+            while(true){
+                switch (code[pc]){
+                    case Bytecode.MOV:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case Bytecode.ADD:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] + registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.SUB:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] - registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.MUL:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] * registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.DIV:
+                        if(registers[fp + code[pc + 2]] == Integer.MIN_VALUE && registers[fp + code[pc + 3]] == -1){
+                            throw new ArithmeticException();
+                        }
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] / registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.REM:
+                        if(registers[fp + code[pc + 2]] == Integer.MIN_VALUE && registers[fp + code[pc + 3]] == -1){
+                            throw new ArithmeticException();
+                        }
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] % registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.EQ:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] == registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.NE:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] != registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.LT:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] < registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.GT:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] > registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.LE:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] <= registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.GE:
+                        registers[fp + code[pc + 1]] = registers[fp + code[pc + 2]] >= registers[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case Bytecode.LOAD:
+                        registers[fp + code[pc + 1]] = memory[registers[fp + code[pc + 2]]];
+                        pc += 3;
+                        break;
+                    case Bytecode.LOADX:
+                        registers[fp + code[pc + 1]] = memory[registers[fp + code[pc + 2]] + registers[fp + code[pc + 3]]];
+                        pc += 4;
+                        break;
+                    case Bytecode.STORE:
+                        memory[registers[fp + code[pc + 1]]] = registers[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case Bytecode.STOREX:
+                        memory[registers[fp + code[pc + 1]] + registers[fp + code[pc + 2]]] = registers[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case Bytecode.ALLOCA:
+                        registers[fp + code[pc + 1]] = sp;
+                        sp += code[pc + 2];
+                        if(sp > memory.length){
+                            memory = this.memory = Arrays.copyOf(memory, Math.max(2 * memory.length, sp));
+                        }
+                        pc += 3;
+                        break;
+                    case Bytecode.CLEAR: {
+                        int address = registers[fp + code[pc + 1]];
+                        Arrays.fill(memory, address, address + code[pc + 2], 0);
+                        pc += 3;
+                        break;
+                    }
+                    case Bytecode.COPY:
+                        System.arraycopy(memory, registers[fp + code[pc + 2]], memory, registers[fp + code[pc + 1]], code[pc + 3]);
+                        pc += 4;
+                        break;
+                    case Bytecode.CONSTS:
+                        System.arraycopy(code, pc + 3, registers, fp + code[pc + 1], code[pc + 2]);
+                        pc += 3 + code[pc + 2];
+                        break;
+                    case Bytecode.CALL: {
+                        int callee = code[pc + 3];
+                        int count = code[pc + 4];
+                        int frame = fp + code[pc + 2];
+                        if(frame + program.frameSizes[callee] > registers.length){
+                            registers = Arrays.copyOf(registers, Math.max(2 * registers.length, frame + program.frameSizes[callee]));
+                        }
+                        for(int i = 0;i < count;i++){
+                            registers[frame + i] = registers[fp + code[pc + 5 + i]];
+                        }
+                        if(4 * depth == calls.length){
+                            calls = Arrays.copyOf(calls, 2 * calls.length);
+                        }
+                        calls[4 * depth] = pc + 5 + count;
+                        calls[4 * depth + 1] = fp;
+                        calls[4 * depth + 2] = code[pc + 1];
+                        calls[4 * depth + 3] = sp;
+                        depth++;
+                        fp = frame;
+                        pc = program.entries[callee];
+                        break;
+                    }
+                    case Bytecode.LIB:
+                        registers[fp + code[pc + 1]] = library(code[pc + 2], registers, fp, pc + 4);
+                        pc += 4 + code[pc + 3];
+                        break;
+                    case Bytecode.JMP:
+                        pc = code[pc + 1];
+                        break;
+                    case Bytecode.JNZ:
+                        pc = registers[fp + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case Bytecode.JZ:
+                        pc = registers[fp + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case Bytecode.JEQ:
+                        pc = registers[fp + code[pc + 1]] == registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.JNE:
+                        pc = registers[fp + code[pc + 1]] != registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.JLT:
+                        pc = registers[fp + code[pc + 1]] < registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.JGT:
+                        pc = registers[fp + code[pc + 1]] > registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.JLE:
+                        pc = registers[fp + code[pc + 1]] <= registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.JGE:
+                        pc = registers[fp + code[pc + 1]] >= registers[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case Bytecode.RET:
+                    case Bytecode.RETV: {
+                        int value = code[pc] == Bytecode.RET ? registers[fp + code[pc + 1]] : 0;
+                        if(depth == 0){
+                            return value;
+                        }
+                        depth--;
+                        pc = calls[4 * depth];
+                        fp = calls[4 * depth + 1];
+                        registers[fp + calls[4 * depth + 2]] = value;
+                        sp = calls[4 * depth + 3];
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } catch (ArithmeticException e) {
+            // Java only throws on zero, native code also traps on MIN_VALUE / -1, which is checked above
+            throw new IllegalStateException("division by zero or overflow in " + program.functionAt(pc));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("memory access past the end of memory in " + program.functionAt(pc));
+        }
+    }
+
+    // the arguments are the registers named from code[args]
+    private int library(int function, int[] registers, int fp, int args) throws IOException {
+        int[] code = program.code;
+        switch (function){
+            case Bytecode.GETINT:
+                return getint();
+            case Bytecode.GETCH:
+                return nextChar();
+            case Bytecode.GETARRAY: {
+                int address = registers[fp + code[args]];
+                int n = getint();
+                for(int i = 0;i < n;i++){
+                    memory[address + i] = getint();
+                }
+                return n;
+            }
+            case Bytecode.PUTINT:
+                putint(registers[fp + code[args]]);
+                return 0;
+            case Bytecode.PUTCH:
+                putChar(registers[fp + code[args]]);
+                return 0;
+            case Bytecode.PUTARRAY: {
+                int n = registers[fp + code[args]];
+                int address = registers[fp + code[args + 1]];
+                putint(n);
+                putChar(':');
+                for(int i = 0;i < n;i++){
+                    putChar(' ');
+                    putint(memory[address + i]);
+                }
+                putChar('\n');
+                return 0;
+            }
+            case Bytecode.STARTTIME:
+                if(timerCount < MAX_TIMERS){
+                    timerLines[2 * timerCount] = registers[fp + code[args]];
+                }
+                timerStart = System.nanoTime();
+                return 0;
+            default:
+                long micros = (System.nanoTime() - timerStart) / 1000;
+                if(timerCount < MAX_TIMERS){
+                    timerLines[2 * timerCount + 1] = registers[fp + code[args]];
+                    timerMicros[timerCount++] = micros;
+                }
+                return 0;
+        }
+    }
+
+    private int nextChar() throws IOException {
+        if(inputPosition == inputLength){
+            // a prompt written before waiting for input should be visible
+            flush();
+            int n = in.read(input, 0, BUFFER_SIZE);
+            if(n <= 0){
+                return -1;
+            }
+            inputPosition = 0;
+            inputLength = n;
+        }
+        return input[inputPosition++] & 0xff;
+    }
+
+    private int getint() throws IOException {
+        int c = nextChar();
+        while(c != -1 && c != '-' && (c < '0' || c > '9')){
+            c = nextChar();
+        }
+        boolean negative = c == '-';
+        if(negative){
+            c = nextChar();
+        }
+        int value = 0;
+        while(c >= '0' && c <= '9'){
+            value = value * 10 + (c - '0');
+            c = nextChar();
+        }
+        // the character after the number is left for the next read, as in sylib.c
+        if(c != -1){
+            inputPosition--;
+        }
+        return negative ? -value : value;
+    }
+
+    private void putint(int value) throws IOException {
+        String digits = Integer.toString(value);
+        for(int i = 0;i < digits.length();i++){
+            putChar(digits.charAt(i));
+        }
+    }
+
+    private void putChar(int c) throws IOException {
+        if(outputLength == BUFFER_SIZE){
+            flush();
+        }
+        output[outputLength++] = (byte) c;
+    }
+
+    private void flush() throws IOException {
+        out.write(output, 0, outputLength);
+        out.flush();
+        outputLength = 0;
+    }
+
+    private void finish() throws IOException {
+        flush();
+        if(timerCount == 0){
+            return;
+        }
+        long total = 0;
+        for(int i = 0;i < timerCount;i++){
+            err.printf("Timer@%04d-%04d: ", timerLines[2 * i], timerLines[2 * i + 1]);
+            printTime(timerMicros[i]);
+            total += timerMicros[i];
+        }
+        err.print("TOTAL: ");
+        printTime(total);
+    }
+
+    private void printTime(long micros){
+        err.printf("%dH-%dM-%dS-%dus%n", micros / 3600000000L, micros / 60000000L % 60, micros / 1000000 % 60,
+                micros % 1000000);
+    }
+
+}
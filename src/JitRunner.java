@@ -0,0 +1,201 @@
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Runs a module's main in-process on MCJIT and captures what it writes to fd 1.
+ * The engine takes ownership of the module and disposes it when the run is over.
+ * Calls of the runtime library go to the shared library of {@link SysYLib}, loaded into
+ * the process on the first run.
+ */
+public class JitRunner {
+
+    public static class Result {
+        public final int exitCode;
+        public final String stdout;
+
+        public Result(int exitCode, String stdout){
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+        }
+    }
+
+    // what the capture module calls; MCJIT would bind them to a function of the program of the same name
+    private static final String[] CAPTURE_CALLS = {"fflush", "dup", "dup2", "close", "creat", "open",
+            "__sysy_capture_begin", "__sysy_capture_end"};
+
+    static {
+        LLVMLinkInMCJIT();
+        LLVMInitializeNativeAsmPrinter();
+        LLVMInitializeNativeAsmParser();
+        LLVMInitializeNativeTarget();
+    }
+
+    public static Result runFile(String path, Options options) throws IOException {
+        return run(Compiler.compile(path, options), options.optLevel);
+    }
+
+    public static Result run(LLVMModuleRef module, int optLevel) throws IOException {
+        return run(module, optLevel, null);
+    }
+
+    /**
+     * Runs with fd 0 read from the input file for the duration of the run, if one is given.
+     *
+     * @throws CompileException if the program defines, with external linkage, a function the
+     *                          capture calls, as it can at -O0
+     */
+    public static Result run(LLVMModuleRef module, int optLevel, String input) throws IOException {
+        boolean runtime = SysYLib.load();
+        String missing = SysYLib.calledBy(module);
+        if(!runtime && missing != null){
+            LLVMDisposeModule(module);
+            throw new IllegalStateException("calls " + missing + " but the runtime library " + SysYLib.path()
+                    + " is missing, build it with make runtime");
+        }
+        for(String name: CAPTURE_CALLS){
+            LLVMValueRef function = LLVMGetNamedFunction(module, name);
+            if(function != null && LLVMIsDeclaration(function) == 0 && LLVMGetLinkage(function) != LLVMInternalLinkage){
+                LLVMDisposeModule(module);
+                throw new CompileException("a program that defines a function named " + name
+                        + " cannot be run in-process, the output is captured with the C library's");
+            }
+        }
+        Path output = Files.createTempFile("sysy", ".out");
+        LLVMModuleRef helper = buildCaptureModule(LLVMGetModuleContext(module), output.toString(), input, runtime);
+
+        LLVMMCJITCompilerOptions options = new LLVMMCJITCompilerOptions();
+        LLVMInitializeMCJITCompilerOptions(options, options.sizeof());
+        options.OptLevel(optLevel);
+        LLVMExecutionEngineRef engine = new LLVMExecutionEngineRef();
+        BytePointer error = new BytePointer();
+        if(LLVMCreateMCJITCompilerForModule(engine, module, options, options.sizeof(), error) != 0){
+            String message = error.getString();
+            LLVMDisposeMessage(error);
+            LLVMDisposeModule(helper);
+            Files.deleteIfExists(output);
+            throw new IllegalStateException(message);
+        }
+        LLVMAddModule(engine, helper);
+
+        try {
+            LLVMValueRef main = findFunction(engine, "main");
+            LLVMValueRef begin = findFunction(engine, "__sysy_capture_begin");
+            LLVMValueRef end = findFunction(engine, "__sysy_capture_end");
+
+            System.out.flush();
+            LLVMGenericValueRef saved = LLVMRunFunction(engine, begin, 0, (PointerPointer<Pointer>) null);
+            LLVMGenericValueRef ret = LLVMRunFunction(engine, main, 0, (PointerPointer<Pointer>) null);
+            // as at exit, which is where an instrumented module writes its profile
+            LLVMRunStaticDestructors(engine);
+            LLVMGenericValueRef done;
+            try (PointerPointer<LLVMGenericValueRef> args = new PointerPointer<>(new LLVMGenericValueRef[]{saved})) {
+                done = LLVMRunFunction(engine, end, 1, args);
+            }
+            int exitCode = (int) LLVMGenericValueToInt(ret, 1) & 0xff;
+            LLVMDisposeGenericValue(saved);
+            LLVMDisposeGenericValue(ret);
+            LLVMDisposeGenericValue(done);
+
+            return new Result(exitCode, new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+        } finally {
+            LLVMDisposeExecutionEngine(engine);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static LLVMValueRef findFunction(LLVMExecutionEngineRef engine, String name){
+        try (PointerPointer<LLVMValueRef> function = new PointerPointer<>(1)) {
+            if(LLVMFindFunction(engine, name, function) != 0){
+                throw new IllegalStateException("function " + name + " is not defined");
+            }
+            return function.get(LLVMValueRef.class, 0);
+        }
+    }
+
+    /*
+     * MCJIT can only call functions shaped like main, so the redirect is done by two small
+     * generated functions instead of passing the path in:
+     *   i32 __sysy_capture_begin()    flush, dup fd 1 and point it at the capture file
+     *   i32 __sysy_capture_end(i32)   flush and restore the saved fd
+     * With the runtime library loaded, begin also resets it and end also flushes its buffer.
+     * Given an input file, begin also points fd 0 at it, keeping the saved fd in a global, and
+     * end restores it.
+     */
+    private static LLVMModuleRef buildCaptureModule(LLVMContextRef context, String path, String input,
+                                                    boolean runtime){
+        LLVMModuleRef module = LLVMModuleCreateWithNameInContext("capture", context);
+        LLVMBuilderRef builder = LLVMCreateBuilderInContext(context);
+        LLVMTypeRef i32Type = LLVMInt32TypeInContext(context);
+        LLVMTypeRef i8PtrType = LLVMPointerType(LLVMInt8TypeInContext(context), 0);
+
+        LLVMValueRef fflush = declare(module, "fflush", i32Type, i8PtrType);
+        LLVMValueRef dup = declare(module, "dup", i32Type, i32Type);
+        LLVMValueRef dup2 = declare(module, "dup2", i32Type, i32Type, i32Type);
+        LLVMValueRef close = declare(module, "close", i32Type, i32Type);
+        LLVMValueRef creat = declare(module, "creat", i32Type, i8PtrType, i32Type);
+        LLVMValueRef open = declare(module, "open", i32Type, i8PtrType, i32Type);
+        LLVMValueRef stdoutFd = LLVMConstInt(i32Type, 1, 0);
+        LLVMValueRef stdinFd = LLVMConstInt(i32Type, 0, 0);
+        LLVMValueRef savedStdin = LLVMAddGlobal(module, i32Type, "__sysy_saved_stdin");
+        LLVMSetInitializer(savedStdin, stdinFd);
+        LLVMSetLinkage(savedStdin, LLVMInternalLinkage);
+
+        LLVMValueRef begin = declare(module, "__sysy_capture_begin", i32Type);
+        LLVMPositionBuilderAtEnd(builder, LLVMAppendBasicBlockInContext(context, begin, "entry"));
+        if(runtime){
+            call(builder, declare(module, SysYLib.RESET, LLVMVoidTypeInContext(context)));
+        }
+        call(builder, fflush, LLVMConstPointerNull(i8PtrType));
+        LLVMValueRef saved = call(builder, dup, stdoutFd);
+        LLVMValueRef fd = call(builder, creat, LLVMBuildGlobalStringPtr(builder, path, "path"), LLVMConstInt(i32Type, 0644, 0));
+        call(builder, dup2, fd, stdoutFd);
+        call(builder, close, fd);
+        if(input != null){
+            LLVMBuildStore(builder, call(builder, dup, stdinFd), savedStdin);
+            LLVMValueRef inputFd = call(builder, open, LLVMBuildGlobalStringPtr(builder, input, "input"), stdinFd);
+            call(builder, dup2, inputFd, stdinFd);
+            call(builder, close, inputFd);
+        }
+        LLVMBuildRet(builder, saved);
+
+        LLVMValueRef end = declare(module, "__sysy_capture_end", i32Type, i32Type);
+        LLVMPositionBuilderAtEnd(builder, LLVMAppendBasicBlockInContext(context, end, "entry"));
+        if(runtime){
+            call(builder, declare(module, SysYLib.FINISH, LLVMVoidTypeInContext(context)));
+        }
+        call(builder, fflush, LLVMConstPointerNull(i8PtrType));
+        call(builder, dup2, LLVMGetParam(end, 0), stdoutFd);
+        call(builder, close, LLVMGetParam(end, 0));
+        if(input != null){
+            LLVMValueRef stdin = LLVMBuildLoad(builder, savedStdin, "");
+            call(builder, dup2, stdin, stdinFd);
+            call(builder, close, stdin);
+        }
+        LLVMBuildRet(builder, LLVMConstInt(i32Type, 0, 0));
+
+        LLVMDisposeBuilder(builder);
+        return module;
+    }
+
+    private static LLVMValueRef declare(LLVMModuleRef module, String name, LLVMTypeRef retType, LLVMTypeRef... params){
+        try (PointerPointer<LLVMTypeRef> types = new PointerPointer<>(params)) {
+            return LLVMAddFunction(module, name, LLVMFunctionType(retType, types, params.length, 0));
+        }
+    }
+
+    private static LLVMValueRef call(LLVMBuilderRef builder, LLVMValueRef function, LLVMValueRef... args){
+        try (PointerPointer<LLVMValueRef> array = new PointerPointer<>(args)) {
+            return LLVMBuildCall(builder, function, array, args.length, "");
+        }
+    }
+
+}
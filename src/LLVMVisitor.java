@@ -1,32 +1,97 @@
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
-import org.bytedeco.javacpp.Pointer;
-import org.bytedeco.javacpp.PointerPointer;
 import org.bytedeco.llvm.LLVM.*;
 
-import java.util.HashMap;
-import java.util.Objects;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Stack;
+import java.util.function.Predicate;
 
 import static org.bytedeco.llvm.global.LLVM.*;
 
-public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
-    private final LLVMModuleRef module = LLVMModuleCreateWithName("module");
-    private final LLVMBuilderRef builder = LLVMCreateBuilder();
-    private final LLVMTypeRef i32Type = LLVMInt32Type();
-    private final LLVMTypeRef voidType = LLVMVoidType();
-    private final LLVMValueRef zero = LLVMConstInt(i32Type, 0, 0);
-    private final HashMap<String, String> retTypes = new HashMap<>();
-
-    private final Scope global = new Scope("global", null);
-    private Scope scope = null;
+/**
+ * Builds one module from a parse tree. Closing the visitor frees its builder and native
+ * buffers, and the module too unless {@link #getModule()} handed it out, as when codegen
+ * failed halfway.
+ */
+public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef> implements AutoCloseable {
+    // up to this many nonzero constants in a local array initializer are stored one by one
+    private static final int FEW_STORES = 8;
+    // a global array ending in at least this many zero elements gets them as one zeroinitializer
+    private static final int ZERO_TAIL = 16;
+
+    private final LLVMContextRef context;
+    private final LLVMModuleRef module;
+    private final LLVMBuilderRef builder;
+    private final LLVMTypeRef i32Type;
+    private final LLVMTypeRef voidType;
+    private final LLVMValueRef zero;
+    private final ConstEvaluator evaluator = new ConstEvaluator();
+    private final PointerArena arena = new PointerArena();
+    private boolean moduleTaken = false;
+
+    // indexed by the slots Resolver put on the tree
+    private Symbol[] symbols = null;
+    private boolean global = true;
     private LLVMValueRef function = null;
+    private LLVMBasicBlockRef functionEntry = null;
 
     private final Stack<LLVMBasicBlockRef> whileStack = new Stack<>();
     private final Stack<LLVMBasicBlockRef> entryStack = new Stack<>();
     private boolean isArray = false;
 
+    private final boolean ssaMode;
+    private SSABuilder ssa = null;
+    private final Predicate<SysYParser.FuncDefContext> declare;
+    private final Predicate<SysYParser.FuncDefContext> emitBody;
+    private final ProfileBuilder profile;
+
     public LLVMVisitor(){
+        this(false);
+    }
+
+    public LLVMVisitor(boolean ssaMode){
+        this(LLVMGetGlobalContext(), ssaMode);
+    }
+
+    /**
+     * Everything is created in the given context, so visitors on different threads must not
+     * share one.
+     */
+    public LLVMVisitor(LLVMContextRef context, boolean ssaMode){
+        this(context, ssaMode, funcDef -> true, funcDef -> true);
+    }
+
+    /**
+     * Functions rejected by declare are skipped and those rejected by emitBody are only declared,
+     * which is how single functions are generated on their own and linked back together afterwards.
+     */
+    public LLVMVisitor(LLVMContextRef context, boolean ssaMode, Predicate<SysYParser.FuncDefContext> declare,
+                       Predicate<SysYParser.FuncDefContext> emitBody){
+        this(context, ssaMode, declare, emitBody, null);
+    }
+
+    /**
+     * With a profile, the module is either instrumented to write one or optimized by it, see
+     * {@link ProfileBuilder}.
+     */
+    public LLVMVisitor(LLVMContextRef context, boolean ssaMode, Predicate<SysYParser.FuncDefContext> declare,
+                       Predicate<SysYParser.FuncDefContext> emitBody, Profile profile){
+        this.context = context;
+        this.ssaMode = ssaMode;
+        this.declare = declare;
+        this.emitBody = emitBody;
+        module = LLVMModuleCreateWithNameInContext("module", context);
+        builder = LLVMCreateBuilderInContext(context);
+        i32Type = LLVMInt32TypeInContext(context);
+        voidType = LLVMVoidTypeInContext(context);
+        zero = LLVMConstInt(i32Type, 0, 0);
+        this.profile = profile == null ? null : new ProfileBuilder(profile, context, module, builder, arena);
+    }
+
+    static {
         LLVMInitializeCore(LLVMGetGlobalPassRegistry());
         LLVMLinkInMCJIT();
         LLVMInitializeNativeAsmPrinter();
@@ -34,16 +99,27 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         LLVMInitializeNativeTarget();
     }
 
+    // the module is the caller's from here on
     public LLVMModuleRef getModule() {
+        moduleTaken = true;
         return module;
     }
 
+    @Override
+    public void close() {
+        LLVMDisposeBuilder(builder);
+        arena.close();
+        if(!moduleTaken){
+            LLVMDisposeModule(module);
+        }
+    }
+
     @Override
     public LLVMValueRef visitTerminal(TerminalNode node) {
         Token symbol = node.getSymbol();
         int type = symbol.getType();
         if(type == SysYParser.INTEGER_CONST){
-            return LLVMConstInt(i32Type, Integer.parseInt(toDecimal(node.getText())), 1);
+            return LLVMConstInt(i32Type, ConstEvaluator.parseInteger(node.getText()), 1);
         }
 
         return super.visitTerminal(node);
@@ -51,223 +127,363 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitProgram(SysYParser.ProgramContext ctx) {
-        scope = global;
-        LLVMValueRef valueRef = super.visitProgram(ctx);
-        scope = scope.getOuterScope();
-        return valueRef;
+        symbols = new Symbol[Resolver.resolve(ctx)];
+        super.visitProgram(ctx);
+        if(profile != null){
+            profile.finish();
+        }
+        return null;
     }
 
     @Override
     public LLVMValueRef visitFuncDef(SysYParser.FuncDefContext ctx) {
+        if(!declare.test(ctx)){
+            return null;
+        }
         int params = 0;
         if(ctx.funcFParams() != null){
             params = ctx.funcFParams().funcFParam().size();
         }
-        PointerPointer<Pointer> types = new PointerPointer<>(params);
+        LLVMTypeRef[] types = new LLVMTypeRef[params];
         for(int i = 0;i < params;i++){
-            SysYParser.FuncFParamContext funcFParamContext = ctx.funcFParams().funcFParam(i);
-            LLVMTypeRef typeRef = getTypeRef(funcFParamContext.bType().getText());
-
-            if(funcFParamContext.L_BRACKT().size() > 0){
-                typeRef = LLVMPointerType(typeRef, 0);
-            }
-
-            types.put(i, typeRef);
+            types[i] = paramType(ctx.funcFParams().funcFParam(i));
         }
 
         LLVMTypeRef retType = getTypeRef(ctx.funcType().getText());
-        LLVMTypeRef funcType = LLVMFunctionType(retType, types, params, 0);
+        LLVMTypeRef funcType = LLVMFunctionType(retType, arena.of(types), params, 0);
         String funcName = ctx.IDENT().getText();
-        retTypes.put(funcName, ctx.funcType().getText());
         function = LLVMAddFunction(module, funcName, funcType);
-        LLVMBasicBlockRef entry = LLVMAppendBasicBlock(function, funcName + "Entry");
-        LLVMPositionBuilderAtEnd(builder, entry);
+        symbols[ctx.slot] = Symbol.ref(function, funcType);
+        if(!emitBody.test(ctx)){
+            return function;
+        }
 
-        scope.addRef(funcName, function, funcType);
-        scope = new Scope("function", scope);
+        LLVMBasicBlockRef entry = LLVMAppendBasicBlockInContext(context, function, funcName + "Entry");
+        functionEntry = entry;
+        LLVMPositionBuilderAtEnd(builder, entry);
+        if(profile != null){
+            profile.enter(function, funcName);
+        }
+        ssa = ssaMode ? new SSABuilder(builder, i32Type, arena) : null;
+        sealBlock(entry);
+        global = false;
 
         for(int i = 0;i < params;i++){
             SysYParser.FuncFParamContext funcFParamContext = ctx.funcFParams().funcFParam(i);
-            LLVMTypeRef typeRef = getTypeRef(funcFParamContext.bType().getText());
-
-            if(funcFParamContext.L_BRACKT().size() > 0){
-                typeRef = LLVMPointerType(typeRef, 0);
+            LLVMTypeRef typeRef = paramType(funcFParamContext);
+            String paramName = funcFParamContext.IDENT().getText();
+            LLVMValueRef arg = LLVMGetParam(function, i);
+            if(ssa != null && typeRef.equals(i32Type)){
+                int variable = ssa.newVariable();
+                ssa.writeVariable(variable, entry, arg);
+                symbols[funcFParamContext.slot] = Symbol.var(variable, typeRef);
+                continue;
             }
-
-            String paramName = ctx.funcFParams().funcFParam(i).IDENT().getText();
             LLVMValueRef valueRef = LLVMBuildAlloca(builder, typeRef, paramName);
-            scope.addRef(paramName, valueRef, typeRef);
-            LLVMValueRef arg = LLVMGetParam(function, i);
+            symbols[funcFParamContext.slot] = Symbol.ref(valueRef, typeRef);
             LLVMBuildStore(builder, arg, valueRef);
         }
 
         super.visitFuncDef(ctx);
-        scope = scope.getOuterScope();
+        global = true;
 
         if(retType.equals(voidType))
             LLVMBuildRet(builder, null);
         else LLVMBuildRet(builder, zero);
+        if(profile != null){
+            profile.leave();
+        }
         return function;
     }
 
-    // TODO
     @Override
     public LLVMValueRef visitConstDecl(SysYParser.ConstDeclContext ctx) {
         String typeName = ctx.bType().getText();
 
         for(SysYParser.ConstDefContext constDefContext: ctx.constDef()){
-            LLVMTypeRef typeRef = getTypeRef(typeName);
             String text = constDefContext.IDENT().getText();
-            int number = 0;
+            int[] dims = dimensions(constDefContext.constExp());
+            LLVMTypeRef typeRef = arrayType(getTypeRef(typeName), dims);
 
-            for(SysYParser.ConstExpContext constExpContext: constDefContext.constExp()){
-                number = Integer.parseInt(toDecimal(constExpContext.getText()));
-                typeRef = LLVMArrayType(typeRef, number);
+            int[] values;
+            SysYParser.ConstExpContext constExpContext = constDefContext.constInitVal().constExp();
+            if(dims.length == 0){
+                values = new int[]{evaluateConst(constExpContext)};
+            } else {
+                ParseTree[] items = ConstEvaluator.flatten(constDefContext.constInitVal(), dims);
+                values = new int[items.length];
+                for(int i = 0;i < items.length;i++){
+                    values[i] = items[i] == null ? 0 : evaluateConst(items[i]);
+                }
             }
 
             LLVMValueRef valueRef;
-            if(scope == global){
-                valueRef = LLVMAddGlobal(module, typeRef, text);
-                LLVMSetInitializer(valueRef, zero);
-            } else valueRef = LLVMBuildAlloca(builder, typeRef, text);
-
-            SysYParser.ConstExpContext constExpContext = constDefContext.constInitVal().constExp();
-            if(constExpContext != null){
-                LLVMValueRef initVal = visit(constExpContext);
-                if (scope == global) {
-                    LLVMSetInitializer(valueRef, initVal);
-                } else LLVMBuildStore(builder, initVal, valueRef);
-            } else {
-                int count = constDefContext.constInitVal().constInitVal().size();
-                if(scope == global){
-                    PointerPointer<Pointer> pointer = new PointerPointer<>(number);
-                    for(int i = 0;i < number;i++){
-                        if(i < count){
-                            pointer.put(i, visit(constDefContext.constInitVal().constInitVal(i).constExp()));
-                        } else {
-                            pointer.put(i, zero);
-                        }
-                    }
-                    LLVMValueRef initArray = LLVMConstArray(typeRef, pointer, number);
-                    LLVMSetInitializer(valueRef, initArray);
+            if(!global && dims.length == 0){
+                // every use of a local const scalar is folded, so it needs no storage
+                valueRef = LLVMConstInt(i32Type, values[0], 1);
+            } else if(global){
+                if(dims.length == 0){
+                    valueRef = LLVMAddGlobal(module, typeRef, text);
+                    LLVMSetInitializer(valueRef, LLVMConstInt(i32Type, values[0], 1));
                 } else {
-                    LLVMValueRef[] initArray = new LLVMValueRef[number];
-                    for (int i = 0;i < number;i++) {
-                        if (i < count) {
-                            initArray[i] = visit(constDefContext.constInitVal().constInitVal(i).constExp());
-                        } else {
-                            initArray[i] = LLVMConstInt(i32Type, 0, 0);
-                        }
-                    }
-
-                    LLVMValueRef[] arrayPointer = new LLVMValueRef[2];
-                    arrayPointer[0] = zero;
-                    for (int i = 0; i < number; i++) {
-                        arrayPointer[1] = LLVMConstInt(i32Type, i, 0);
-                        PointerPointer<LLVMValueRef> indexPointer = new PointerPointer<>(arrayPointer);
-                        LLVMValueRef elementPtr = LLVMBuildGEP(builder, valueRef, indexPointer, 2, "pointer_" + i);
-                        LLVMBuildStore(builder, initArray[i], elementPtr);
-                    }
+                    valueRef = addGlobalArray(text, typeRef, constants(values));
                 }
+                LLVMSetGlobalConstant(LLVMIsAConstantExpr(valueRef) != null ? LLVMGetOperand(valueRef, 0) : valueRef, 1);
+            } else {
+                valueRef = buildAlloca(typeRef, text);
+                initializeArray(valueRef, constants(values), text);
             }
 
-            scope.addRef(text, valueRef, typeRef);
+            symbols[constDefContext.slot] = Symbol.constant(valueRef, typeRef, dims, values);
         }
         return null;
     }
 
-    // TODO
     @Override
     public LLVMValueRef visitVarDecl(SysYParser.VarDeclContext ctx) {
         String typeName = ctx.bType().getText();
 
         for (SysYParser.VarDefContext varDefContext : ctx.varDef()) {
-            LLVMTypeRef typeRef = getTypeRef(typeName);
             String text = varDefContext.IDENT().getText();
-            int number = 0;
-            for(SysYParser.ConstExpContext constExpContext: varDefContext.constExp()){
-                number = Integer.parseInt(toDecimal(constExpContext.getText()));
-                typeRef = LLVMArrayType(typeRef, number);
+            int[] dims = dimensions(varDefContext.constExp());
+            LLVMTypeRef typeRef = arrayType(getTypeRef(typeName), dims);
+
+            if (!global && ssa != null && dims.length == 0) {
+                int variable = ssa.newVariable();
+                LLVMValueRef initVal = LLVMGetUndef(i32Type);
+                if (varDefContext.ASSIGN() != null) {
+                    initVal = visit(varDefContext.initVal().exp());
+                }
+                ssa.writeVariable(variable, LLVMGetInsertBlock(builder), initVal);
+                symbols[varDefContext.slot] = Symbol.var(variable, typeRef);
+                continue;
+            }
+
+            // array elements in row-major order, padded with zeros; null without an initializer
+            LLVMValueRef[] elements = null;
+            if (dims.length > 0 && varDefContext.ASSIGN() != null) {
+                ParseTree[] items = ConstEvaluator.flatten(varDefContext.initVal(), dims);
+                elements = new LLVMValueRef[items.length];
+                for (int i = 0;i < items.length;i++) {
+                    elements[i] = items[i] == null ? zero : visit(items[i]);
+                }
             }
 
             LLVMValueRef valueRef;
-            if (scope == global) {
+            if (global && dims.length > 0) {
+                valueRef = addGlobalArray(text, typeRef, elements);
+            } else if (global) {
                 valueRef = LLVMAddGlobal(module, typeRef, text);
-                if(number == 0){
-                    LLVMSetInitializer(valueRef, zero);
+                if (varDefContext.ASSIGN() != null) {
+                    LLVMSetInitializer(valueRef, visit(varDefContext.initVal().exp()));
                 } else {
-                    PointerPointer<Pointer> pointer = new PointerPointer<>(number);
-                    for(int i = 0;i < number;i++){
-                        pointer.put(i, zero);
-                    }
-                    LLVMValueRef array = LLVMConstArray(typeRef, pointer, number);
-                    LLVMSetInitializer(valueRef, array);
+                    LLVMSetInitializer(valueRef, zero);
                 }
             } else {
-                valueRef = LLVMBuildAlloca(builder, typeRef, text);
-            }
-
-            if (varDefContext.ASSIGN() != null) {
-                SysYParser.ExpContext expContext = varDefContext.initVal().exp();
-                if(expContext != null){
-                    LLVMValueRef initVal = visit(expContext);
-                    if(scope == global){
-                        LLVMSetInitializer(valueRef, initVal);
-                    } else LLVMBuildStore(builder, initVal, valueRef);
-                } else {
-                    int count = varDefContext.initVal().initVal().size();
-                    if(scope == global){
-                        PointerPointer<Pointer> pointer = new PointerPointer<>(number);
-                        for(int i = 0;i < number;i++){
-                            if(i < count){
-                                pointer.put(i, visit(varDefContext.initVal().initVal(i).exp()));
-                            } else {
-                                pointer.put(i, zero);
-                            }
-                        }
-                        LLVMValueRef initArray = LLVMConstArray(typeRef, pointer, number);
-                        LLVMSetInitializer(valueRef, initArray);
-                    } else {
-                        LLVMValueRef[] initArray = new LLVMValueRef[number];
-                        for (int i = 0;i < number;i++) {
-                            if (i < count) {
-                                initArray[i] = visit(varDefContext.initVal().initVal(i).exp());
-                            } else {
-                                initArray[i] = LLVMConstInt(i32Type, 0, 0);
-                            }
-                        }
-
-                        LLVMValueRef[] arrayPointer = new LLVMValueRef[2];
-                        arrayPointer[0] = zero;
-                        for (int i = 0; i < number; i++) {
-                            arrayPointer[1] = LLVMConstInt(i32Type, i, 0);
-                            PointerPointer<LLVMValueRef> indexPointer = new PointerPointer<>(arrayPointer);
-                            LLVMValueRef elementPtr = LLVMBuildGEP(builder, valueRef, indexPointer, 2, "pointer_" + i);
-                            LLVMBuildStore(builder, initArray[i], elementPtr);
-                        }
-                    }
+                valueRef = buildAlloca(typeRef, text);
+                if (elements != null) {
+                    initializeArray(valueRef, elements, text);
+                } else if (varDefContext.ASSIGN() != null) {
+                    LLVMBuildStore(builder, visit(varDefContext.initVal().exp()), valueRef);
                 }
             }
 
-            scope.addRef(text, valueRef, typeRef);
+            symbols[varDefContext.slot] = Symbol.ref(valueRef, typeRef);
         }
 
         return null;
     }
 
-    @Override
-    public LLVMValueRef visitBlock(SysYParser.BlockContext ctx) {
-        scope = new Scope("block", scope);
-        LLVMValueRef valueRef = super.visitBlock(ctx);
-        scope = scope.getOuterScope();
-        return valueRef;
+    // at the start of the function, so a declaration in a loop does not grow the stack each time around
+    private LLVMValueRef buildAlloca(LLVMTypeRef type, String name){
+        LLVMBasicBlockRef block = LLVMGetInsertBlock(builder);
+        LLVMValueRef first = LLVMGetFirstInstruction(functionEntry);
+        if(first != null){
+            LLVMPositionBuilderBefore(builder, first);
+        }
+        LLVMValueRef alloca = LLVMBuildAlloca(builder, type, name);
+        LLVMPositionBuilderAtEnd(builder, block);
+        return alloca;
+    }
+
+    private int[] dimensions(List<? extends ParseTree> exps){
+        int[] dims = new int[exps.size()];
+        for(int i = 0;i < dims.length;i++){
+            dims[i] = evaluateConst(exps.get(i));
+        }
+        return dims;
+    }
+
+    // int a[2][3] is [2 x [3 x i32]]
+    private static LLVMTypeRef arrayType(LLVMTypeRef elementType, int[] dims){
+        for(int i = dims.length - 1;i >= 0;i--){
+            elementType = LLVMArrayType(elementType, dims[i]);
+        }
+        return elementType;
+    }
+
+    // an array parameter is a pointer to its first element, so int a[][3] is [3 x i32]*
+    private LLVMTypeRef paramType(SysYParser.FuncFParamContext ctx){
+        LLVMTypeRef typeRef = getTypeRef(ctx.bType().getText());
+        if(ctx.L_BRACKT().isEmpty()){
+            return typeRef;
+        }
+        return LLVMPointerType(arrayType(typeRef, dimensions(ctx.exp())), 0);
+    }
+
+    /**
+     * Adds a global array holding the given elements, all zero if there are none. Zero
+     * subarrays become zeroinitializer, and a long run of zeros at the end is split off into
+     * a zeroinitializer member of a packed struct, the way clang lays out "int a[100000] = {1}".
+     * The global then has the struct type, so what is returned is the global cast to the array.
+     */
+    private LLVMValueRef addGlobalArray(String name, LLVMTypeRef type, LLVMValueRef[] elements){
+        if(elements == null){
+            LLVMValueRef global = LLVMAddGlobal(module, type, name);
+            LLVMSetInitializer(global, LLVMConstNull(type));
+            return global;
+        }
+
+        int length = LLVMGetArrayLength(type);
+        LLVMTypeRef elementType = LLVMGetElementType(type);
+        int stride = elements.length / length;
+        LLVMValueRef[] members = new LLVMValueRef[length];
+        int tail = length;
+        for(int i = 0;i < length;i++){
+            members[i] = constant(elementType, elements, i * stride);
+            if(LLVMIsNull(members[i]) == 0){
+                tail = length;
+            } else if(tail == length){
+                tail = i;
+            }
+        }
+
+        if(tail == 0 || length - tail < ZERO_TAIL){
+            LLVMValueRef global = LLVMAddGlobal(module, type, name);
+            LLVMSetInitializer(global, constArray(elementType, members, 0, length));
+            return global;
+        }
+        LLVMTypeRef headType = LLVMArrayType(elementType, tail);
+        LLVMTypeRef tailType = LLVMArrayType(elementType, length - tail);
+        LLVMTypeRef structType = LLVMStructTypeInContext(context, arena.of(headType, tailType), 2, 1);
+        LLVMValueRef init = LLVMConstStructInContext(context,
+                arena.of(constArray(elementType, members, 0, tail), LLVMConstNull(tailType)), 2, 1);
+        LLVMValueRef global = LLVMAddGlobal(module, structType, name);
+        LLVMSetInitializer(global, init);
+        return LLVMConstBitCast(global, LLVMPointerType(type, 0));
+    }
+
+    /**
+     * Initializes a local array from its elements in row-major order without a store per
+     * element: zeros are one memset, a large enough set of constants is one memcpy from a
+     * private constant global, and only the elements that are not constants are stored one by
+     * one. The copied prefix ends at the last nonzero constant, the rest is cleared by memset.
+     */
+    private void initializeArray(LLVMValueRef array, LLVMValueRef[] elements, String name){
+        int constants = 0;
+        int prefix = 0;
+        for(int i = 0;i < elements.length;i++){
+            if(LLVMIsConstant(elements[i]) != 0 && LLVMIsNull(elements[i]) == 0){
+                constants++;
+                prefix = i + 1;
+            }
+        }
+        boolean copy = constants > FEW_STORES;
+        if(!copy){
+            prefix = 0;
+        }
+        // without a zero to leave alone behind the prefix, every element gets stored anyway
+        boolean clear = false;
+        for(int i = prefix;i < elements.length && !clear;i++){
+            clear = LLVMIsNull(elements[i]) != 0;
+        }
+
+        LLVMTypeRef i8Type = LLVMInt8TypeInContext(context);
+        LLVMTypeRef i64Type = LLVMInt64TypeInContext(context);
+        LLVMValueRef base = LLVMBuildBitCast(builder, array, LLVMPointerType(i32Type, 0), name + "_base");
+        if(clear){
+            LLVMValueRef rest = prefix == 0 ? base : elementPointer(base, prefix);
+            LLVMBuildMemSet(builder, rest, LLVMConstInt(i8Type, 0, 0),
+                    LLVMConstInt(i64Type, 4L * (elements.length - prefix), 0), 4);
+        }
+        if(copy){
+            LLVMValueRef[] pattern = new LLVMValueRef[prefix];
+            for(int i = 0;i < prefix;i++){
+                pattern[i] = LLVMIsConstant(elements[i]) != 0 ? elements[i] : zero;
+            }
+            LLVMValueRef init = constArray(i32Type, pattern, 0, prefix);
+            LLVMValueRef source = LLVMAddGlobal(module, LLVMTypeOf(init),
+                    "__const." + LLVMGetValueName(function).getString() + "." + name);
+            LLVMSetInitializer(source, init);
+            LLVMSetGlobalConstant(source, 1);
+            LLVMSetLinkage(source, LLVMPrivateLinkage);
+            LLVMSetUnnamedAddress(source, LLVMGlobalUnnamedAddr);
+            LLVMSetAlignment(source, 4);
+            LLVMBuildMemCpy(builder, base, 4, source, 4, LLVMConstInt(i64Type, 4L * prefix, 0));
+        }
+
+        for(int i = 0;i < elements.length;i++){
+            boolean isConstant = LLVMIsConstant(elements[i]) != 0;
+            if(isConstant && (copy || LLVMIsNull(elements[i]) != 0)){
+                continue;
+            }
+            LLVMBuildStore(builder, elements[i], elementPointer(base, i));
+        }
+    }
+
+    private LLVMValueRef elementPointer(LLVMValueRef base, int index){
+        return LLVMBuildGEP(builder, base, arena.of(LLVMConstInt(i32Type, index, 0)), 1, "pointer_" + index);
+    }
+
+    // the constant of the given type starting at offset of the row-major elements
+    private LLVMValueRef constant(LLVMTypeRef type, LLVMValueRef[] elements, int offset){
+        if(LLVMGetTypeKind(type) != LLVMArrayTypeKind){
+            return elements[offset];
+        }
+        int length = LLVMGetArrayLength(type);
+        LLVMTypeRef elementType = LLVMGetElementType(type);
+        int stride = LLVMGetTypeKind(elementType) == LLVMArrayTypeKind ? elementCount(elementType) : 1;
+        LLVMValueRef[] members = new LLVMValueRef[length];
+        for(int i = 0;i < length;i++){
+            members[i] = constant(elementType, elements, offset + i * stride);
+        }
+        return constArray(elementType, members, 0, length);
+    }
+
+    private LLVMValueRef constArray(LLVMTypeRef elementType, LLVMValueRef[] members, int from, int to){
+        boolean zeros = true;
+        for(int i = from;i < to && zeros;i++){
+            zeros = LLVMIsNull(members[i]) != 0;
+        }
+        if(zeros){
+            return LLVMConstNull(LLVMArrayType(elementType, to - from));
+        }
+        return LLVMConstArray(elementType, arena.of(members, from, to), to - from);
+    }
+
+    private static int elementCount(LLVMTypeRef type){
+        int count = 1;
+        for(;LLVMGetTypeKind(type) == LLVMArrayTypeKind;type = LLVMGetElementType(type)){
+            count *= LLVMGetArrayLength(type);
+        }
+        return count;
+    }
+
+    private LLVMValueRef[] constants(int[] values){
+        LLVMValueRef[] elements = new LLVMValueRef[values.length];
+        for(int i = 0;i < values.length;i++){
+            elements[i] = LLVMConstInt(i32Type, values[i], 1);
+        }
+        return elements;
     }
 
 /* stmt
    : lVal ASSIGN exp SEMICOLON                      # assignStmt
    | (exp)? SEMICOLON                               # questionStmt
    | block                                          # blockStmt
-   | IF L_PAREN cond R_PAREN stmt (ELSE stmt)?      # ifStmt
+   | IF L_PAREN cond R_PAREN stmt
+     (ELSE IF L_PAREN cond R_PAREN stmt)*
+     (ELSE stmt)?                                   # ifStmt
    | WHILE L_PAREN cond R_PAREN stmt                # whileStmt
    | BREAK SEMICOLON                                # breakStmt
    | CONTINUE SEMICOLON                             # continueStmt
@@ -277,28 +493,51 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitAssignStmt(SysYParser.AssignStmtContext ctx) {
-        return LLVMBuildStore(builder, visit(ctx.exp()), visitLVal(ctx.lVal()));
+        LLVMValueRef value = visit(ctx.exp());
+        int variable = symbols[ctx.lVal().slot].variable;
+        if(variable >= 0){
+            ssa.writeVariable(variable, LLVMGetInsertBlock(builder), value);
+            return value;
+        }
+        return LLVMBuildStore(builder, value, visitLVal(ctx.lVal()));
     }
 
+    /**
+     * An else-if ladder is a single ifStmt with a cond and a stmt per arm, which the parser
+     * reads in a loop, and it is generated in a loop too: the false block of each arm tests the
+     * next cond, and every arm branches to the same join block.
+     */
     @Override
     public LLVMValueRef visitIfStmt(SysYParser.IfStmtContext ctx) {
-        LLVMValueRef cond = visit(ctx.cond());
-        LLVMValueRef cmp = LLVMBuildICmp(builder, LLVMIntNE, zero, cond, "cmp_");
-        LLVMBasicBlockRef trueBlock = LLVMAppendBasicBlock(function, "true");
-        LLVMBasicBlockRef falseBlock = LLVMAppendBasicBlock(function, "false");
-        LLVMBasicBlockRef entry = LLVMAppendBasicBlock(function, "entry");
-
-        LLVMBuildCondBr(builder, cmp, trueBlock, falseBlock);
+        // the lists once, since cond(i) and stmt(i) count through the children every time
+        List<SysYParser.CondContext> conds = ctx.cond();
+        List<SysYParser.StmtContext> stmts = ctx.stmt();
+        int arms = conds.size();
+        boolean hasElse = stmts.size() > arms;
+        LLVMBasicBlockRef entry = LLVMAppendBasicBlockInContext(context, function, "entry");
+        for (int i = 0;i < arms;i++) {
+            LLVMBasicBlockRef trueBlock = LLVMInsertBasicBlockInContext(context, entry, "true");
+            LLVMBasicBlockRef falseBlock = entry;
+            if (i + 1 < arms || hasElse) {
+                falseBlock = LLVMInsertBasicBlockInContext(context, entry, "false");
+            }
+            buildCond(conds.get(i), trueBlock, falseBlock);
+            sealBlock(trueBlock);
 
-        LLVMPositionBuilderAtEnd(builder, trueBlock);
-        visit(ctx.stmt(0));
-        LLVMBuildBr(builder, entry);
+            LLVMPositionBuilderAtEnd(builder, trueBlock);
+            visit(stmts.get(i));
+            buildBr(entry);
 
-        LLVMPositionBuilderAtEnd(builder, falseBlock);
-        if (ctx.ELSE() != null) {
-            visit(ctx.stmt(1));
+            if (falseBlock != entry) {
+                sealBlock(falseBlock);
+                LLVMPositionBuilderAtEnd(builder, falseBlock);
+            }
+        }
+        if (hasElse) {
+            visit(stmts.get(arms));
+            buildBr(entry);
         }
-        LLVMBuildBr(builder, entry);
+        sealBlock(entry);
 
         LLVMPositionBuilderAtEnd(builder, entry);
         return null;
@@ -307,23 +546,24 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
     // WHILE L_PAREN cond R_PAREN stmt                # whileStmt
     @Override
     public LLVMValueRef visitWhileStmt(SysYParser.WhileStmtContext ctx) {
-        LLVMBasicBlockRef whileCond = LLVMAppendBasicBlock(function, "whileCondition");
-        LLVMBasicBlockRef whileBody = LLVMAppendBasicBlock(function, "whileBody");
-        LLVMBasicBlockRef entry = LLVMAppendBasicBlock(function, "entry");
-        LLVMBuildBr(builder, whileCond);
+        LLVMBasicBlockRef whileCond = LLVMAppendBasicBlockInContext(context, function, "whileCondition");
+        LLVMBasicBlockRef whileBody = LLVMAppendBasicBlockInContext(context, function, "whileBody");
+        LLVMBasicBlockRef entry = LLVMAppendBasicBlockInContext(context, function, "entry");
+        buildBr(whileCond);
 
         LLVMPositionBuilderAtEnd(builder, whileCond);
-        LLVMValueRef cond = visit(ctx.cond());
-        LLVMValueRef cmp = LLVMBuildICmp(builder, LLVMIntNE, zero, cond, "cmp_");
-        LLVMBuildCondBr(builder, cmp, whileBody, entry);
+        buildCond(ctx.cond(), whileBody, entry);
+        sealBlock(whileBody);
 
         LLVMPositionBuilderAtEnd(builder, whileBody);
         whileStack.push(whileCond);
         entryStack.push(entry);
         visit(ctx.stmt());
-        LLVMBuildBr(builder, whileCond);
+        buildBr(whileCond);
         whileStack.pop();
         entryStack.pop();
+        sealBlock(whileCond);
+        sealBlock(entry);
 
         LLVMPositionBuilderAtEnd(builder, entry);
         return null;
@@ -331,12 +571,16 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitBreakStmt(SysYParser.BreakStmtContext ctx) {
-        return LLVMBuildBr(builder, entryStack.peek());
+        buildBr(entryStack.peek());
+        startUnreachableBlock();
+        return null;
     }
 
     @Override
     public LLVMValueRef visitContinueStmt(SysYParser.ContinueStmtContext ctx) {
-        return LLVMBuildBr(builder, whileStack.peek());
+        buildBr(whileStack.peek());
+        startUnreachableBlock();
+        return null;
     }
 
     @Override
@@ -345,7 +589,9 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         if(ctx.exp() != null){
             ret = visit(ctx.exp());
         }
-        return LLVMBuildRet(builder, ret);
+        LLVMBuildRet(builder, ret);
+        startUnreachableBlock();
+        return null;
     }
 
 /* exp
@@ -366,6 +612,14 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitLValExp(SysYParser.LValExpContext ctx) {
+        Integer constant = evaluator.evaluate(ctx, symbols);
+        if(constant != null){
+            return LLVMConstInt(i32Type, constant, 1);
+        }
+        int variable = symbols[ctx.lVal().slot].variable;
+        if(variable >= 0){
+            return ssa.readVariable(variable, LLVMGetInsertBlock(builder));
+        }
         LLVMValueRef lVal = visitLVal(ctx.lVal());
         if(isArray){
             isArray = false;
@@ -381,22 +635,27 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitFuncExp(SysYParser.FuncExpContext ctx) {
-        LLVMValueRef func = scope.find(ctx.IDENT().getText());
-        PointerPointer<Pointer> args = null;
-        int count = 0;
-        if(ctx.funcRParams() != null){
-            count = ctx.funcRParams().param().size();
-            args = new PointerPointer<>(count);
-            for(int i = 0;i < count;i++){
-                SysYParser.ExpContext expContext = ctx.funcRParams().param(i).exp();
-                args.put(i, visit(expContext));
+        Symbol callee = symbols[ctx.slot];
+        SysYLib.Function library = ctx.slot < SysYLib.FUNCTIONS.size() ? SysYLib.FUNCTIONS.get(ctx.slot) : null;
+        if(callee == null){
+            // the runtime library is declared on the first call
+            callee = Symbol.ref(library.declare(module), library.type(context));
+            symbols[ctx.slot] = callee;
+        }
+        LLVMValueRef[] args = new LLVMValueRef[0];
+        if(library != null && library.passesLine()){
+            args = new LLVMValueRef[]{LLVMConstInt(i32Type, ctx.IDENT().getSymbol().getLine(), 0)};
+        } else if(ctx.funcRParams() != null){
+            args = new LLVMValueRef[ctx.funcRParams().param().size()];
+            for(int i = 0;i < args.length;i++){
+                args[i] = visit(ctx.funcRParams().param(i).exp());
             }
         }
         String name;
-        if(Objects.equals(retTypes.get(ctx.IDENT().getText()), "void")){
+        if(LLVMGetReturnType(callee.type).equals(voidType)){
             name = "";
         } else name = "func_";
-        return LLVMBuildCall(builder, func, args, count, name);
+        return LLVMBuildCall(builder, callee.value, arena.of(args), args.length, name);
     }
 
     @Override
@@ -409,31 +668,51 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
             case "-":
                 return LLVMBuildNeg(builder, exp, "neg_");
             case "!":
-                if(LLVMConstIntGetZExtValue(exp) == 0){
-                    return LLVMConstInt(i32Type, 1, 0);
-                } else return LLVMConstInt(i32Type, 0, 0);
+                LLVMValueRef not = LLVMBuildICmp(builder, LLVMIntEQ, exp, zero, "not_");
+                return LLVMBuildZExt(builder, not, i32Type, "tmp_");
         }
         return super.visitUnaryExp(ctx);
     }
 
     @Override
     public LLVMValueRef visitMulDivModExp(SysYParser.MulDivModExpContext ctx) {
-        LLVMValueRef ref1 = visit(ctx.exp(0));
-        LLVMValueRef ref2 = visit(ctx.exp(1));
-        if(ctx.MUL() != null){
-            return LLVMBuildMul(builder, ref1, ref2, "mul_");
-        } else if(ctx.DIV() != null){
-            return LLVMBuildSDiv(builder, ref1, ref2, "div_");
-        } else return LLVMBuildSRem(builder, ref1, ref2, "rem_");
+        return arithmetic(ctx);
     }
 
     @Override
     public LLVMValueRef visitPlusMinusExp(SysYParser.PlusMinusExpContext ctx) {
-        LLVMValueRef ref1 = visit(ctx.exp(0));
-        LLVMValueRef ref2 = visit(ctx.exp(1));
-        if(ctx.PLUS() != null){
-            return LLVMBuildAdd(builder, ref1, ref2, "add_");
-        } else return LLVMBuildSub(builder, ref1, ref2, "sub_");
+        return arithmetic(ctx);
+    }
+
+    /**
+     * a + b - c is (a + b) - c, so a chain of n operators nests n deep along its left
+     * operands. They are put on a stack and folded in a loop; only right operands recurse.
+     */
+    private LLVMValueRef arithmetic(SysYParser.ExpContext ctx){
+        Deque<SysYParser.ExpContext> spine = new ArrayDeque<>();
+        SysYParser.ExpContext left = ctx;
+        while(left instanceof SysYParser.MulDivModExpContext || left instanceof SysYParser.PlusMinusExpContext){
+            spine.push(left);
+            left = left.getRuleContext(SysYParser.ExpContext.class, 0);
+        }
+        LLVMValueRef ref1 = visit(left);
+        while(!spine.isEmpty()){
+            SysYParser.ExpContext node = spine.pop();
+            LLVMValueRef ref2 = visit(node.getRuleContext(SysYParser.ExpContext.class, 1));
+            if(node instanceof SysYParser.PlusMinusExpContext){
+                if(((SysYParser.PlusMinusExpContext) node).PLUS() != null){
+                    ref1 = LLVMBuildAdd(builder, ref1, ref2, "add_");
+                } else ref1 = LLVMBuildSub(builder, ref1, ref2, "sub_");
+                continue;
+            }
+            SysYParser.MulDivModExpContext mulDivMod = (SysYParser.MulDivModExpContext) node;
+            if(mulDivMod.MUL() != null){
+                ref1 = LLVMBuildMul(builder, ref1, ref2, "mul_");
+            } else if(mulDivMod.DIV() != null){
+                ref1 = LLVMBuildSDiv(builder, ref1, ref2, "div_");
+            } else ref1 = LLVMBuildSRem(builder, ref1, ref2, "rem_");
+        }
+        return ref1;
     }
 
 /* cond
@@ -452,111 +731,205 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitCompareCond(SysYParser.CompareCondContext ctx) {
-        LLVMValueRef lVal = visit(ctx.cond(0));
-        LLVMValueRef rVal = visit(ctx.cond(1));
-        LLVMValueRef res;
-        if(ctx.LT() != null){
-            res = LLVMBuildICmp(builder, LLVMIntSLT, lVal, rVal, "LT");
-        } else if(ctx.GT() != null){
-            res = LLVMBuildICmp(builder, LLVMIntSGT, lVal, rVal, "GT");
-        } else if(ctx.LE() != null){
-            res = LLVMBuildICmp(builder, LLVMIntSLE, lVal, rVal, "LE");
-        } else {
-            res = LLVMBuildICmp(builder, LLVMIntSGE, lVal, rVal, "GE");
-        }
-        return LLVMBuildZExt(builder, res, i32Type, "tmp_");
+        return LLVMBuildZExt(builder, compare(ctx), i32Type, "tmp_");
     }
 
     @Override
     public LLVMValueRef visitEqualCond(SysYParser.EqualCondContext ctx) {
-        LLVMValueRef lVal = visit(ctx.cond(0));
-        LLVMValueRef rVal = visit(ctx.cond(1));
-        LLVMValueRef res;
-        if(ctx.EQ() != null){
-            res = LLVMBuildICmp(builder, LLVMIntEQ, lVal, rVal, "EQ");
-        } else res = LLVMBuildICmp(builder, LLVMIntNE, lVal, rVal, "NEQ");
-        return LLVMBuildZExt(builder, res, i32Type, "tmp_");
+        return LLVMBuildZExt(builder, compare(ctx), i32Type, "tmp_");
     }
 
     @Override
     public LLVMValueRef visitAndCond(SysYParser.AndCondContext ctx) {
-        LLVMValueRef lVal = visit(ctx.cond(0));
-        LLVMValueRef cmp = LLVMBuildICmp(builder, LLVMIntEQ, zero, lVal, "cmp_");
-        LLVMBasicBlockRef trueBlock = LLVMAppendBasicBlock(function, "true_");
-        LLVMBasicBlockRef falseBlock = LLVMAppendBasicBlock(function, "false_");
-        LLVMBasicBlockRef after = LLVMAppendBasicBlock(function, "after_");
-        LLVMValueRef res = LLVMBuildAlloca(builder, i32Type, "and_");
-        LLVMBuildStore(builder, lVal, res);
+        return condValue(ctx);
+    }
 
-        LLVMBuildCondBr(builder, cmp, trueBlock, falseBlock);
+    @Override
+    public LLVMValueRef visitOrCond(SysYParser.OrCondContext ctx) {
+        return condValue(ctx);
+    }
 
-        LLVMPositionBuilderAtEnd(builder, trueBlock);
-        LLVMBuildBr(builder, after);
+    // a right operand of && or || still to branch on, from its own block
+    private static class Branch {
+        final SysYParser.CondContext cond;
+        final LLVMBasicBlockRef block;
+        final LLVMBasicBlockRef trueBlock;
+        final LLVMBasicBlockRef falseBlock;
+
+        Branch(SysYParser.CondContext cond, LLVMBasicBlockRef block, LLVMBasicBlockRef trueBlock,
+               LLVMBasicBlockRef falseBlock){
+            this.cond = cond;
+            this.block = block;
+            this.trueBlock = trueBlock;
+            this.falseBlock = falseBlock;
+        }
+    }
 
-        LLVMPositionBuilderAtEnd(builder, falseBlock);
-        LLVMValueRef rVal = visit(ctx.cond(1));
-        LLVMBuildStore(builder, rVal, res);
-        LLVMBuildBr(builder, after);
+    /**
+     * Branches on the condition without computing its value: && and || jump past their right
+     * operand, a comparison branches on its i1 and ! swaps the targets. A condition that is
+     * constant becomes an unconditional branch. Like arithmetic, chains of && and || are
+     * walked down their left operands, with the right ones kept on a stack.
+     */
+    private void buildCond(SysYParser.CondContext ctx, LLVMBasicBlockRef trueBlock, LLVMBasicBlockRef falseBlock){
+        Deque<Branch> pending = new ArrayDeque<>();
+        pending.push(new Branch(ctx, null, trueBlock, falseBlock));
+        while(!pending.isEmpty()){
+            Branch branch = pending.pop();
+            if(branch.block != null){
+                // everything branching here came from the left operand, which is done
+                sealBlock(branch.block);
+                LLVMPositionBuilderAtEnd(builder, branch.block);
+            }
+            SysYParser.CondContext cond = branch.cond;
+            trueBlock = branch.trueBlock;
+            falseBlock = branch.falseBlock;
+            while(cond instanceof SysYParser.AndCondContext || cond instanceof SysYParser.OrCondContext){
+                boolean and = cond instanceof SysYParser.AndCondContext;
+                LLVMBasicBlockRef right = LLVMInsertBasicBlockInContext(context, trueBlock, and ? "and_" : "or_");
+                pending.push(new Branch(cond.getRuleContext(SysYParser.CondContext.class, 1), right, trueBlock, falseBlock));
+                if(and){
+                    trueBlock = right;
+                } else falseBlock = right;
+                cond = cond.getRuleContext(SysYParser.CondContext.class, 0);
+            }
+            buildLeafCond(cond, trueBlock, falseBlock);
+        }
+    }
 
-        LLVMPositionBuilderAtEnd(builder, after);
-        res = LLVMBuildLoad(builder, res, "load_");
-        return LLVMBuildZExt(builder, res, i32Type, "tmp_");
+    private void buildLeafCond(SysYParser.CondContext ctx, LLVMBasicBlockRef trueBlock, LLVMBasicBlockRef falseBlock){
+        LLVMValueRef cmp;
+        if(ctx instanceof SysYParser.ExpCondContext){
+            SysYParser.ExpContext exp = ((SysYParser.ExpCondContext) ctx).exp();
+            while(exp instanceof SysYParser.UnaryExpContext && ((SysYParser.UnaryExpContext) exp).unaryOp().NOT() != null){
+                LLVMBasicBlockRef swap = trueBlock;
+                trueBlock = falseBlock;
+                falseBlock = swap;
+                exp = ((SysYParser.UnaryExpContext) exp).exp();
+            }
+            cmp = LLVMBuildICmp(builder, LLVMIntNE, visit(exp), zero, "cmp_");
+        } else {
+            cmp = compare(ctx);
+        }
+        // undef too is constant, in blocks nothing branches to
+        if(LLVMIsAConstantInt(cmp) != null){
+            buildBr(LLVMConstIntGetZExtValue(cmp) != 0 ? trueBlock : falseBlock);
+            if(profile != null){
+                // it keeps its counters, so that they do not depend on what --ssa folds
+                profile.branch(null, null);
+            }
+        } else {
+            buildCondBr(cmp, trueBlock, falseBlock);
+        }
     }
 
-    @Override
-    public LLVMValueRef visitOrCond(SysYParser.OrCondContext ctx) {
-        LLVMValueRef lVal = visit(ctx.cond(0));
-        LLVMValueRef cmp = LLVMBuildICmp(builder, LLVMIntNE, zero, lVal, "cmp_");
-        LLVMBasicBlockRef trueBlock = LLVMAppendBasicBlock(function, "true_");
-        LLVMBasicBlockRef falseBlock = LLVMAppendBasicBlock(function, "false_");
-        LLVMBasicBlockRef after = LLVMAppendBasicBlock(function, "after_");
-        LLVMValueRef res = LLVMBuildAlloca(builder, i32Type, "or_");
-        LLVMBuildStore(builder, lVal, res);
+    /**
+     * The i1 of a comparison, whose operands are values even when they are conditions
+     * themselves: a < b < c compares the 0 or 1 of a < b with c. Chains are folded in a loop
+     * like arithmetic.
+     */
+    private LLVMValueRef compare(SysYParser.CondContext ctx){
+        Deque<SysYParser.CondContext> spine = new ArrayDeque<>();
+        SysYParser.CondContext left = ctx;
+        while(left instanceof SysYParser.CompareCondContext || left instanceof SysYParser.EqualCondContext){
+            spine.push(left);
+            left = left.getRuleContext(SysYParser.CondContext.class, 0);
+        }
+        LLVMValueRef lVal = visit(left);
+        LLVMValueRef cmp = null;
+        while(!spine.isEmpty()){
+            SysYParser.CondContext node = spine.pop();
+            if(cmp != null){
+                lVal = LLVMBuildZExt(builder, cmp, i32Type, "tmp_");
+            }
+            cmp = compare(node, lVal, visit(node.getRuleContext(SysYParser.CondContext.class, 1)));
+        }
+        return cmp;
+    }
 
-        LLVMBuildCondBr(builder, cmp, trueBlock, falseBlock);
+    private LLVMValueRef compare(SysYParser.CondContext ctx, LLVMValueRef lVal, LLVMValueRef rVal){
+        if(ctx instanceof SysYParser.EqualCondContext){
+            SysYParser.EqualCondContext equal = (SysYParser.EqualCondContext) ctx;
+            if(equal.EQ() != null){
+                return LLVMBuildICmp(builder, LLVMIntEQ, lVal, rVal, "EQ");
+            } else return LLVMBuildICmp(builder, LLVMIntNE, lVal, rVal, "NEQ");
+        }
+        SysYParser.CompareCondContext compare = (SysYParser.CompareCondContext) ctx;
+        if(compare.LT() != null){
+            return LLVMBuildICmp(builder, LLVMIntSLT, lVal, rVal, "LT");
+        } else if(compare.GT() != null){
+            return LLVMBuildICmp(builder, LLVMIntSGT, lVal, rVal, "GT");
+        } else if(compare.LE() != null){
+            return LLVMBuildICmp(builder, LLVMIntSLE, lVal, rVal, "LE");
+        } else return LLVMBuildICmp(builder, LLVMIntSGE, lVal, rVal, "GE");
+    }
 
-        LLVMPositionBuilderAtEnd(builder, trueBlock);
-        LLVMBuildBr(builder, after);
+    // && or || used as an operand of a comparison is 1 or 0, merged by a phi
+    private LLVMValueRef condValue(SysYParser.CondContext ctx){
+        LLVMBasicBlockRef trueBlock = LLVMAppendBasicBlockInContext(context, function, "true_");
+        LLVMBasicBlockRef falseBlock = LLVMAppendBasicBlockInContext(context, function, "false_");
+        LLVMBasicBlockRef after = LLVMAppendBasicBlockInContext(context, function, "after_");
+        buildCond(ctx, trueBlock, falseBlock);
+        sealBlock(trueBlock);
+        sealBlock(falseBlock);
 
+        LLVMPositionBuilderAtEnd(builder, trueBlock);
+        buildBr(after);
         LLVMPositionBuilderAtEnd(builder, falseBlock);
-        LLVMValueRef rVal = visit(ctx.cond(1));
-        LLVMBuildStore(builder, rVal, res);
-        LLVMBuildBr(builder, after);
+        buildBr(after);
+        sealBlock(after);
 
         LLVMPositionBuilderAtEnd(builder, after);
-        res = LLVMBuildLoad(builder, res, "load_");
-        return LLVMBuildZExt(builder, res, i32Type, "tmp_");
+        LLVMValueRef phi = LLVMBuildPhi(builder, i32Type, "cond_");
+        LLVMAddIncoming(phi, arena.of(LLVMConstInt(i32Type, 1, 0), zero), arena.of(trueBlock, falseBlock), 2);
+        return phi;
     }
 
+    /**
+     * The address of the named element as one GEP over all indices. An array parameter is a
+     * pointer loaded first, an array takes a leading 0. With fewer indices than dimensions the
+     * address decays to the first element of the subarray and isArray is set, as for passing
+     * a or a[i] of int a[n][m] as an argument.
+     */
     @Override
     public LLVMValueRef visitLVal(SysYParser.LValContext ctx) {
         String lName = ctx.IDENT().getText();
-        LLVMValueRef valueRef = scope.find(lName);
-        LLVMTypeRef typeRef = scope.getType(lName);
+        Symbol symbol = symbols[ctx.slot];
+        LLVMValueRef valueRef = symbol.value;
+        LLVMTypeRef typeRef = symbol.type;
         if(typeRef.equals(i32Type)){
             return valueRef;
-        } else if(typeRef.equals(LLVMPointerType(i32Type, 0))){
-            if(ctx.exp().size() > 0){
-                LLVMValueRef[] pointer = new LLVMValueRef[1];
-                pointer[0] = visit(ctx.exp(0));
-                PointerPointer<LLVMValueRef> index = new PointerPointer<>(pointer);
-                LLVMValueRef p = LLVMBuildLoad(builder, valueRef, lName);
-                return LLVMBuildGEP(builder, p, index, 1, "pointer_"+lName);
-            } else {
-                return valueRef;
-            }
-        } else {
-            LLVMValueRef[] pointer = new LLVMValueRef[2];
-            pointer[0] = zero;
-            if(ctx.exp().size() > 0){
-                pointer[1] = visit(ctx.exp(0));
-            } else {
+        }
+
+        int count = ctx.exp().size();
+        boolean parameter = LLVMGetTypeKind(typeRef) == LLVMPointerTypeKind;
+        int depth = 0;
+        for(LLVMTypeRef type = parameter ? LLVMGetElementType(typeRef) : typeRef;
+            LLVMGetTypeKind(type) == LLVMArrayTypeKind;type = LLVMGetElementType(type)){
+            depth++;
+        }
+        if(parameter){
+            depth++;
+            valueRef = LLVMBuildLoad(builder, valueRef, lName);
+            if(count == 0){
                 isArray = true;
-                pointer[1] = zero;
+                return valueRef;
             }
-            PointerPointer<LLVMValueRef> index = new PointerPointer<>(pointer);
-            return LLVMBuildGEP(builder, valueRef, index, 2, "pointer_"+lName);
         }
+
+        LLVMValueRef[] pointer = new LLVMValueRef[(parameter ? 0 : 1) + count + (count < depth ? 1 : 0)];
+        int n = 0;
+        if(!parameter){
+            pointer[n++] = zero;
+        }
+        for(SysYParser.ExpContext expContext: ctx.exp()){
+            pointer[n++] = visit(expContext);
+        }
+        if(count < depth){
+            isArray = true;
+            pointer[n++] = zero;
+        }
+        return LLVMBuildInBoundsGEP(builder, valueRef, arena.of(pointer), n, "pointer_"+lName);
     }
 
     @Override
@@ -564,13 +937,44 @@ public class LLVMVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         return visit(ctx.INTEGER_CONST());
     }
 
-    private String toDecimal(String text){
-        if (text.length() > 2 &&(text.startsWith("0x") || text.startsWith("0X"))) {
-            text = String.valueOf(Integer.parseInt(text.substring(2), 16));
-        } else if (text.length() > 1 && text.startsWith("0")) {
-            text = String.valueOf(Integer.parseInt(text.substring(1), 8));
+    private void buildBr(LLVMBasicBlockRef target){
+        if(ssa != null){
+            ssa.addPredecessor(target, LLVMGetInsertBlock(builder));
+        }
+        LLVMBuildBr(builder, target);
+    }
+
+    private void buildCondBr(LLVMValueRef cond, LLVMBasicBlockRef thenBlock, LLVMBasicBlockRef elseBlock){
+        if(ssa != null){
+            LLVMBasicBlockRef current = LLVMGetInsertBlock(builder);
+            ssa.addPredecessor(thenBlock, current);
+            ssa.addPredecessor(elseBlock, current);
+        }
+        LLVMValueRef branch = LLVMBuildCondBr(builder, cond, thenBlock, elseBlock);
+        if(profile != null){
+            profile.branch(cond, branch);
+        }
+    }
+
+    private void sealBlock(LLVMBasicBlockRef block){
+        if(ssa != null){
+            ssa.sealBlock(block);
+        }
+    }
+
+    // anything after return/break/continue lands here instead of behind the terminator
+    private void startUnreachableBlock(){
+        LLVMBasicBlockRef block = LLVMAppendBasicBlockInContext(context, function, "unreachable");
+        LLVMPositionBuilderAtEnd(builder, block);
+        sealBlock(block);
+    }
+
+    private int evaluateConst(ParseTree tree){
+        Integer value = evaluator.evaluate(tree, symbols);
+        if(value == null){
+            throw new CompileException("not a constant expression: " + tree.getText());
         }
-        return text;
+        return value;
     }
 
     private LLVMTypeRef getTypeRef(String name){
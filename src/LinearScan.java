@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/**
+ * Linear scan register allocation, as Poletto and Sarkar describe it: each value has one live
+ * interval from the first to the last position it is live at, the intervals are visited in
+ * order of their start, and when no register is free the interval ending last is spilled to a
+ * stack slot of its own. Registers [0, calleeSaved) survive calls and the rest do not, so an
+ * interval a call falls inside only gets one of the first kind.
+ */
+public class LinearScan {
+    // where each value lives: a register if at least 0, the stack slot -location - 1 if less, NONE if nowhere
+    public static final int NONE = Integer.MIN_VALUE;
+
+    public final int[] locations;
+    public int spillSlots = 0;
+    // the registers any value got
+    public final boolean[] used;
+
+    private LinearScan(int values, int registers){
+        locations = new int[values];
+        Arrays.fill(locations, NONE);
+        used = new boolean[registers];
+    }
+
+    /**
+     * Allocates the values with an interval, those whose start is not negative. Values whose
+     * intervals only touch, one ending where the other starts, may share a register.
+     */
+    public static LinearScan allocate(int[] starts, int[] ends, boolean[] crossesCall, int registers, int calleeSaved){
+        LinearScan result = new LinearScan(starts.length, registers);
+        int count = 0;
+        long[] order = new long[starts.length];
+        for(int v = 0;v < starts.length;v++){
+            if(starts[v] >= 0){
+                order[count++] = (long) starts[v] << 32 | v;
+            }
+        }
+        Arrays.sort(order, 0, count);
+
+        // the value in each register, -1 if it is free
+        int[] holder = new int[registers];
+        Arrays.fill(holder, -1);
+        for(int i = 0;i < count;i++){
+            int v = (int) order[i];
+            for(int r = 0;r < registers;r++){
+                if(holder[r] >= 0 && ends[holder[r]] <= starts[v]){
+                    holder[r] = -1;
+                }
+            }
+            // registers that do not survive calls are tried first, to keep the others for what needs them
+            int limit = crossesCall[v] ? calleeSaved : registers;
+            int free = -1;
+            for(int r = limit - 1;r >= 0 && free < 0;r--){
+                free = holder[r] < 0 ? r : -1;
+            }
+            if(free >= 0){
+                holder[free] = v;
+                result.locations[v] = free;
+                result.used[free] = true;
+                continue;
+            }
+            int furthest = 0;
+            for(int r = 1;r < limit;r++){
+                furthest = ends[holder[r]] > ends[holder[furthest]] ? r : furthest;
+            }
+            if(ends[holder[furthest]] > ends[v]){
+                result.locations[holder[furthest]] = -++result.spillSlots;
+                holder[furthest] = v;
+                result.locations[v] = furthest;
+            } else result.locations[v] = -++result.spillSlots;
+        }
+        return result;
+    }
+
+}
@@ -1,11 +1,15 @@
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
-import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import static org.bytedeco.llvm.global.LLVM.*;
+import static org.bytedeco.llvm.global.LLVM.LLVMDisposeModule;
+import static org.bytedeco.llvm.global.LLVM.LLVMGetGlobalContext;
 
 public class Main {
 
@@ -20,24 +24,203 @@ public class Main {
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length < 2) {
-            System.err.println("input and output path is required");
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             return;
         }
-        SysYLexer sysYLexer = lexer(args[0]);
-        SysYParser sysYParser = parser(sysYLexer);
+        if (options.server != null) {
+            CompileServer.run(options);
+            return;
+        }
+
+        if (options.batch) {
+            System.exit(BatchCompiler.run(options));
+        }
+
+        PhaseTimer timer = new PhaseTimer(options.input);
+        if (options.syntaxOnly) {
+            try {
+                Compiler.check(options.input, options.fastLexer, timer);
+            } catch (CompileException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            if (options.timePhases) {
+                System.err.println(timer.toJson());
+            }
+            return;
+        }
+
+        if (options.interpret || options.differential) {
+            System.exit(options.interpret ? interpret(options, timer) : differential(options, timer));
+        }
+        if (options.x86) {
+            System.exit(x86(options, timer));
+        }
+
+        LLVMModuleRef module;
+        try {
+            Profile profile = Compiler.profile(options);
+            module = Compiler.compile(Compiler.parse(options.input, options.fastLexer, timer), options,
+                    LLVMGetGlobalContext(), timer, profile);
+            warn(profile);
+        } catch (CompileException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (options.cacheDir != null) {
+            System.err.println(FunctionCache.of(options).stats());
+        }
+
+        if (options.output != null) {
+            timer.start(PhaseTimer.Phase.EMIT);
+            Emitter.emit(module, options.format, options.optLevel, options.output);
+            timer.stop();
+        }
+        report(options, timer, module);
+
+        if (options.run) {
+            JitRunner.Result result;
+            try {
+                result = JitRunner.run(module, options.optLevel);
+            } catch (CompileException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+                return;
+            }
+            System.out.print(result.stdout);
+            System.out.flush();
+            System.exit(result.exitCode);
+        }
+        LLVMDisposeModule(module);
 
-        SysYParser.ProgramContext tree = sysYParser.program();
+    }
 
-        LLVMVisitor visitor = new LLVMVisitor();
-        visitor.visit(tree);
+    /**
+     * Runs on the interpreter, which does not load LLVM at all, reading the program's stdin and
+     * writing its stdout.
+     */
+    static int interpret(Options options, PhaseTimer timer) throws IOException {
+        Bytecode bytecode;
+        try {
+            bytecode = Compiler.bytecode(Compiler.parse(options.input, options.fastLexer, timer), timer);
+        } catch (CompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        if (options.timePhases) {
+            System.err.println(timer.toJson());
+        }
+        try {
+            return Interpreter.run(bytecode, System.in, System.out, System.err);
+        } catch (IllegalStateException e) {
+            System.out.flush();
+            System.err.println(options.input + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Compiles without LLVM to x86-64 assembly, written as is to an output path ending in .s and
+     * otherwise linked with the runtime into an executable there. --run links into a temporary
+     * executable unless there is one at the output path, and runs it on the streams of this
+     * process.
+     */
+    static int x86(Options options, PhaseTimer timer) throws IOException {
+        String assembly;
+        try {
+            assembly = Compiler.assembly(Compiler.parse(options.input, options.fastLexer, timer), timer);
+        } catch (CompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        boolean linked = options.output != null && !options.output.endsWith(".s");
+        Path source = linked || options.output == null ? Files.createTempFile("sysy", ".s") : Paths.get(options.output);
+        Path executable = linked ? Paths.get(options.output) : options.run ? Files.createTempFile("sysy", "") : null;
+        try {
+            timer.start(PhaseTimer.Phase.EMIT);
+            Files.writeString(source, assembly);
+            if (executable != null) {
+                Assembler.link(source.toString(), executable.toString());
+            }
+            timer.stop();
+        } catch (CompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } finally {
+            if (!source.toString().equals(options.output)) {
+                Files.deleteIfExists(source);
+            }
+        }
+        if (options.timePhases) {
+            System.err.println(timer.toJson());
+        }
+        if (!options.run) {
+            return 0;
+        }
+        try {
+            return Assembler.run(executable.toString());
+        } finally {
+            if (!linked) {
+                Files.deleteIfExists(executable);
+            }
+        }
+    }
 
-        final BytePointer error = new BytePointer();
+    /**
+     * Runs on both engines with all of stdin as the input of each. When they agree the output
+     * and exit code are the program's, otherwise how they differ is reported and the exit code
+     * is 1.
+     */
+    static int differential(Options options, PhaseTimer timer) throws IOException {
+        Differential result;
+        try {
+            SysYParser.ProgramContext tree = Compiler.parse(options.input, options.fastLexer, timer);
+            Profile profile = Compiler.profile(options);
+            result = Differential.run(tree, options, LLVMGetGlobalContext(), System.in.readAllBytes(), timer, profile);
+            warn(profile);
+        } catch (CompileException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        String mismatch = result.mismatch();
+        if (mismatch != null) {
+            System.err.println(options.input + ": the engines differ: " + mismatch);
+            return 1;
+        }
+        System.out.print(result.compiled.stdout);
+        System.out.flush();
+        return result.compiled.exitCode;
+    }
 
-        if (LLVMPrintModuleToFile(visitor.getModule(), args[1], error) != 0) {    // module是你自定义的LLVMModuleRef对象
-            LLVMDisposeMessage(error);
+    // what the profile could not be applied to, null for no profile
+    static void warn(Profile profile){
+        if (profile != null) {
+            for (String warning: profile.warnings()) {
+                System.err.println("warning: " + warning);
+            }
         }
+    }
 
+    /**
+     * --time-phases and --stats print one JSON object per line to stderr. The IR counts are
+     * only taken when they are printed or a JFR recording wants them.
+     */
+    static void report(Options options, PhaseTimer timer, LLVMModuleRef module){
+        if (options.timePhases) {
+            System.err.println(timer.toJson());
+        }
+        if (options.stats || ModuleStats.recording()) {
+            ModuleStats stats = new ModuleStats(timer.file(), module);
+            stats.commit();
+            if (options.stats) {
+                System.err.println(stats.toJson());
+            }
+        }
     }
 
 }
@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The mid-level IR {@link MirBuilder} builds from a parse tree, {@link MirOptimizer} cleans up
+ * and {@link MirLowering} turns into LLVM IR. Values are ints in SSA form, so a value is the
+ * index of the instruction defining it and a block is an index into the block arrays of its
+ * function. An instruction is an opcode and up to three operands in parallel int arrays;
+ * operand lists of any length, the arguments of a call and the operands of a phi, are a run
+ * of extra. Arrays of any rank are flat: an address points at an int and ELEM offsets it.
+ */
+public class Mir {
+    // a: the value
+    public static final int CONST = 1;
+    // a: the index of the parameter
+    public static final int PARAM = 2;
+    // a op b
+    public static final int ADD = 3;
+    public static final int SUB = 4;
+    public static final int MUL = 5;
+    public static final int DIV = 6;
+    public static final int REM = 7;
+    // 1 if a op b holds, else 0
+    public static final int EQ = 8;
+    public static final int NE = 9;
+    public static final int LT = 10;
+    public static final int GT = 11;
+    public static final int LE = 12;
+    public static final int GE = 13;
+    // a: offset in extra, b: count; one operand per predecessor, in the order of preds
+    public static final int PHI = 14;
+    // a: the index of the global; its address
+    public static final int GLOBAL = 15;
+    // a: the number of ints; the address of a fresh array
+    public static final int ALLOCA = 16;
+    // the address of element b of the array at a
+    public static final int ELEM = 17;
+    public static final int LOAD = 18;
+    // a: address, b: value
+    public static final int STORE = 19;
+    // a: address, b: the number of ints to set to zero
+    public static final int CLEAR = 20;
+    // a: destination, b: source, c: the number of ints
+    public static final int COPY = 21;
+    // a: the index of the function, b: offset in extra, c: count
+    public static final int CALL = 22;
+    // a: block
+    public static final int JUMP = 23;
+    // a: condition, b: the block if it is not zero, c: the block if it is
+    public static final int BRANCH = 24;
+    // a: the value, -1 in a void function
+    public static final int RET = 25;
+    // an instruction a pass removed
+    public static final int NOP = 0;
+
+    static final String[] NAMES = {"nop", "const", "param", "add", "sub", "mul", "div", "rem", "eq", "ne",
+            "lt", "gt", "le", "ge", "phi", "global", "alloca", "elem", "load", "store", "clear", "copy", "call",
+            "jump", "branch", "ret"};
+
+    public final List<Global> globals = new ArrayList<>();
+    public final List<Function> functions = new ArrayList<>();
+
+    public static class Global {
+        public final String name;
+        public final int size;
+        // row-major, null if all zero
+        public final int[] values;
+        public final boolean scalar;
+        public final boolean constant;
+        // the copy source of a local array initializer, seen by no other module
+        public final boolean internal;
+
+        Global(String name, int size, int[] values, boolean scalar, boolean constant, boolean internal){
+            this.name = name;
+            this.size = size;
+            this.values = values;
+            this.scalar = scalar;
+            this.constant = constant;
+            this.internal = internal;
+        }
+    }
+
+    public static class Function {
+        public final String name;
+        public final boolean returnsInt;
+        // which parameters are arrays, passed as the address of their first int
+        public final boolean[] arrayParams;
+        // the runtime library has no body here
+        public final boolean external;
+
+        int count = 0;
+        int[] op = new int[64];
+        int[] a = new int[64];
+        int[] b = new int[64];
+        int[] c = new int[64];
+        int[] block = new int[64];
+        int extraCount = 0;
+        int[] extra = new int[64];
+
+        int blocks = 0;
+        int[][] code = new int[8][];
+        int[] codeLength = new int[8];
+        int[][] preds = new int[8][];
+        int[] predCount = new int[8];
+        boolean[] removed = new boolean[8];
+
+        Function(String name, boolean returnsInt, boolean[] arrayParams, boolean external){
+            this.name = name;
+            this.returnsInt = returnsInt;
+            this.arrayParams = arrayParams;
+            this.external = external;
+        }
+
+        int newBlock(){
+            if(blocks == code.length){
+                int length = blocks * 2;
+                code = Arrays.copyOf(code, length);
+                codeLength = Arrays.copyOf(codeLength, length);
+                preds = Arrays.copyOf(preds, length);
+                predCount = Arrays.copyOf(predCount, length);
+                removed = Arrays.copyOf(removed, length);
+            }
+            code[blocks] = new int[4];
+            preds[blocks] = new int[2];
+            return blocks++;
+        }
+
+        // a new instruction at the end of the block
+        int add(int block, int op, int a, int b, int c){
+            int instruction = create(block, op, a, b, c);
+            if(codeLength[block] == code[block].length){
+                code[block] = Arrays.copyOf(code[block], codeLength[block] * 2);
+            }
+            code[block][codeLength[block]++] = instruction;
+            return instruction;
+        }
+
+        /**
+         * A new instruction ahead of everything in the block but the phis and the instructions
+         * of the same kind already there: phis at the start of any block, allocas at the entry
+         * and values needed in a block that is already closed.
+         */
+        int addFront(int block, int op, int a, int b, int c){
+            int instruction = create(block, op, a, b, c);
+            int[] list = code[block];
+            if(codeLength[block] == list.length){
+                list = code[block] = Arrays.copyOf(list, codeLength[block] * 2);
+            }
+            int at = 0;
+            while(at < codeLength[block] && (this.op[list[at]] == PHI || this.op[list[at]] == op)){
+                at++;
+            }
+            System.arraycopy(list, at, list, at + 1, codeLength[block] - at);
+            list[at] = instruction;
+            codeLength[block]++;
+            return instruction;
+        }
+
+        private int create(int block, int op, int a, int b, int c){
+            if(count == this.op.length){
+                int length = count * 2;
+                this.op = Arrays.copyOf(this.op, length);
+                this.a = Arrays.copyOf(this.a, length);
+                this.b = Arrays.copyOf(this.b, length);
+                this.c = Arrays.copyOf(this.c, length);
+                this.block = Arrays.copyOf(this.block, length);
+            }
+            this.op[count] = op;
+            this.a[count] = a;
+            this.b[count] = b;
+            this.c[count] = c;
+            this.block[count] = block;
+            return count++;
+        }
+
+        // room for count operands in extra, returned as their offset
+        int allocateExtra(int count){
+            if(extraCount + count > extra.length){
+                extra = Arrays.copyOf(extra, Math.max(extra.length * 2, extraCount + count));
+            }
+            int offset = extraCount;
+            extraCount += count;
+            return offset;
+        }
+
+        void addPred(int block, int pred){
+            if(predCount[block] == preds[block].length){
+                preds[block] = Arrays.copyOf(preds[block], predCount[block] * 2);
+            }
+            preds[block][predCount[block]++] = pred;
+        }
+
+        // the last instruction of the block, -1 while it is still open
+        int terminator(int block){
+            if(codeLength[block] == 0){
+                return -1;
+            }
+            int last = code[block][codeLength[block] - 1];
+            return isTerminator(op[last]) ? last : -1;
+        }
+
+        // the values an instruction uses
+        int operandCount(int instruction){
+            switch (op[instruction]){
+                case PHI:
+                    return b[instruction];
+                case CALL:
+                    return c[instruction];
+                case LOAD:
+                case CLEAR:
+                case BRANCH:
+                    return 1;
+                case RET:
+                    return a[instruction] < 0 ? 0 : 1;
+                case ELEM:
+                case STORE:
+                case COPY:
+                    return 2;
+                default:
+                    return op[instruction] >= ADD && op[instruction] <= GE ? 2 : 0;
+            }
+        }
+
+        int operand(int instruction, int i){
+            switch (op[instruction]){
+                case PHI:
+                    return extra[a[instruction] + i];
+                case CALL:
+                    return extra[b[instruction] + i];
+                default:
+                    return i == 0 ? a[instruction] : b[instruction];
+            }
+        }
+
+        void setOperand(int instruction, int i, int value){
+            switch (op[instruction]){
+                case PHI:
+                    extra[a[instruction] + i] = value;
+                    break;
+                case CALL:
+                    extra[b[instruction] + i] = value;
+                    break;
+                default:
+                    if(i == 0){
+                        a[instruction] = value;
+                    } else b[instruction] = value;
+            }
+        }
+
+        boolean isAddress(int value){
+            switch (op[value]){
+                case GLOBAL:
+                case ALLOCA:
+                case ELEM:
+                    return true;
+                case PARAM:
+                    return arrayParams[a[value]];
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * The blocks reachable from the entry in reverse postorder, in which every block comes
+         * after the blocks dominating it.
+         */
+        int[] reversePostorder(){
+            int[] order = new int[blocks];
+            int n = blocks;
+            boolean[] visited = new boolean[blocks];
+            int[] stack = new int[blocks];
+            int[] next = new int[blocks];
+            int depth = 0;
+            stack[depth++] = 0;
+            visited[0] = true;
+            while(depth > 0){
+                int block = stack[depth - 1];
+                int terminator = terminator(block);
+                int successor = -1;
+                if(terminator >= 0 && op[terminator] == JUMP && next[block] == 0){
+                    successor = a[terminator];
+                } else if(terminator >= 0 && op[terminator] == BRANCH && next[block] < 2){
+                    successor = next[block] == 0 ? b[terminator] : c[terminator];
+                }
+                if(successor < 0){
+                    order[--n] = block;
+                    depth--;
+                    continue;
+                }
+                next[block]++;
+                if(!visited[successor]){
+                    visited[successor] = true;
+                    stack[depth++] = successor;
+                }
+            }
+            return Arrays.copyOfRange(order, n, blocks);
+        }
+    }
+
+    static boolean isTerminator(int op){
+        return op == JUMP || op == BRANCH || op == RET;
+    }
+
+    static boolean isCompare(int op){
+        return op >= EQ && op <= GE;
+    }
+
+    // what must stay even if nothing uses its value
+    static boolean hasEffect(int op){
+        return op == STORE || op == CLEAR || op == COPY || op == CALL || isTerminator(op);
+    }
+
+    // the value of a op b, null for a division that traps: by zero, or MIN_VALUE by -1
+    static Integer fold(int op, int a, int b){
+        switch (op){
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MUL: return a * b;
+            case DIV: return b == 0 || a == Integer.MIN_VALUE && b == -1 ? null : a / b;
+            case REM: return b == 0 || a == Integer.MIN_VALUE && b == -1 ? null : a % b;
+            case EQ: return a == b ? 1 : 0;
+            case NE: return a != b ? 1 : 0;
+            case LT: return a < b ? 1 : 0;
+            case GT: return a > b ? 1 : 0;
+            case LE: return a <= b ? 1 : 0;
+            case GE: return a >= b ? 1 : 0;
+            default: return null;
+        }
+    }
+
+}
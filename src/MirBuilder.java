@@ -0,0 +1,699 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the {@link Mir} of a parse tree. It is in SSA form from the start: scalar locals and
+ * parameters are variables, read and written with the same on-the-fly construction SSABuilder
+ * does for LLVM, so only arrays and globals are kept in memory. Control flow, conditions and
+ * array initializers are laid out the way LLVMVisitor lays them out, and nothing is folded
+ * here that ConstEvaluator does not fold; the rest is left to {@link MirOptimizer}.
+ */
+public class MirBuilder extends SysYParserBaseVisitor<Integer> {
+    // up to this many nonzero constants in a local array initializer are stored one by one
+    private static final int FEW_STORES = 8;
+
+    // what the slots Resolver put on the tree name, and what their value is
+    private static final int VARIABLE = 1;      // an SSA variable
+    private static final int SCALAR = 2;        // the index of a global int
+    private static final int GLOBAL_ARRAY = 3;  // the index of a global array
+    private static final int ARRAY = 4;         // the address of a local or parameter array
+    private static final int FUNCTION = 5;      // the index of a function
+    private static final int CONSTANT = 6;      // a const int, whose uses are all folded
+
+    private final Mir program = new Mir();
+    private final ConstEvaluator evaluator = new ConstEvaluator();
+    private Symbol[] symbols = null;
+    private int[] kinds = null;
+    private int[] values = null;
+    // strides[i] is the number of ints one step of the i-th index skips
+    private int[][] strides = null;
+
+    private Mir.Function function = null;
+    private int current = -1;
+    private final Deque<Integer> whileStack = new ArrayDeque<>();
+    private final Deque<Integer> entryStack = new ArrayDeque<>();
+
+    // the SSA construction, per function
+    private final List<Map<Integer, Integer>> currentDef = new ArrayList<>();
+    private final Map<Integer, Map<Integer, Integer>> incompletePhis = new HashMap<>();
+    private final BitSet sealed = new BitSet();
+    private int variables = 0;
+
+    public static Mir build(SysYParser.ProgramContext tree){
+        MirBuilder builder = new MirBuilder();
+        builder.visit(tree);
+        return builder.program;
+    }
+
+    @Override
+    public Integer visitProgram(SysYParser.ProgramContext ctx) {
+        int slots = Resolver.resolve(ctx);
+        symbols = new Symbol[slots];
+        kinds = new int[slots];
+        values = new int[slots];
+        strides = new int[slots][];
+        for(SysYLib.Function library: SysYLib.FUNCTIONS){
+            boolean[] arrayParams = new boolean[library.params.length()];
+            for(int i = 0;i < arrayParams.length;i++){
+                arrayParams[i] = library.params.charAt(i) == 'p';
+            }
+            kinds[program.functions.size()] = FUNCTION;
+            values[program.functions.size()] = program.functions.size();
+            program.functions.add(new Mir.Function(library.symbol, library.returnsInt, arrayParams, true));
+        }
+        return super.visitProgram(ctx);
+    }
+
+    @Override
+    public Integer visitFuncDef(SysYParser.FuncDefContext ctx) {
+        List<SysYParser.FuncFParamContext> params = ctx.funcFParams() == null ? List.of()
+                : ctx.funcFParams().funcFParam();
+        boolean[] arrayParams = new boolean[params.size()];
+        for(int i = 0;i < arrayParams.length;i++){
+            arrayParams[i] = !params.get(i).L_BRACKT().isEmpty();
+        }
+        function = new Mir.Function(ctx.IDENT().getText(), ctx.funcType().INT() != null, arrayParams, false);
+        kinds[ctx.slot] = FUNCTION;
+        values[ctx.slot] = program.functions.size();
+        program.functions.add(function);
+
+        currentDef.clear();
+        incompletePhis.clear();
+        sealed.clear();
+        variables = 0;
+        current = newBlock();
+        seal(current);
+
+        for(int i = 0;i < arrayParams.length;i++){
+            SysYParser.FuncFParamContext param = params.get(i);
+            int value = emit(Mir.PARAM, i, 0, 0);
+            if(arrayParams[i]){
+                // the first dimension is not given, and no stride depends on it
+                int[] dims = new int[param.exp().size() + 1];
+                System.arraycopy(dimensions(param.exp()), 0, dims, 1, dims.length - 1);
+                declare(param.slot, ARRAY, value, dims);
+                continue;
+            }
+            declare(param.slot, VARIABLE, variables++, new int[0]);
+            writeVariable(values[param.slot], current, value);
+        }
+
+        visit(ctx.block());
+        emit(Mir.RET, function.returnsInt ? constant(0) : -1, 0, 0);
+        function = null;
+        return null;
+    }
+
+    @Override
+    public Integer visitConstDecl(SysYParser.ConstDeclContext ctx) {
+        for(SysYParser.ConstDefContext constDef: ctx.constDef()){
+            int[] dims = dimensions(constDef.constExp());
+            int[] constValues;
+            if(dims.length == 0){
+                constValues = new int[]{evaluateConst(constDef.constInitVal().constExp())};
+            } else {
+                ParseTree[] items = ConstEvaluator.flatten(constDef.constInitVal(), dims);
+                constValues = new int[items.length];
+                for(int i = 0;i < items.length;i++){
+                    constValues[i] = items[i] == null ? 0 : evaluateConst(items[i]);
+                }
+            }
+            symbols[constDef.slot] = Symbol.constant(null, null, dims, constValues);
+
+            String name = constDef.IDENT().getText();
+            if(dims.length == 0){
+                declare(constDef.slot, CONSTANT, constValues[0], dims);
+            } else if(function == null){
+                declare(constDef.slot, GLOBAL_ARRAY, program.globals.size(), dims);
+                program.globals.add(new Mir.Global(name, constValues.length, constValues, false, true, false));
+            } else {
+                int address = function.addFront(0, Mir.ALLOCA, constValues.length, 0, 0);
+                declare(constDef.slot, ARRAY, address, dims);
+                initializeArray(address, constValues, new boolean[constValues.length], name);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Integer visitVarDecl(SysYParser.VarDeclContext ctx) {
+        for(SysYParser.VarDefContext varDef: ctx.varDef()){
+            String name = varDef.IDENT().getText();
+            int[] dims = dimensions(varDef.constExp());
+            boolean assign = varDef.ASSIGN() != null;
+
+            if(dims.length == 0){
+                if(function == null){
+                    int[] init = assign ? new int[]{evaluateConst(varDef.initVal().exp())} : null;
+                    declare(varDef.slot, SCALAR, program.globals.size(), dims);
+                    program.globals.add(new Mir.Global(name, 1, init, true, false, false));
+                } else {
+                    int value = assign ? visit(varDef.initVal().exp()) : constant(0);
+                    declare(varDef.slot, VARIABLE, variables++, dims);
+                    writeVariable(values[varDef.slot], current, value);
+                }
+                continue;
+            }
+
+            int size = 1;
+            for(int dim: dims){
+                size *= dim;
+            }
+            // the elements in row-major order: constants, or values where computed is set
+            int[] elements = new int[size];
+            boolean[] computed = new boolean[size];
+            if(assign){
+                ParseTree[] items = ConstEvaluator.flatten(varDef.initVal(), dims);
+                for(int i = 0;i < size;i++){
+                    Integer constant = items[i] == null ? Integer.valueOf(0) : evaluator.evaluate(items[i], symbols);
+                    if(constant != null){
+                        elements[i] = constant;
+                    } else if(function == null){
+                        throw new CompileException("not a constant expression: " + items[i].getText());
+                    } else {
+                        elements[i] = visit(items[i]);
+                        computed[i] = true;
+                    }
+                }
+            }
+
+            if(function == null){
+                declare(varDef.slot, GLOBAL_ARRAY, program.globals.size(), dims);
+                program.globals.add(new Mir.Global(name, size, assign ? elements : null, false, false, false));
+            } else {
+                int address = function.addFront(0, Mir.ALLOCA, size, 0, 0);
+                declare(varDef.slot, ARRAY, address, dims);
+                if(assign){
+                    initializeArray(address, elements, computed, name);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void declare(int slot, int kind, int value, int[] dims){
+        kinds[slot] = kind;
+        values[slot] = value;
+        int[] stride = new int[dims.length];
+        for(int i = dims.length - 1, size = 1;i >= 0;size *= dims[i], i--){
+            stride[i] = size;
+        }
+        strides[slot] = stride;
+    }
+
+    private int[] dimensions(List<? extends ParseTree> exps){
+        int[] dims = new int[exps.size()];
+        for(int i = 0;i < dims.length;i++){
+            dims[i] = evaluateConst(exps.get(i));
+        }
+        return dims;
+    }
+
+    /**
+     * Initializes a local array as LLVMVisitor does: zeros are one CLEAR, more than a few
+     * constants are one COPY from a constant global, and only the rest is stored one by one.
+     */
+    private void initializeArray(int address, int[] elements, boolean[] computed, String name){
+        int constants = 0;
+        int prefix = 0;
+        for(int i = 0;i < elements.length;i++){
+            if(!computed[i] && elements[i] != 0){
+                constants++;
+                prefix = i + 1;
+            }
+        }
+        boolean copy = constants > FEW_STORES;
+        if(!copy){
+            prefix = 0;
+        }
+        boolean clear = false;
+        for(int i = prefix;i < elements.length && !clear;i++){
+            clear = !computed[i] && elements[i] == 0;
+        }
+
+        if(clear){
+            int rest = prefix == 0 ? address : emit(Mir.ELEM, address, constant(prefix), 0);
+            emit(Mir.CLEAR, rest, elements.length - prefix, 0);
+        }
+        if(copy){
+            int[] pattern = new int[prefix];
+            for(int i = 0;i < prefix;i++){
+                pattern[i] = computed[i] ? 0 : elements[i];
+            }
+            int global = program.globals.size();
+            program.globals.add(new Mir.Global("__const." + function.name + "." + name, prefix, pattern,
+                    false, true, true));
+            emit(Mir.COPY, address, emit(Mir.GLOBAL, global, 0, 0), prefix);
+        }
+        for(int i = 0;i < elements.length;i++){
+            if(!computed[i] && (copy || elements[i] == 0)){
+                continue;
+            }
+            int value = computed[i] ? elements[i] : constant(elements[i]);
+            emit(Mir.STORE, emit(Mir.ELEM, address, constant(i), 0), value, 0);
+        }
+    }
+
+    @Override
+    public Integer visitAssignStmt(SysYParser.AssignStmtContext ctx) {
+        int value = visit(ctx.exp());
+        int slot = ctx.lVal().slot;
+        if(kinds[slot] == VARIABLE){
+            writeVariable(values[slot], current, value);
+        } else emit(Mir.STORE, address(ctx.lVal()), value, 0);
+        return null;
+    }
+
+    @Override
+    public Integer visitIfStmt(SysYParser.IfStmtContext ctx) {
+        List<SysYParser.CondContext> conds = ctx.cond();
+        List<SysYParser.StmtContext> stmts = ctx.stmt();
+        int arms = conds.size();
+        boolean hasElse = stmts.size() > arms;
+        int entry = newBlock();
+        for(int i = 0;i < arms;i++){
+            int trueBlock = newBlock();
+            int falseBlock = i + 1 < arms || hasElse ? newBlock() : entry;
+            buildCond(conds.get(i), trueBlock, falseBlock);
+            seal(trueBlock);
+
+            current = trueBlock;
+            visit(stmts.get(i));
+            jump(entry);
+
+            if(falseBlock != entry){
+                seal(falseBlock);
+                current = falseBlock;
+            }
+        }
+        if(hasElse){
+            visit(stmts.get(arms));
+            jump(entry);
+        }
+        seal(entry);
+        current = entry;
+        return null;
+    }
+
+    @Override
+    public Integer visitWhileStmt(SysYParser.WhileStmtContext ctx) {
+        int whileCond = newBlock();
+        int whileBody = newBlock();
+        int entry = newBlock();
+        jump(whileCond);
+
+        current = whileCond;
+        buildCond(ctx.cond(), whileBody, entry);
+        seal(whileBody);
+
+        current = whileBody;
+        whileStack.push(whileCond);
+        entryStack.push(entry);
+        visit(ctx.stmt());
+        jump(whileCond);
+        whileStack.pop();
+        entryStack.pop();
+        seal(whileCond);
+        seal(entry);
+
+        current = entry;
+        return null;
+    }
+
+    @Override
+    public Integer visitBreakStmt(SysYParser.BreakStmtContext ctx) {
+        jump(entryStack.peek());
+        startUnreachableBlock();
+        return null;
+    }
+
+    @Override
+    public Integer visitContinueStmt(SysYParser.ContinueStmtContext ctx) {
+        jump(whileStack.peek());
+        startUnreachableBlock();
+        return null;
+    }
+
+    @Override
+    public Integer visitReturnStmt(SysYParser.ReturnStmtContext ctx) {
+        emit(Mir.RET, ctx.exp() != null ? visit(ctx.exp()) : -1, 0, 0);
+        startUnreachableBlock();
+        return null;
+    }
+
+    @Override
+    public Integer visitParenExp(SysYParser.ParenExpContext ctx) {
+        return visit(ctx.exp());
+    }
+
+    @Override
+    public Integer visitLValExp(SysYParser.LValExpContext ctx) {
+        Integer constant = evaluator.evaluate(ctx, symbols);
+        if(constant != null){
+            return constant(constant);
+        }
+        SysYParser.LValContext lVal = ctx.lVal();
+        switch (kinds[lVal.slot]){
+            case VARIABLE:
+                return readVariable(values[lVal.slot], current);
+            case SCALAR:
+                return emit(Mir.LOAD, emit(Mir.GLOBAL, values[lVal.slot], 0, 0), 0, 0);
+            default:
+                // with fewer indices than dimensions, the address of the subarray is the value
+                int address = address(lVal);
+                return lVal.exp().size() < strides[lVal.slot].length ? address : emit(Mir.LOAD, address, 0, 0);
+        }
+    }
+
+    @Override
+    public Integer visitNumberExp(SysYParser.NumberExpContext ctx) {
+        return constant(ConstEvaluator.parseInteger(ctx.getText()));
+    }
+
+    @Override
+    public Integer visitFuncExp(SysYParser.FuncExpContext ctx) {
+        int callee = values[ctx.slot];
+        SysYLib.Function library = ctx.slot < SysYLib.FUNCTIONS.size() ? SysYLib.FUNCTIONS.get(ctx.slot) : null;
+        int[] args = new int[0];
+        if(library != null && library.passesLine()){
+            args = new int[]{constant(ctx.IDENT().getSymbol().getLine())};
+        } else if(ctx.funcRParams() != null){
+            List<SysYParser.ParamContext> params = ctx.funcRParams().param();
+            args = new int[params.size()];
+            for(int i = 0;i < args.length;i++){
+                args[i] = visit(params.get(i).exp());
+            }
+        }
+        int offset = function.allocateExtra(args.length);
+        System.arraycopy(args, 0, function.extra, offset, args.length);
+        return emit(Mir.CALL, callee, offset, args.length);
+    }
+
+    @Override
+    public Integer visitUnaryExp(SysYParser.UnaryExpContext ctx) {
+        int value = visit(ctx.exp());
+        if(ctx.unaryOp().MINUS() != null){
+            return emit(Mir.SUB, constant(0), value, 0);
+        } else if(ctx.unaryOp().NOT() != null){
+            return emit(Mir.EQ, value, constant(0), 0);
+        }
+        return value;
+    }
+
+    @Override
+    public Integer visitMulDivModExp(SysYParser.MulDivModExpContext ctx) {
+        return arithmetic(ctx);
+    }
+
+    @Override
+    public Integer visitPlusMinusExp(SysYParser.PlusMinusExpContext ctx) {
+        return arithmetic(ctx);
+    }
+
+    // folded down the left operands in a loop, as in LLVMVisitor
+    private int arithmetic(SysYParser.ExpContext ctx){
+        Deque<SysYParser.ExpContext> spine = new ArrayDeque<>();
+        SysYParser.ExpContext left = ctx;
+        while(left instanceof SysYParser.MulDivModExpContext || left instanceof SysYParser.PlusMinusExpContext){
+            spine.push(left);
+            left = left.getRuleContext(SysYParser.ExpContext.class, 0);
+        }
+        int lVal = visit(left);
+        while(!spine.isEmpty()){
+            SysYParser.ExpContext node = spine.pop();
+            int rVal = visit(node.getRuleContext(SysYParser.ExpContext.class, 1));
+            int op;
+            if(node instanceof SysYParser.PlusMinusExpContext){
+                op = ((SysYParser.PlusMinusExpContext) node).PLUS() != null ? Mir.ADD : Mir.SUB;
+            } else {
+                SysYParser.MulDivModExpContext mulDivMod = (SysYParser.MulDivModExpContext) node;
+                op = mulDivMod.MUL() != null ? Mir.MUL : mulDivMod.DIV() != null ? Mir.DIV : Mir.REM;
+            }
+            lVal = emit(op, lVal, rVal, 0);
+        }
+        return lVal;
+    }
+
+    @Override
+    public Integer visitExpCond(SysYParser.ExpCondContext ctx) {
+        return visit(ctx.exp());
+    }
+
+    @Override
+    public Integer visitCompareCond(SysYParser.CompareCondContext ctx) {
+        return compare(ctx);
+    }
+
+    @Override
+    public Integer visitEqualCond(SysYParser.EqualCondContext ctx) {
+        return compare(ctx);
+    }
+
+    @Override
+    public Integer visitAndCond(SysYParser.AndCondContext ctx) {
+        return condValue(ctx);
+    }
+
+    @Override
+    public Integer visitOrCond(SysYParser.OrCondContext ctx) {
+        return condValue(ctx);
+    }
+
+    // a right operand of && or || still to branch on, from its own block
+    private static class Branch {
+        final SysYParser.CondContext cond;
+        final int block;
+        final int trueBlock;
+        final int falseBlock;
+
+        Branch(SysYParser.CondContext cond, int block, int trueBlock, int falseBlock){
+            this.cond = cond;
+            this.block = block;
+            this.trueBlock = trueBlock;
+            this.falseBlock = falseBlock;
+        }
+    }
+
+    // branches without computing the value of the condition, as LLVMVisitor.buildCond does
+    private void buildCond(SysYParser.CondContext ctx, int trueBlock, int falseBlock){
+        Deque<Branch> pending = new ArrayDeque<>();
+        pending.push(new Branch(ctx, -1, trueBlock, falseBlock));
+        while(!pending.isEmpty()){
+            Branch branch = pending.pop();
+            if(branch.block >= 0){
+                seal(branch.block);
+                current = branch.block;
+            }
+            SysYParser.CondContext cond = branch.cond;
+            trueBlock = branch.trueBlock;
+            falseBlock = branch.falseBlock;
+            while(cond instanceof SysYParser.AndCondContext || cond instanceof SysYParser.OrCondContext){
+                boolean and = cond instanceof SysYParser.AndCondContext;
+                int right = newBlock();
+                pending.push(new Branch(cond.getRuleContext(SysYParser.CondContext.class, 1), right, trueBlock, falseBlock));
+                if(and){
+                    trueBlock = right;
+                } else falseBlock = right;
+                cond = cond.getRuleContext(SysYParser.CondContext.class, 0);
+            }
+
+            int value;
+            if(cond instanceof SysYParser.ExpCondContext){
+                SysYParser.ExpContext exp = ((SysYParser.ExpCondContext) cond).exp();
+                while(exp instanceof SysYParser.UnaryExpContext && ((SysYParser.UnaryExpContext) exp).unaryOp().NOT() != null){
+                    int swap = trueBlock;
+                    trueBlock = falseBlock;
+                    falseBlock = swap;
+                    exp = ((SysYParser.UnaryExpContext) exp).exp();
+                }
+                value = visit(exp);
+            } else value = compare(cond);
+
+            if(function.op[value] == Mir.CONST){
+                jump(function.a[value] != 0 ? trueBlock : falseBlock);
+            } else {
+                emit(Mir.BRANCH, value, trueBlock, falseBlock);
+                function.addPred(trueBlock, current);
+                function.addPred(falseBlock, current);
+            }
+        }
+    }
+
+    // a < b < c compares the 0 or 1 of a < b with c, folded in a loop like arithmetic
+    private int compare(SysYParser.CondContext ctx){
+        Deque<SysYParser.CondContext> spine = new ArrayDeque<>();
+        SysYParser.CondContext left = ctx;
+        while(left instanceof SysYParser.CompareCondContext || left instanceof SysYParser.EqualCondContext){
+            spine.push(left);
+            left = left.getRuleContext(SysYParser.CondContext.class, 0);
+        }
+        int lVal = visit(left);
+        while(!spine.isEmpty()){
+            SysYParser.CondContext node = spine.pop();
+            int rVal = visit(node.getRuleContext(SysYParser.CondContext.class, 1));
+            int op;
+            if(node instanceof SysYParser.EqualCondContext){
+                op = ((SysYParser.EqualCondContext) node).EQ() != null ? Mir.EQ : Mir.NE;
+            } else {
+                SysYParser.CompareCondContext compare = (SysYParser.CompareCondContext) node;
+                op = compare.LT() != null ? Mir.LT : compare.GT() != null ? Mir.GT : compare.LE() != null ? Mir.LE : Mir.GE;
+            }
+            lVal = emit(op, lVal, rVal, 0);
+        }
+        return lVal;
+    }
+
+    // && or || used as a value is 1 or 0, merged by a phi
+    private int condValue(SysYParser.CondContext ctx){
+        int trueBlock = newBlock();
+        int falseBlock = newBlock();
+        int after = newBlock();
+        buildCond(ctx, trueBlock, falseBlock);
+        seal(trueBlock);
+        seal(falseBlock);
+
+        current = trueBlock;
+        int one = constant(1);
+        jump(after);
+        current = falseBlock;
+        int zero = constant(0);
+        jump(after);
+        seal(after);
+
+        current = after;
+        int phi = function.addFront(after, Mir.PHI, function.allocateExtra(2), 2, 0);
+        function.extra[function.a[phi]] = one;
+        function.extra[function.a[phi] + 1] = zero;
+        return phi;
+    }
+
+    // the address of the named element, or of the first int of the named subarray
+    private int address(SysYParser.LValContext ctx){
+        int slot = ctx.slot;
+        int base = kinds[slot] == ARRAY ? values[slot] : emit(Mir.GLOBAL, values[slot], 0, 0);
+        int offset = -1;
+        for(int i = 0;i < ctx.exp().size();i++){
+            int index = visit(ctx.exp(i));
+            if(strides[slot][i] != 1){
+                index = emit(Mir.MUL, index, constant(strides[slot][i]), 0);
+            }
+            offset = offset < 0 ? index : emit(Mir.ADD, offset, index, 0);
+        }
+        return offset < 0 ? base : emit(Mir.ELEM, base, offset, 0);
+    }
+
+    private int emit(int op, int a, int b, int c){
+        return function.add(current, op, a, b, c);
+    }
+
+    private int constant(int value){
+        return emit(Mir.CONST, value, 0, 0);
+    }
+
+    private int newBlock(){
+        int block = function.newBlock();
+        while(currentDef.size() <= block){
+            currentDef.add(null);
+        }
+        return block;
+    }
+
+    private void jump(int target){
+        emit(Mir.JUMP, target, 0, 0);
+        function.addPred(target, current);
+    }
+
+    // anything after return/break/continue lands here instead of behind the terminator
+    private void startUnreachableBlock(){
+        current = newBlock();
+        seal(current);
+    }
+
+    private int evaluateConst(ParseTree tree){
+        Integer value = evaluator.evaluate(tree, symbols);
+        if(value == null){
+            throw new CompileException("not a constant expression: " + tree.getText());
+        }
+        return value;
+    }
+
+    private void writeVariable(int variable, int block, int value){
+        Map<Integer, Integer> defs = currentDef.get(block);
+        if(defs == null){
+            defs = new HashMap<>();
+            currentDef.set(block, defs);
+        }
+        defs.put(variable, value);
+    }
+
+    private int readVariable(int variable, int block){
+        Map<Integer, Integer> defs = currentDef.get(block);
+        if(defs != null && defs.containsKey(variable)){
+            return defs.get(variable);
+        }
+        return readVariableRecursive(variable, block);
+    }
+
+    // as in SSABuilder, chains of sealed blocks with one predecessor are walked in a loop
+    private int readVariableRecursive(int variable, int block){
+        List<Integer> chain = new ArrayList<>();
+        int value = -1;
+        while(sealed.get(block) && function.predCount[block] == 1){
+            chain.add(block);
+            block = function.preds[block][0];
+            Map<Integer, Integer> defs = currentDef.get(block);
+            if(defs != null && defs.containsKey(variable)){
+                value = defs.get(variable);
+                break;
+            }
+        }
+
+        if(value < 0){
+            if(!sealed.get(block)){
+                value = function.addFront(block, Mir.PHI, 0, 0, 0);
+                incompletePhis.computeIfAbsent(block, k -> new HashMap<>()).put(variable, value);
+            } else if(function.predCount[block] == 0){
+                // read before any write, in a block nothing branches to
+                value = function.addFront(block, Mir.CONST, 0, 0, 0);
+            } else {
+                value = function.addFront(block, Mir.PHI, 0, 0, 0);
+                writeVariable(variable, block, value);
+                addPhiOperands(variable, value, block);
+            }
+            writeVariable(variable, block, value);
+        }
+        for(int walked: chain){
+            writeVariable(variable, walked, value);
+        }
+        return value;
+    }
+
+    private void addPhiOperands(int variable, int phi, int block){
+        int count = function.predCount[block];
+        int offset = function.allocateExtra(count);
+        function.a[phi] = offset;
+        function.b[phi] = count;
+        for(int i = 0;i < count;i++){
+            int value = readVariable(variable, function.preds[block][i]);
+            function.extra[offset + i] = value;
+        }
+    }
+
+    private void seal(int block){
+        Map<Integer, Integer> phis = incompletePhis.remove(block);
+        if(phis != null){
+            for(Map.Entry<Integer, Integer> entry: phis.entrySet()){
+                addPhiOperands(entry.getKey(), entry.getValue(), block);
+            }
+        }
+        sealed.set(block);
+    }
+
+}
@@ -0,0 +1,280 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Turns an optimized {@link Mir} into an LLVM module in one pass per function: blocks are
+ * appended in reverse postorder so every value is built before its uses, instructions get no
+ * names, and phis are completed once all blocks exist. A comparison only branched on stays
+ * an i1; the 0 or 1 is only extended to i32 for other uses. Arrays are flat [n x i32] and
+ * addressed through i32*, with global initializers laid out as LLVMVisitor lays them out.
+ */
+public class MirLowering implements AutoCloseable {
+    // a global array ending in at least this many zero elements gets them as one zeroinitializer
+    private static final int ZERO_TAIL = 16;
+
+    private final Mir program;
+    private final LLVMContextRef context;
+    private final LLVMModuleRef module;
+    private final LLVMBuilderRef builder;
+    private final LLVMTypeRef i32Type;
+    private final LLVMTypeRef i32Pointer;
+    private final LLVMValueRef zero;
+    private final PointerArena arena = new PointerArena();
+    private final LLVMValueRef[] globals;
+    private final LLVMValueRef[] functions;
+    private final LLVMTypeRef[] functionTypes;
+
+    private MirLowering(Mir program, LLVMContextRef context){
+        this.program = program;
+        this.context = context;
+        module = LLVMModuleCreateWithNameInContext("module", context);
+        builder = LLVMCreateBuilderInContext(context);
+        i32Type = LLVMInt32TypeInContext(context);
+        i32Pointer = LLVMPointerType(i32Type, 0);
+        zero = LLVMConstInt(i32Type, 0, 0);
+        globals = new LLVMValueRef[program.globals.size()];
+        functions = new LLVMValueRef[program.functions.size()];
+        functionTypes = new LLVMTypeRef[program.functions.size()];
+    }
+
+    public static LLVMModuleRef lower(Mir program, LLVMContextRef context){
+        try (MirLowering lowering = new MirLowering(program, context)) {
+            return lowering.lower();
+        }
+    }
+
+    @Override
+    public void close(){
+        LLVMDisposeBuilder(builder);
+        arena.close();
+    }
+
+    private LLVMModuleRef lower(){
+        List<Mir.Global> mirGlobals = program.globals;
+        for(int i = 0;i < globals.length;i++){
+            globals[i] = addGlobal(mirGlobals.get(i));
+        }
+        List<Mir.Function> mirFunctions = program.functions;
+        for(int i = 0;i < functions.length;i++){
+            Mir.Function function = mirFunctions.get(i);
+            LLVMTypeRef[] params = new LLVMTypeRef[function.arrayParams.length];
+            for(int j = 0;j < params.length;j++){
+                params[j] = function.arrayParams[j] ? i32Pointer : i32Type;
+            }
+            LLVMTypeRef retType = function.returnsInt ? i32Type : LLVMVoidTypeInContext(context);
+            functionTypes[i] = LLVMFunctionType(retType, arena.of(params), params.length, 0);
+            // the runtime library is declared on the first call
+            if(!function.external){
+                functions[i] = LLVMAddFunction(module, function.name, functionTypes[i]);
+            }
+        }
+        for(int i = 0;i < functions.length;i++){
+            if(!mirFunctions.get(i).external){
+                lowerFunction(mirFunctions.get(i), functions[i]);
+            }
+        }
+        return module;
+    }
+
+    // the address of the first int, as an i32*
+    private LLVMValueRef addGlobal(Mir.Global global){
+        if(global.scalar){
+            LLVMValueRef value = LLVMAddGlobal(module, i32Type, global.name);
+            LLVMSetInitializer(value, LLVMConstInt(i32Type, global.values == null ? 0 : global.values[0], 1));
+            return value;
+        }
+
+        LLVMTypeRef type = LLVMArrayType(i32Type, global.size);
+        // the zeros at the end start at tail
+        int tail = global.values == null ? 0 : global.size;
+        while(tail > 0 && global.values[tail - 1] == 0){
+            tail--;
+        }
+        LLVMValueRef value;
+        LLVMValueRef address;
+        if(tail == 0 || global.size - tail < ZERO_TAIL){
+            value = LLVMAddGlobal(module, type, global.name);
+            LLVMSetInitializer(value, tail == 0 ? LLVMConstNull(type) : constArray(global.values, global.size));
+            address = LLVMConstInBoundsGEP(value, arena.of(zero, zero), 2);
+        } else {
+            // a long run of zeros at the end is split off, as in LLVMVisitor.addGlobalArray
+            LLVMTypeRef headType = LLVMArrayType(i32Type, tail);
+            LLVMTypeRef tailType = LLVMArrayType(i32Type, global.size - tail);
+            LLVMTypeRef structType = LLVMStructTypeInContext(context, arena.of(headType, tailType), 2, 1);
+            LLVMValueRef init = LLVMConstStructInContext(context,
+                    arena.of(constArray(global.values, tail), LLVMConstNull(tailType)), 2, 1);
+            value = LLVMAddGlobal(module, structType, global.name);
+            LLVMSetInitializer(value, init);
+            address = LLVMConstBitCast(value, i32Pointer);
+        }
+        if(global.constant){
+            LLVMSetGlobalConstant(value, 1);
+        }
+        if(global.internal){
+            LLVMSetLinkage(value, LLVMPrivateLinkage);
+            LLVMSetUnnamedAddress(value, LLVMGlobalUnnamedAddr);
+            LLVMSetAlignment(value, 4);
+        }
+        return address;
+    }
+
+    private LLVMValueRef constArray(int[] values, int length){
+        LLVMValueRef[] members = new LLVMValueRef[length];
+        for(int i = 0;i < length;i++){
+            members[i] = LLVMConstInt(i32Type, values[i], 1);
+        }
+        return LLVMConstArray(i32Type, arena.of(members), length);
+    }
+
+    private void lowerFunction(Mir.Function function, LLVMValueRef llvmFunction){
+        int[] order = function.reversePostorder();
+        LLVMBasicBlockRef[] blocks = new LLVMBasicBlockRef[function.blocks];
+        for(int block: order){
+            blocks[block] = LLVMAppendBasicBlockInContext(context, llvmFunction, "");
+        }
+
+        // comparisons used by anything but a branch need their 0 or 1 as an i32
+        boolean[] widened = new boolean[function.count];
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                if(function.op[v] == Mir.BRANCH){
+                    continue;
+                }
+                for(int j = 0;j < function.operandCount(v);j++){
+                    widened[function.operand(v, j)] = true;
+                }
+            }
+        }
+
+        LLVMValueRef[] values = new LLVMValueRef[function.count];
+        LLVMValueRef[] flags = new LLVMValueRef[function.count];
+        for(int block: order){
+            LLVMPositionBuilderAtEnd(builder, blocks[block]);
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int a = function.a[v];
+                int b = function.b[v];
+                switch (function.op[v]){
+                    case Mir.CONST:
+                        values[v] = LLVMConstInt(i32Type, a, 1);
+                        break;
+                    case Mir.PARAM:
+                        values[v] = LLVMGetParam(llvmFunction, a);
+                        break;
+                    case Mir.ADD:
+                        values[v] = LLVMBuildAdd(builder, values[a], values[b], "");
+                        break;
+                    case Mir.SUB:
+                        values[v] = LLVMBuildSub(builder, values[a], values[b], "");
+                        break;
+                    case Mir.MUL:
+                        values[v] = LLVMBuildMul(builder, values[a], values[b], "");
+                        break;
+                    case Mir.DIV:
+                        values[v] = LLVMBuildSDiv(builder, values[a], values[b], "");
+                        break;
+                    case Mir.REM:
+                        values[v] = LLVMBuildSRem(builder, values[a], values[b], "");
+                        break;
+                    case Mir.EQ:
+                    case Mir.NE:
+                    case Mir.LT:
+                    case Mir.GT:
+                    case Mir.LE:
+                    case Mir.GE:
+                        flags[v] = LLVMBuildICmp(builder, predicate(function.op[v]), values[a], values[b], "");
+                        if(widened[v]){
+                            values[v] = LLVMBuildZExt(builder, flags[v], i32Type, "");
+                        }
+                        break;
+                    case Mir.PHI:
+                        values[v] = LLVMBuildPhi(builder, i32Type, "");
+                        break;
+                    case Mir.GLOBAL:
+                        values[v] = globals[a];
+                        break;
+                    case Mir.ALLOCA:
+                        values[v] = LLVMBuildBitCast(builder,
+                                LLVMBuildAlloca(builder, LLVMArrayType(i32Type, a), ""), i32Pointer, "");
+                        break;
+                    case Mir.ELEM:
+                        values[v] = LLVMBuildInBoundsGEP(builder, values[a], arena.of(values[b]), 1, "");
+                        break;
+                    case Mir.LOAD:
+                        values[v] = LLVMBuildLoad(builder, values[a], "");
+                        break;
+                    case Mir.STORE:
+                        LLVMBuildStore(builder, values[b], values[a]);
+                        break;
+                    case Mir.CLEAR:
+                        LLVMBuildMemSet(builder, values[a], LLVMConstInt(LLVMInt8TypeInContext(context), 0, 0),
+                                LLVMConstInt(LLVMInt64TypeInContext(context), 4L * b, 0), 4);
+                        break;
+                    case Mir.COPY:
+                        LLVMBuildMemCpy(builder, values[a], 4, values[b], 4,
+                                LLVMConstInt(LLVMInt64TypeInContext(context), 4L * function.c[v], 0));
+                        break;
+                    case Mir.CALL:
+                        LLVMValueRef[] args = new LLVMValueRef[function.c[v]];
+                        for(int j = 0;j < args.length;j++){
+                            args[j] = values[function.extra[b + j]];
+                        }
+                        values[v] = LLVMBuildCall(builder, callee(a), arena.of(args), args.length, "");
+                        break;
+                    case Mir.JUMP:
+                        LLVMBuildBr(builder, blocks[a]);
+                        break;
+                    case Mir.BRANCH:
+                        LLVMValueRef cond = flags[a] != null ? flags[a] : LLVMBuildICmp(builder, LLVMIntNE, values[a], zero, "");
+                        LLVMBuildCondBr(builder, cond, blocks[b], blocks[function.c[v]]);
+                        break;
+                    case Mir.RET:
+                        if(a < 0){
+                            LLVMBuildRetVoid(builder);
+                        } else LLVMBuildRet(builder, values[a]);
+                        break;
+                }
+            }
+        }
+
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int phi = function.code[block][i];
+                if(function.op[phi] != Mir.PHI){
+                    continue;
+                }
+                int count = function.b[phi];
+                LLVMValueRef[] incoming = new LLVMValueRef[count];
+                LLVMBasicBlockRef[] from = new LLVMBasicBlockRef[count];
+                for(int j = 0;j < count;j++){
+                    incoming[j] = values[function.operand(phi, j)];
+                    from[j] = blocks[function.preds[block][j]];
+                }
+                LLVMAddIncoming(values[phi], arena.of(incoming), arena.of(from), count);
+            }
+        }
+    }
+
+    private LLVMValueRef callee(int index){
+        if(functions[index] == null){
+            functions[index] = LLVMAddFunction(module, program.functions.get(index).name, functionTypes[index]);
+        }
+        return functions[index];
+    }
+
+    private static int predicate(int op){
+        switch (op){
+            case Mir.EQ: return LLVMIntEQ;
+            case Mir.NE: return LLVMIntNE;
+            case Mir.LT: return LLVMIntSLT;
+            case Mir.GT: return LLVMIntSGT;
+            case Mir.LE: return LLVMIntSLE;
+            default: return LLVMIntSGE;
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * The passes run on the {@link Mir} of every function before it is lowered, so that LLVM is
+ * only asked to build what survives them. Constant and copy propagation fold instructions
+ * and branches on constants and replace trivial phis by their operand; local value numbering
+ * merges repeated computations and loads within a block, forwarding stored values to later
+ * loads of the same address; the CFG is pruned of blocks that became unreachable, and dead
+ * code elimination drops everything no effect depends on. Replaced values are forwarded,
+ * not rewritten at every use, until the operands are resolved at the end of each pass.
+ */
+public class MirOptimizer {
+    // the passes stop earlier once a round changes nothing
+    private static final int ROUNDS = 4;
+
+    private final List<Mir.Function> functions;
+    private final Mir.Function function;
+    // the value each value was replaced by, itself if none
+    private final int[] forward;
+    private int[] order;
+    // the edges into each block that folded branches no longer take, by the block they leave
+    private final Map<Integer, Set<Integer>> cut = new HashMap<>();
+
+    private MirOptimizer(List<Mir.Function> functions, Mir.Function function){
+        this.functions = functions;
+        this.function = function;
+        forward = new int[function.count];
+        for(int i = 0;i < forward.length;i++){
+            forward[i] = i;
+        }
+    }
+
+    public static Mir optimize(Mir program){
+        for(Mir.Function function: program.functions){
+            if(!function.external){
+                new MirOptimizer(program.functions, function).run();
+            }
+        }
+        return program;
+    }
+
+    private void run(){
+        removeUnreachable();
+        for(int round = 0;round < ROUNDS;round++){
+            boolean changed = propagate();
+            changed |= numberValues();
+            removeUnreachable();
+            if(!changed){
+                break;
+            }
+        }
+        // phis may still name values replaced later in the round, around loops
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                resolveOperands(function.code[block][i]);
+            }
+        }
+        eliminateDeadCode();
+    }
+
+    /**
+     * Constant and copy propagation in reverse postorder, so that operands are folded before
+     * their uses except around loops. A branch on a constant becomes a jump and the edge not
+     * taken is removed, along with its phi operands, once the pass is done.
+     */
+    private boolean propagate(){
+        boolean changed = false;
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int op = function.op[v];
+                if(op == Mir.NOP){
+                    continue;
+                }
+                resolveOperands(v);
+                if(op >= Mir.ADD && op <= Mir.GE){
+                    changed |= simplify(v);
+                } else if(op == Mir.PHI){
+                    changed |= simplifyPhi(v);
+                } else if(op == Mir.ELEM && isConstant(function.b[v], 0)){
+                    replace(v, function.a[v]);
+                    changed = true;
+                } else if(op == Mir.BRANCH && function.op[function.a[v]] == Mir.CONST){
+                    boolean taken = function.a[function.a[v]] != 0;
+                    cut.computeIfAbsent(taken ? function.c[v] : function.b[v], k -> new HashSet<>()).add(block);
+                    function.op[v] = Mir.JUMP;
+                    function.a[v] = taken ? function.b[v] : function.c[v];
+                    changed = true;
+                }
+            }
+        }
+        removeCutEdges();
+        return changed;
+    }
+
+    private boolean simplify(int v){
+        int op = function.op[v];
+        int x = function.a[v];
+        int y = function.b[v];
+        if(function.op[x] == Mir.CONST && function.op[y] == Mir.CONST){
+            Integer value = Mir.fold(op, function.a[x], function.a[y]);
+            if(value == null){
+                return false;
+            }
+            makeConstant(v, value);
+            return true;
+        }
+        if((op == Mir.ADD || op == Mir.SUB) && isConstant(y, 0) || (op == Mir.MUL || op == Mir.DIV) && isConstant(y, 1)){
+            replace(v, x);
+        } else if(op == Mir.ADD && isConstant(x, 0) || op == Mir.MUL && isConstant(x, 1)){
+            replace(v, y);
+        } else if(op == Mir.MUL && (isConstant(x, 0) || isConstant(y, 0))){
+            makeConstant(v, 0);
+        } else if(x == y && (op == Mir.SUB || op == Mir.NE || op == Mir.LT || op == Mir.GT)){
+            makeConstant(v, 0);
+        } else if(x == y && (op == Mir.EQ || op == Mir.LE || op == Mir.GE)){
+            makeConstant(v, 1);
+        } else return false;
+        return true;
+    }
+
+    // a phi whose operands are all the same value, or the phi itself, is a copy of that value
+    private boolean simplifyPhi(int phi){
+        int same = -1;
+        boolean constant = true;
+        for(int i = 0;i < function.b[phi];i++){
+            int value = function.operand(phi, i);
+            if(value == phi || value == same){
+                continue;
+            }
+            if(same >= 0){
+                constant &= function.op[value] == Mir.CONST && function.op[same] == Mir.CONST
+                        && function.a[value] == function.a[same];
+                if(!constant){
+                    return false;
+                }
+                continue;
+            }
+            same = value;
+            constant = function.op[value] == Mir.CONST;
+        }
+        if(same < 0){
+            // only reachable through itself, so never defined
+            makeConstant(phi, 0);
+        } else if(function.op[same] == Mir.CONST){
+            makeConstant(phi, function.a[same]);
+        } else replace(phi, same);
+        return true;
+    }
+
+    /**
+     * Local value numbering: within a block, a pure instruction with the same opcode and
+     * operands as an earlier one is replaced by it. Loads are numbered together with the
+     * state of memory, which every store, clear, copy and call that may write memory
+     * advances, and a store makes its value the number of a load from its address.
+     */
+    private boolean numberValues(){
+        boolean changed = false;
+        Map<Long, Integer>[] tables = newTables();
+        for(int block: order){
+            for(Map<Long, Integer> table: tables){
+                table.clear();
+            }
+            int memory = 0;
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int op = function.op[v];
+                if(op == Mir.NOP){
+                    continue;
+                }
+                resolveOperands(v);
+                int x = function.a[v];
+                int y = function.b[v];
+                long key;
+                if(op == Mir.CONST || op == Mir.GLOBAL){
+                    key = x;
+                } else if(op >= Mir.ADD && op <= Mir.GE || op == Mir.ELEM){
+                    if((op == Mir.ADD || op == Mir.MUL || op == Mir.EQ || op == Mir.NE) && x > y){
+                        function.a[v] = y;
+                        function.b[v] = x;
+                    }
+                    key = pair(function.a[v], function.b[v]);
+                } else if(op == Mir.LOAD){
+                    key = pair(x, memory);
+                } else {
+                    if(op == Mir.STORE){
+                        tables[Mir.LOAD].put(pair(x, ++memory), y);
+                    } else if(op == Mir.CLEAR || op == Mir.COPY || op == Mir.CALL && writesMemory(v)){
+                        memory++;
+                    }
+                    continue;
+                }
+                Integer earlier = tables[op].putIfAbsent(key, v);
+                if(earlier != null){
+                    replace(v, earlier);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Long, Integer>[] newTables(){
+        Map<Long, Integer>[] tables = new Map[Mir.NAMES.length];
+        for(int i = 0;i < tables.length;i++){
+            tables[i] = new HashMap<>();
+        }
+        return tables;
+    }
+
+    private static long pair(int x, int y){
+        return (long) x << 32 | y & 0xffffffffL;
+    }
+
+    // the runtime library only writes to the arrays passed to it
+    private boolean writesMemory(int call){
+        Mir.Function callee = functions.get(function.a[call]);
+        if(!callee.external){
+            return true;
+        }
+        for(boolean array: callee.arrayParams){
+            if(array){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks everything an effect depends on, starting from the stores, calls and terminators,
+     * and removes the rest.
+     */
+    private void eliminateDeadCode(){
+        boolean[] live = new boolean[function.count];
+        int[] worklist = new int[function.count];
+        int pending = 0;
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                if(Mir.hasEffect(function.op[v])){
+                    live[v] = true;
+                    worklist[pending++] = v;
+                }
+            }
+        }
+        while(pending > 0){
+            int v = worklist[--pending];
+            for(int i = 0;i < function.operandCount(v);i++){
+                int operand = function.operand(v, i);
+                if(!live[operand]){
+                    live[operand] = true;
+                    worklist[pending++] = operand;
+                }
+            }
+        }
+
+        // a phi folded to a constant stays where it was, so the phis left are moved back to the front
+        for(int block = 0;block < function.blocks;block++){
+            int[] code = function.code[block];
+            int[] rest = new int[function.codeLength[block]];
+            int length = 0;
+            int restLength = 0;
+            for(int i = 0;i < function.codeLength[block];i++){
+                if(!live[code[i]] || function.removed[block]){
+                    function.op[code[i]] = Mir.NOP;
+                } else if(function.op[code[i]] == Mir.PHI){
+                    code[length++] = code[i];
+                } else rest[restLength++] = code[i];
+            }
+            System.arraycopy(rest, 0, code, length, restLength);
+            function.codeLength[block] = length + restLength;
+        }
+    }
+
+    /**
+     * Removes the blocks the entry no longer reaches, and their edges into the blocks it still
+     * does. Leaves the reachable blocks in reverse postorder for the next pass.
+     */
+    private void removeUnreachable(){
+        order = function.reversePostorder();
+        boolean[] reachable = new boolean[function.blocks];
+        for(int block: order){
+            reachable[block] = true;
+        }
+        for(int block = 0;block < function.blocks;block++){
+            if(reachable[block] || function.removed[block]){
+                continue;
+            }
+            function.removed[block] = true;
+            for(int i = 0;i < function.codeLength[block];i++){
+                function.op[function.code[block][i]] = Mir.NOP;
+            }
+            function.codeLength[block] = 0;
+        }
+        for(int block: order){
+            for(int i = 0;i < function.predCount[block];i++){
+                if(!reachable[function.preds[block][i]]){
+                    keepPreds(block, pred -> reachable[pred]);
+                    break;
+                }
+            }
+        }
+    }
+
+    // removes the edges folded branches no longer take, all edges into a block at once
+    private void removeCutEdges(){
+        for(Map.Entry<Integer, Set<Integer>> entry: cut.entrySet()){
+            Set<Integer> preds = entry.getValue();
+            keepPreds(entry.getKey(), pred -> !preds.contains(pred));
+        }
+        cut.clear();
+    }
+
+    // the edges into a block from the preds rejected are removed, with their phi operands
+    private void keepPreds(int block, IntPredicate keep){
+        int[] preds = function.preds[block];
+        int count = function.predCount[block];
+        boolean[] kept = new boolean[count];
+        int length = 0;
+        for(int i = 0;i < count;i++){
+            kept[i] = keep.test(preds[i]);
+            if(kept[i]){
+                preds[length++] = preds[i];
+            }
+        }
+        function.predCount[block] = length;
+        for(int i = 0;i < function.codeLength[block];i++){
+            int phi = function.code[block][i];
+            if(function.op[phi] != Mir.PHI){
+                continue;
+            }
+            int offset = function.a[phi];
+            int operands = 0;
+            for(int j = 0;j < count;j++){
+                if(kept[j]){
+                    function.extra[offset + operands++] = function.extra[offset + j];
+                }
+            }
+            function.b[phi] = operands;
+        }
+    }
+
+    private void replace(int v, int value){
+        forward[v] = value;
+        function.op[v] = Mir.NOP;
+    }
+
+    private void makeConstant(int v, int value){
+        function.op[v] = Mir.CONST;
+        function.a[v] = value;
+        function.b[v] = 0;
+    }
+
+    private boolean isConstant(int v, int value){
+        return function.op[v] == Mir.CONST && function.a[v] == value;
+    }
+
+    private void resolveOperands(int v){
+        for(int i = 0;i < function.operandCount(v);i++){
+            function.setOperand(v, i, find(function.operand(v, i)));
+        }
+    }
+
+    private int find(int v){
+        int root = v;
+        while(forward[root] != root){
+            root = forward[root];
+        }
+        while(forward[v] != root){
+            int next = forward[v];
+            forward[v] = root;
+            v = next;
+        }
+        return root;
+    }
+
+}
@@ -0,0 +1,124 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Per-function IR counts of a module: basic blocks, instructions, allocas, loads, stores and
+ * GEPs. Taking them is one walk over the instructions; every function is also committed as a
+ * JFR event when a recording asks for them.
+ */
+public class ModuleStats {
+
+    @Name("sysy.FunctionStats")
+    @Label("Function IR Statistics")
+    @Category("SysY Compiler")
+    static class FunctionEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Function")
+        String function;
+        @Label("Basic Blocks")
+        int blocks;
+        @Label("Instructions")
+        int instructions;
+        @Label("Allocas")
+        int allocas;
+        @Label("Loads")
+        int loads;
+        @Label("Stores")
+        int stores;
+        @Label("GEPs")
+        int geps;
+    }
+
+    private static class Function {
+        final String name;
+        int blocks = 0;
+        int instructions = 0;
+        int allocas = 0;
+        int loads = 0;
+        int stores = 0;
+        int geps = 0;
+
+        Function(String name){
+            this.name = name;
+        }
+    }
+
+    private final String file;
+    private final List<Function> functions = new ArrayList<>();
+
+    public ModuleStats(String file, LLVMModuleRef module){
+        this.file = file;
+        for(LLVMValueRef function = LLVMGetFirstFunction(module);function != null;function = LLVMGetNextFunction(function)){
+            if(LLVMIsDeclaration(function) != 0){
+                continue;
+            }
+            Function counts = new Function(LLVMGetValueName(function).getString());
+            for(LLVMBasicBlockRef block = LLVMGetFirstBasicBlock(function);block != null;block = LLVMGetNextBasicBlock(block)){
+                counts.blocks++;
+                for(LLVMValueRef inst = LLVMGetFirstInstruction(block);inst != null;inst = LLVMGetNextInstruction(inst)){
+                    counts.instructions++;
+                    switch (LLVMGetInstructionOpcode(inst)){
+                        case LLVMAlloca: counts.allocas++; break;
+                        case LLVMLoad: counts.loads++; break;
+                        case LLVMStore: counts.stores++; break;
+                        case LLVMGetElementPtr: counts.geps++; break;
+                        default:
+                    }
+                }
+            }
+            functions.add(counts);
+        }
+    }
+
+    public static boolean recording(){
+        return EventType.getEventType(FunctionEvent.class).isEnabled();
+    }
+
+    public void commit(){
+        for(Function function: functions){
+            FunctionEvent event = new FunctionEvent();
+            if(!event.shouldCommit()){
+                return;
+            }
+            event.file = file;
+            event.function = function.name;
+            event.blocks = function.blocks;
+            event.instructions = function.instructions;
+            event.allocas = function.allocas;
+            event.loads = function.loads;
+            event.stores = function.stores;
+            event.geps = function.geps;
+            event.commit();
+        }
+    }
+
+    public String toJson(){
+        StringBuilder json = new StringBuilder("{\"file\":").append(PhaseTimer.quote(file)).append(",\"functions\":[");
+        for(int i = 0;i < functions.size();i++){
+            Function function = functions.get(i);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"name\":").append(PhaseTimer.quote(function.name))
+                    .append(",\"blocks\":").append(function.blocks)
+                    .append(",\"instructions\":").append(function.instructions)
+                    .append(",\"allocas\":").append(function.allocas)
+                    .append(",\"loads\":").append(function.loads)
+                    .append(",\"stores\":").append(function.stores)
+                    .append(",\"geps\":").append(function.geps)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+}
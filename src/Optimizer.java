@@ -0,0 +1,74 @@
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+public class Optimizer {
+
+    /**
+     * @throws CompileException with the verifier's report if the module is malformed
+     */
+    public static void verify(LLVMModuleRef module){
+        BytePointer error = new BytePointer();
+        boolean ok = LLVMVerifyModule(module, LLVMReturnStatusAction, error) == 0;
+        String message = error.getString();
+        LLVMDisposeMessage(error);
+        if(!ok){
+            throw new CompileException(message);
+        }
+    }
+
+    /**
+     * -O0 leaves the module untouched, so its output is exactly what the visitor built.
+     */
+    public static void optimize(LLVMModuleRef module, int level, boolean verify){
+        if(verify){
+            verify(module);
+        }
+        if(level <= 0){
+            return;
+        }
+
+        LLVMPassManagerRef pass = LLVMCreatePassManager();
+        LLVMAddPromoteMemoryToRegisterPass(pass);
+        LLVMAddInstructionCombiningPass(pass);
+        LLVMAddCFGSimplificationPass(pass);
+        LLVMAddSCCPPass(pass);
+        LLVMAddDCEPass(pass);
+
+        if(level >= 2){
+            LLVMAddFunctionInliningPass(pass);
+            LLVMAddScalarReplAggregatesPass(pass);
+            LLVMAddEarlyCSEPass(pass);
+            LLVMAddReassociatePass(pass);
+            LLVMAddGVNPass(pass);
+            // loop passes pull in loop-simplify and LCSSA on their own
+            LLVMAddLoopRotatePass(pass);
+            LLVMAddLICMPass(pass);
+            LLVMAddIndVarSimplifyPass(pass);
+            LLVMAddLoopDeletionPass(pass);
+            LLVMAddLoopUnrollPass(pass);
+            LLVMAddInstructionCombiningPass(pass);
+            LLVMAddSCCPPass(pass);
+        }
+
+        if(level >= 3){
+            LLVMAddIPSCCPPass(pass);
+            LLVMAddGlobalOptimizerPass(pass);
+            LLVMAddDeadArgEliminationPass(pass);
+            LLVMAddJumpThreadingPass(pass);
+            LLVMAddCorrelatedValuePropagationPass(pass);
+            LLVMAddAggressiveInstCombinerPass(pass);
+            LLVMAddGVNPass(pass);
+            LLVMAddLICMPass(pass);
+            LLVMAddLoopUnrollPass(pass);
+            LLVMAddDeadStoreEliminationPass(pass);
+        }
+
+        LLVMAddAggressiveDCEPass(pass);
+        LLVMAddCFGSimplificationPass(pass);
+        LLVMRunPassManager(pass, module);
+        LLVMDisposePassManager(pass);
+    }
+
+}
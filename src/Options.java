@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class Options {
+    public String input = null;
+    public String output = null;
+    public int optLevel = 0;
+    public boolean verify = false;
+    public boolean ssa = false;
+    public boolean mir = false;
+    public boolean run = false;
+    public boolean interpret = false;
+    public boolean differential = false;
+    public boolean x86 = false;
+    public String profileGenerate = null;
+    public String profileUse = null;
+    public Emitter.Format format = null;
+    public boolean batch = false;
+    public List<String> inputs = new ArrayList<>();
+    public String outDir = null;
+    public int jobs = Runtime.getRuntime().availableProcessors();
+    public String server = null;
+    public String cacheDir = null;
+    public boolean parallel = false;
+    public boolean syntaxOnly = false;
+    public boolean fastLexer = false;
+    public boolean timePhases = false;
+    public boolean stats = false;
+    public long cacheLimit = 256L << 20;
+
+    public static Options parse(String[] args){
+        Options options = new Options();
+        for(String arg: args){
+            if(arg.matches("-O[0-3]")){
+                options.optLevel = arg.charAt(2) - '0';
+            } else if(arg.equals("--verify")){
+                options.verify = true;
+            } else if(arg.startsWith("--emit=")){
+                String format = arg.substring("--emit=".length());
+                if(!format.matches("ll|bc|obj|asm")){
+                    throw new IllegalArgumentException("unknown output format: " + format);
+                }
+                options.format = Emitter.Format.valueOf(format.toUpperCase());
+            } else if(arg.equals("--run")){
+                options.run = true;
+            } else if(arg.equals("--interpret")){
+                options.interpret = true;
+            } else if(arg.equals("--differential")){
+                options.differential = true;
+            } else if(arg.equals("--x86")){
+                options.x86 = true;
+            } else if(arg.startsWith("--profile-generate=")){
+                options.profileGenerate = arg.substring("--profile-generate=".length());
+            } else if(arg.startsWith("--profile-use=")){
+                options.profileUse = arg.substring("--profile-use=".length());
+            } else if(arg.equals("--ssa")){
+                options.ssa = true;
+            } else if(arg.equals("--mir")){
+                options.mir = true;
+            } else if(arg.equals("--batch")){
+                options.batch = true;
+            } else if(arg.equals("--server")){
+                options.server = "";
+            } else if(arg.startsWith("--server=")){
+                options.server = arg.substring("--server=".length());
+            } else if(arg.equals("--fast-lexer")){
+                options.fastLexer = true;
+            } else if(arg.equals("--time-phases")){
+                options.timePhases = true;
+            } else if(arg.equals("--stats")){
+                options.stats = true;
+            } else if(arg.equals("--syntax-only")){
+                options.syntaxOnly = true;
+            } else if(arg.equals("--parallel")){
+                options.parallel = true;
+            } else if(arg.startsWith("--cache=")){
+                options.cacheDir = arg.substring("--cache=".length());
+            } else if(arg.matches("--cache-size=[0-9]+")){
+                options.cacheLimit = Long.parseLong(arg.substring("--cache-size=".length())) << 20;
+            } else if(arg.startsWith("--out-dir=")){
+                options.outDir = arg.substring("--out-dir=".length());
+            } else if(arg.matches("-j[1-9][0-9]*")){
+                options.jobs = Integer.parseInt(arg.substring(2));
+            } else if(arg.startsWith("-") && arg.length() > 1){
+                throw new IllegalArgumentException("unknown option: " + arg);
+            } else {
+                options.inputs.add(arg);
+            }
+        }
+
+        if(options.mir && (options.parallel || options.cacheDir != null)){
+            throw new IllegalArgumentException("--mir cannot be used with --parallel or --cache");
+        }
+
+        if(options.x86 && (options.batch || options.parallel || options.cacheDir != null || options.format != null)){
+            throw new IllegalArgumentException("--x86 cannot be used with --batch, --parallel, --cache or --emit");
+        }
+
+        if(options.profileGenerate != null || options.profileUse != null){
+            if(options.profileGenerate != null && options.profileUse != null){
+                throw new IllegalArgumentException("--profile-generate cannot be used with --profile-use");
+            }
+            if(options.mir || options.x86 || options.interpret || options.batch || options.parallel || options.cacheDir != null){
+                throw new IllegalArgumentException("profiles cannot be used with --mir, --x86, --interpret, --batch, --parallel or --cache");
+            }
+        }
+
+        if(options.server != null){
+            if(!options.inputs.isEmpty()){
+                throw new IllegalArgumentException("unexpected argument: " + options.inputs.get(0));
+            }
+            return options;
+        }
+
+        if(options.batch){
+            if(options.inputs.isEmpty()){
+                throw new IllegalArgumentException("at least one input file or directory is required");
+            }
+            if(options.run || options.interpret || options.differential){
+                throw new IllegalArgumentException("--run, --interpret and --differential cannot be used with --batch");
+            }
+            if(options.format == null){
+                options.format = Emitter.Format.LL;
+            }
+            return options;
+        }
+
+        if(options.inputs.size() > 2){
+            throw new IllegalArgumentException("unexpected argument: " + options.inputs.get(2));
+        }
+        options.input = options.inputs.size() > 0 ? options.inputs.get(0) : null;
+        options.output = options.inputs.size() > 1 ? options.inputs.get(1) : null;
+        boolean runs = options.run || options.interpret || options.differential;
+        if(options.input == null || (options.output == null && !runs && !options.syntaxOnly)){
+            throw new IllegalArgumentException("input and output path is required");
+        }
+        if((options.interpret || options.differential) && (options.output != null || options.run)){
+            throw new IllegalArgumentException("--interpret and --differential run the program, without an output path or --run");
+        }
+        if(options.interpret && options.differential){
+            throw new IllegalArgumentException("--interpret cannot be used with --differential");
+        }
+        if(options.x86 && (options.interpret || options.differential)){
+            throw new IllegalArgumentException("--x86 cannot be used with --interpret or --differential");
+        }
+        if(options.format == null && options.output != null && !options.x86){
+            options.format = Emitter.formatOf(options.output);
+        }
+        return options;
+    }
+
+}
@@ -0,0 +1,148 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wall time, CPU time and allocated bytes of the phases of one compilation. Each phase is
+ * also committed as a JFR event, which costs next to nothing unless a recording is on, so
+ * every compilation is timed and --time-phases only decides whether the result is printed.
+ * <p>
+ * CPU time and allocation are those of the calling thread: with --parallel, the codegen work
+ * done on the fork-join pool only shows in the wall time.
+ */
+public class PhaseTimer {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public enum Phase {
+        LEX, PARSE, CODEGEN, OPTIMIZE, EMIT
+    }
+
+    private static class Timing {
+        final Phase phase;
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+
+        Timing(Phase phase, long wallNanos, long cpuNanos, long allocatedBytes){
+            this.phase = phase;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    @Name("sysy.Phase")
+    @Label("Compiler Phase")
+    @Category("SysY Compiler")
+    static class PhaseEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Phase")
+        String phase;
+        @Label("CPU Time")
+        @Timespan
+        long cpuTime;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    private final String file;
+    private final List<Timing> timings = new ArrayList<>();
+
+    private Phase phase = null;
+    private PhaseEvent event;
+    private long wall;
+    private long cpu;
+    private long allocated;
+
+    public PhaseTimer(String file){
+        this.file = file;
+    }
+
+    public String file(){
+        return file;
+    }
+
+    /**
+     * Ends the running phase, if any, and starts the given one.
+     */
+    public void start(Phase phase){
+        stop();
+        this.phase = phase;
+        event = new PhaseEvent();
+        event.begin();
+        allocated = THREADS.getCurrentThreadAllocatedBytes();
+        cpu = THREADS.getCurrentThreadCpuTime();
+        wall = System.nanoTime();
+    }
+
+    public void stop(){
+        if(phase == null){
+            return;
+        }
+        long wallNanos = System.nanoTime() - wall;
+        long cpuNanos = THREADS.getCurrentThreadCpuTime() - cpu;
+        long allocatedBytes = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        timings.add(new Timing(phase, wallNanos, cpuNanos, allocatedBytes));
+
+        event.end();
+        if(event.shouldCommit()){
+            event.file = file;
+            event.phase = name(phase);
+            event.cpuTime = cpuNanos;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+        phase = null;
+        event = null;
+    }
+
+    public String toJson(){
+        stop();
+        StringBuilder json = new StringBuilder("{\"file\":").append(quote(file)).append(",\"phases\":[");
+        for(int i = 0;i < timings.size();i++){
+            Timing timing = timings.get(i);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"phase\":").append(quote(name(timing.phase)))
+                    .append(",\"wall_us\":").append(timing.wallNanos / 1000)
+                    .append(",\"cpu_us\":").append(timing.cpuNanos / 1000)
+                    .append(",\"allocated_bytes\":").append(timing.allocatedBytes)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String name(Phase phase){
+        return phase.name().toLowerCase();
+    }
+
+    static String quote(String text){
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c: text.toCharArray()){
+            switch (c){
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\t': quoted.append("\\t"); break;
+                case '\r': quoted.append("\\r"); break;
+                default:
+                    if(c < 0x20){
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
@@ -0,0 +1,50 @@
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+/**
+ * Native arrays for the array arguments of LLVM C API calls. LLVM copies these before the call
+ * returns, so a few buffers, reused in turn and grown when too small, serve every GEP, call,
+ * phi and constant array of a visitor, instead of a javacpp allocation each that only the
+ * deallocator thread frees again. An array stays valid until BUFFERS more are handed out, so
+ * it is built right in the call that takes it, after the values in it.
+ */
+public class PointerArena implements AutoCloseable {
+    // no call takes more than two arrays
+    private static final int BUFFERS = 4;
+
+    private final PointerPointer<?>[] buffers = new PointerPointer<?>[BUFFERS];
+    private int next = 0;
+
+    @SafeVarargs
+    public final <P extends Pointer> PointerPointer<P> of(P... pointers){
+        return of(pointers, 0, pointers.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <P extends Pointer> PointerPointer<P> of(P[] pointers, int from, int to){
+        PointerPointer<P> buffer = (PointerPointer<P>) buffers[next];
+        if(buffer == null || buffer.capacity() < to - from){
+            if(buffer != null){
+                buffer.close();
+            }
+            buffer = new PointerPointer<>(Math.max(to - from, 16));
+            buffers[next] = buffer;
+        }
+        next = (next + 1) % BUFFERS;
+        for(int i = from;i < to;i++){
+            buffer.put(i - from, pointers[i]);
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close(){
+        for(int i = 0;i < BUFFERS;i++){
+            if(buffers[i] != null){
+                buffers[i].close();
+                buffers[i] = null;
+            }
+        }
+    }
+
+}
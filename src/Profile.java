@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Profile-guided optimization, as {@link ProfileBuilder} builds it into a module: either the
+ * file an instrumented program appends its counters to, or the counters read back from one.
+ * <p>
+ * Each function has one array of 64-bit counters: its length, how often the function was
+ * entered, then how often each conditional branch was taken and not taken, in the order the
+ * visitor builds the branches. An instrumented program appends a record per function when it
+ * exits, the name with a terminating NUL and then the array, in the byte order of the machine.
+ * Reading sums the records of every run; a function whose length changed between runs was
+ * compiled from different code and is dropped. A function compiled without counters that fit
+ * is a warning, which the caller reports.
+ */
+public class Profile {
+    // the file an instrumented program writes, null for a profile read back
+    public final String output;
+    private final Map<String, long[]> counters;
+    private final List<String> warnings = new ArrayList<>();
+
+    private Profile(String output, Map<String, long[]> counters){
+        this.output = output;
+        this.counters = counters;
+    }
+
+    public static Profile instrument(String output){
+        return new Profile(output, null);
+    }
+
+    /**
+     * @throws CompileException if the file is missing or cut short
+     */
+    public static Profile read(String path){
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(Paths.get(path));
+        } catch (IOException e) {
+            throw new CompileException("cannot read profile " + path + ": " + e.getMessage());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+        Map<String, long[]> counters = new HashMap<>();
+        Set<String> stale = new HashSet<>();
+        while(buffer.hasRemaining()){
+            int end = buffer.position();
+            while(end < bytes.length && bytes[end] != 0){
+                end++;
+            }
+            if(end + 8 >= bytes.length){
+                throw new CompileException("profile " + path + " is cut short");
+            }
+            String name = new String(bytes, buffer.position(), end - buffer.position(), StandardCharsets.UTF_8);
+            buffer.position(end + 1);
+            long length = buffer.getLong();
+            if(length < 1 || length - 1 > buffer.remaining() / 8){
+                throw new CompileException("profile " + path + " is cut short");
+            }
+            long[] record = new long[(int) length];
+            record[0] = length;
+            for(int i = 1;i < record.length;i++){
+                record[i] = buffer.getLong();
+            }
+            long[] sum = counters.putIfAbsent(name, record);
+            if(sum != null && sum.length != record.length){
+                stale.add(name);
+            } else if(sum != null){
+                for(int i = 1;i < sum.length;i++){
+                    sum[i] += record[i];
+                }
+            }
+        }
+        counters.keySet().removeAll(stale);
+        return new Profile(null, counters);
+    }
+
+    // the counters of a function with that many branches, null if the profile has none that fit
+    public long[] counters(String function, int branches){
+        long[] record = counters.get(function);
+        return record != null && record.length == 2 + 2 * branches ? record : null;
+    }
+
+    public void warn(String warning){
+        warnings.add(warning);
+    }
+
+    public List<String> warnings(){
+        return warnings;
+    }
+
+    public boolean isEmpty(){
+        return counters.isEmpty();
+    }
+
+    public int functions(){
+        return counters.size();
+    }
+
+    // every count of every function, the entry counts and the branch counts
+    public long[] counts(){
+        return counters.values().stream().flatMapToLong(record -> Arrays.stream(record, 1, record.length)).toArray();
+    }
+
+    public long maxEntryCount(){
+        return counters.values().stream().mapToLong(record -> record[1]).max().orElse(0);
+    }
+
+    public long maxBranchCount(){
+        return counters.values().stream().flatMapToLong(record -> Arrays.stream(record, 2, record.length)).max().orElse(0);
+    }
+
+}
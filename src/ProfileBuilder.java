@@ -0,0 +1,256 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * Builds a {@link Profile} into the module of an {@link LLVMVisitor}, which tells it where
+ * each function starts and ends and hands it every condition it branches on.
+ * <p>
+ * Instrumented, each function counts its entries and the way each branch went into an array
+ * of its own, and a destructor appends all of them to the profile file when the program exits,
+ * which the JIT runs too. With a profile read back, the branches get branch_weights, the
+ * functions function_entry_count, and the module a ProfileSummary, from which LLVM tells hot
+ * from cold functions and call sites when it inlines and lays out blocks.
+ */
+public class ProfileBuilder {
+    // the cutoffs of the detailed summary in parts per million of all counts, as LLVM's own
+    private static final int[] CUTOFFS = {10000, 100000, 200000, 300000, 400000, 500000, 600000, 700000,
+            800000, 900000, 950000, 990000, 999000, 999900, 999990, 999999};
+
+    private final Profile profile;
+    private final LLVMContextRef context;
+    private final LLVMModuleRef module;
+    private final LLVMBuilderRef builder;
+    private final PointerArena arena;
+    private final LLVMTypeRef i32Type;
+    private final LLVMTypeRef i64Type;
+    private final int prof;
+
+    // the function being built
+    private LLVMValueRef function = null;
+    private String name = null;
+    private LLVMValueRef counters = null;
+    private final List<LLVMValueRef> branches = new ArrayList<>();
+
+    // the functions done and their counters, to write at exit
+    private final List<String> names = new ArrayList<>();
+    private final List<LLVMValueRef> arrays = new ArrayList<>();
+
+    public ProfileBuilder(Profile profile, LLVMContextRef context, LLVMModuleRef module, LLVMBuilderRef builder,
+                          PointerArena arena){
+        this.profile = profile;
+        this.context = context;
+        this.module = module;
+        this.builder = builder;
+        this.arena = arena;
+        i32Type = LLVMInt32TypeInContext(context);
+        i64Type = LLVMInt64TypeInContext(context);
+        prof = LLVMGetMDKindIDInContext(context, "prof", 4);
+    }
+
+    private boolean instrumenting(){
+        return profile.output != null;
+    }
+
+    // at the start of the entry block, before anything else is built
+    public void enter(LLVMValueRef function, String name){
+        this.function = function;
+        this.name = name;
+        branches.clear();
+        if(instrumenting()){
+            // the array is sized once the branches are counted, and replaced then
+            counters = LLVMAddGlobal(module, LLVMArrayType(i64Type, 0), "");
+            count(LLVMConstInt(i32Type, 1, 0));
+        }
+    }
+
+    /**
+     * Right after the branch is built, from where it is. Every condition the source branches on
+     * is handed over in order, with nulls for one that was constant and got a plain br: how much
+     * --ssa folds must not shift the counters of the branches after it.
+     */
+    public void branch(LLVMValueRef cond, LLVMValueRef branch){
+        if(instrumenting() && branch != null){
+            LLVMBasicBlockRef block = LLVMGetInsertBlock(builder);
+            LLVMPositionBuilderBefore(builder, branch);
+            int taken = 2 + 2 * branches.size();
+            count(LLVMBuildSelect(builder, cond, LLVMConstInt(i32Type, taken, 0), LLVMConstInt(i32Type, taken + 1, 0), "counter_"));
+            LLVMPositionBuilderAtEnd(builder, block);
+        }
+        branches.add(branch);
+    }
+
+    public void leave(){
+        if(instrumenting()){
+            int length = 2 + 2 * branches.size();
+            LLVMValueRef[] initial = new LLVMValueRef[length];
+            initial[0] = LLVMConstInt(i64Type, length, 0);
+            for(int i = 1;i < length;i++){
+                initial[i] = LLVMConstInt(i64Type, 0, 0);
+            }
+            LLVMValueRef array = LLVMAddGlobal(module, LLVMArrayType(i64Type, length), "__sysy_profile_" + name);
+            LLVMSetInitializer(array, LLVMConstArray(i64Type, arena.of(initial), length));
+            LLVMSetLinkage(array, LLVMInternalLinkage);
+            LLVMReplaceAllUsesWith(counters, LLVMConstBitCast(array, LLVMTypeOf(counters)));
+            LLVMDeleteGlobal(counters);
+            names.add(name);
+            arrays.add(array);
+            return;
+        }
+        long[] counts = profile.counters(name, branches.size());
+        if(counts == null){
+            if(!profile.isEmpty()){
+                profile.warn("the profile has no counters for " + name + " with " + branches.size()
+                        + " branches, it is compiled without them");
+            }
+            return;
+        }
+        LLVMGlobalSetMetadata(function, prof, node(string("function_entry_count"), int64(counts[1])));
+        for(int i = 0;i < branches.size();i++){
+            if(branches.get(i) == null){
+                continue;
+            }
+            long taken = counts[2 + 2 * i];
+            long notTaken = counts[3 + 2 * i];
+            // the weights are 32 bits; like clang, one is added so that no edge is impossible
+            long scale = Math.max(taken, notTaken) / 0xffffffffL + 1;
+            LLVMMetadataRef weights = node(string("branch_weights"), int32(taken / scale + 1), int32(notTaken / scale + 1));
+            LLVMSetMetadata(branches.get(i), prof, LLVMMetadataAsValue(context, weights));
+        }
+    }
+
+    // after the last function
+    public void finish(){
+        if(instrumenting()){
+            buildWriter();
+        } else if(!profile.isEmpty()){
+            LLVMAddModuleFlag(module, LLVMModuleFlagBehaviorError, "ProfileSummary", "ProfileSummary".length(), summary());
+        }
+    }
+
+    private void count(LLVMValueRef index){
+        LLVMValueRef counter = LLVMBuildGEP(builder, counters, arena.of(LLVMConstInt(i32Type, 0, 0), index), 2, "counter_");
+        LLVMValueRef value = LLVMBuildLoad(builder, counter, "count_");
+        LLVMBuildStore(builder, LLVMBuildAdd(builder, value, LLVMConstInt(i64Type, 1, 0), "count_"), counter);
+    }
+
+    /*
+     *   void __sysy_profile_write()    appends the name and counters of every function to the
+     *                                  profile, if it can be opened
+     * run at exit from llvm.global_dtors.
+     */
+    private void buildWriter(){
+        LLVMTypeRef voidType = LLVMVoidTypeInContext(context);
+        LLVMTypeRef i8PtrType = LLVMPointerType(LLVMInt8TypeInContext(context), 0);
+        LLVMValueRef fopen = declare("fopen", i8PtrType, i8PtrType, i8PtrType);
+        LLVMValueRef fwrite = declare("fwrite", i64Type, i8PtrType, i64Type, i64Type, i8PtrType);
+        LLVMValueRef fclose = declare("fclose", i32Type, i8PtrType);
+
+        LLVMValueRef writer = declare("__sysy_profile_write", voidType);
+        LLVMSetLinkage(writer, LLVMInternalLinkage);
+        LLVMBasicBlockRef entry = LLVMAppendBasicBlockInContext(context, writer, "entry");
+        LLVMBasicBlockRef write = LLVMAppendBasicBlockInContext(context, writer, "write");
+        LLVMBasicBlockRef done = LLVMAppendBasicBlockInContext(context, writer, "done");
+        LLVMPositionBuilderAtEnd(builder, entry);
+        LLVMValueRef file = call(fopen, LLVMBuildGlobalStringPtr(builder, profile.output, "profile"),
+                LLVMBuildGlobalStringPtr(builder, "ab", "mode"));
+        LLVMBuildCondBr(builder, LLVMBuildIsNull(builder, file, "failed"), done, write);
+
+        LLVMPositionBuilderAtEnd(builder, write);
+        LLVMValueRef one = LLVMConstInt(i64Type, 1, 0);
+        for(int i = 0;i < names.size();i++){
+            int bytes = names.get(i).getBytes(StandardCharsets.UTF_8).length + 1;
+            call(fwrite, LLVMBuildGlobalStringPtr(builder, names.get(i), "name"), LLVMConstInt(i64Type, bytes, 0), one, file);
+            LLVMValueRef array = arrays.get(i);
+            call(fwrite, LLVMConstBitCast(array, i8PtrType), LLVMConstInt(i64Type, 8, 0),
+                    LLVMConstInt(i64Type, LLVMGetArrayLength(LLVMGetElementType(LLVMTypeOf(array))), 0), file);
+        }
+        call(fclose, file);
+        LLVMBuildBr(builder, done);
+        LLVMPositionBuilderAtEnd(builder, done);
+        LLVMBuildRetVoid(builder);
+
+        LLVMTypeRef entryType = LLVMStructTypeInContext(context, arena.of(i32Type, LLVMTypeOf(writer), i8PtrType), 3, 0);
+        LLVMValueRef destructor = LLVMConstStructInContext(context,
+                arena.of(LLVMConstInt(i32Type, 65535, 0), writer, LLVMConstPointerNull(i8PtrType)), 3, 0);
+        LLVMValueRef destructors = LLVMAddGlobal(module, LLVMArrayType(entryType, 1), "llvm.global_dtors");
+        LLVMSetLinkage(destructors, LLVMAppendingLinkage);
+        LLVMSetInitializer(destructors, LLVMConstArray(entryType, arena.of(destructor), 1));
+    }
+
+    /**
+     * The summary LLVM's ProfileSummaryInfo reads, its entries in the order it expects. The
+     * detailed summary gives for each cutoff the smallest count among the largest counts that
+     * add up to that share of the total, and how many counts those are.
+     */
+    private LLVMMetadataRef summary(){
+        long[] counts = profile.counts();
+        // ascending, so the largest are taken from the end
+        long[] sorted = counts.clone();
+        Arrays.sort(sorted);
+        long total = Arrays.stream(counts).sum();
+        List<LLVMMetadataRef> detailed = new ArrayList<>();
+        long sum = 0;
+        int taken = 0;
+        for(int cutoff: CUTOFFS){
+            double desired = total * (cutoff / 1e6);
+            while(taken < sorted.length && sum < desired){
+                sum += sorted[sorted.length - 1 - taken];
+                taken++;
+            }
+            long minimum = taken == 0 ? 0 : sorted[sorted.length - taken];
+            detailed.add(node(int32(cutoff), int64(minimum), int32(taken)));
+        }
+        return node(node(string("ProfileFormat"), string("InstrProf")),
+                node(string("TotalCount"), int64(total)),
+                node(string("MaxCount"), int64(sorted.length == 0 ? 0 : sorted[sorted.length - 1])),
+                node(string("MaxInternalCount"), int64(profile.maxBranchCount())),
+                node(string("MaxFunctionCount"), int64(profile.maxEntryCount())),
+                node(string("NumCounts"), int64(counts.length)),
+                node(string("NumFunctions"), int64(profile.functions())),
+                node(string("DetailedSummary"), node(detailed.toArray(new LLVMMetadataRef[0]))));
+    }
+
+    private LLVMMetadataRef node(LLVMMetadataRef... operands){
+        return LLVMMDNodeInContext2(context, arena.of(operands), operands.length);
+    }
+
+    private LLVMMetadataRef string(String value){
+        return LLVMMDStringInContext2(context, value, value.length());
+    }
+
+    private LLVMMetadataRef int32(long value){
+        return LLVMValueAsMetadata(LLVMConstInt(i32Type, value, 0));
+    }
+
+    private LLVMMetadataRef int64(long value){
+        return LLVMValueAsMetadata(LLVMConstInt(i64Type, value, 0));
+    }
+
+    /**
+     * @throws CompileException if the program defines a function of that name with another type,
+     *                          whose calls would not be the C library's
+     */
+    private LLVMValueRef declare(String name, LLVMTypeRef retType, LLVMTypeRef... params){
+        LLVMTypeRef type = LLVMFunctionType(retType, arena.of(params), params.length, 0);
+        LLVMValueRef function = LLVMGetNamedFunction(module, name);
+        if(function == null){
+            return LLVMAddFunction(module, name, type);
+        }
+        if(!LLVMGetElementType(LLVMTypeOf(function)).equals(type)){
+            throw new CompileException("an instrumented program cannot define a function named " + name
+                    + ", the profile is written with the C library's");
+        }
+        return function;
+    }
+
+    private LLVMValueRef call(LLVMValueRef function, LLVMValueRef... args){
+        return LLVMBuildCall(builder, function, arena.of(args), args.length, "");
+    }
+
+}
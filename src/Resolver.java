@@ -0,0 +1,132 @@
+import org.antlr.v4.runtime.tree.IterativeParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.*;
+
+/**
+ * Binds every use of a name to its declaration once, before any code is generated. Each
+ * const, variable, parameter and function gets a slot, which is stored on the declaring node
+ * and on every lVal and call naming it, so codegen finds the {@link Symbol} with one array
+ * index instead of hashing the name in each enclosing scope. Visibility is what LLVMVisitor
+ * always had: a name is visible after its own definition, parameters live in a scope around
+ * the function body, and a function is visible in its own body. The functions of
+ * {@link SysYLib} are declared before the program and take the first slots.
+ */
+public class Resolver extends SysYParserBaseListener {
+    private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+    private final BitSet functions = new BitSet();
+    private final List<String> errors = new ArrayList<>();
+    private int slots = 0;
+
+    /**
+     * Resolves the tree unless that was done before and returns the number of slots. Trees are
+     * shared by the threads of parallel codegen, hence the lock. The walk keeps its own stack,
+     * so a chain of thousands of operators, which nests as deep, cannot overflow the thread's.
+     *
+     * @throws CompileException listing every name that is undefined or used as the wrong kind
+     */
+    public static int resolve(SysYParser.ProgramContext tree){
+        synchronized (tree){
+            if(tree.symbolCount < 0){
+                Resolver resolver = new Resolver();
+                new IterativeParseTreeWalker().walk(resolver, tree);
+                if(!resolver.errors.isEmpty()){
+                    throw new CompileException(String.join("\n", resolver.errors));
+                }
+                tree.symbolCount = resolver.slots;
+            }
+            return tree.symbolCount;
+        }
+    }
+
+    @Override
+    public void enterProgram(SysYParser.ProgramContext ctx) {
+        scopes.push(new HashMap<>());
+        for(SysYLib.Function function: SysYLib.FUNCTIONS){
+            declare(function.name, true);
+        }
+    }
+
+    @Override
+    public void exitProgram(SysYParser.ProgramContext ctx) {
+        scopes.pop();
+    }
+
+    @Override
+    public void enterFuncDef(SysYParser.FuncDefContext ctx) {
+        ctx.slot = declare(ctx.IDENT(), true);
+        scopes.push(new HashMap<>());
+    }
+
+    @Override
+    public void exitFuncDef(SysYParser.FuncDefContext ctx) {
+        scopes.pop();
+    }
+
+    @Override
+    public void exitFuncFParam(SysYParser.FuncFParamContext ctx) {
+        ctx.slot = declare(ctx.IDENT(), false);
+    }
+
+    @Override
+    public void exitConstDef(SysYParser.ConstDefContext ctx) {
+        ctx.slot = declare(ctx.IDENT(), false);
+    }
+
+    @Override
+    public void exitVarDef(SysYParser.VarDefContext ctx) {
+        ctx.slot = declare(ctx.IDENT(), false);
+    }
+
+    @Override
+    public void enterBlock(SysYParser.BlockContext ctx) {
+        scopes.push(new HashMap<>());
+    }
+
+    @Override
+    public void exitBlock(SysYParser.BlockContext ctx) {
+        scopes.pop();
+    }
+
+    @Override
+    public void enterLVal(SysYParser.LValContext ctx) {
+        ctx.slot = lookup(ctx.IDENT(), false);
+    }
+
+    @Override
+    public void enterFuncExp(SysYParser.FuncExpContext ctx) {
+        ctx.slot = lookup(ctx.IDENT(), true);
+    }
+
+    private int declare(TerminalNode name, boolean function){
+        return declare(name.getText(), function);
+    }
+
+    private int declare(String name, boolean function){
+        int slot = slots++;
+        functions.set(slot, function);
+        scopes.peek().put(name, slot);
+        return slot;
+    }
+
+    private int lookup(TerminalNode name, boolean function){
+        String text = name.getText();
+        for(Map<String, Integer> scope: scopes){
+            Integer slot = scope.get(text);
+            if(slot == null){
+                continue;
+            }
+            if(functions.get(slot) != function){
+                error(name, (function ? "not a function: " : "not a variable: ") + text);
+            }
+            return slot;
+        }
+        error(name, (function ? "undefined function: " : "undefined variable: ") + text);
+        return -1;
+    }
+
+    private void error(TerminalNode name, String message){
+        errors.add(name.getSymbol().getLine() + ":" + name.getSymbol().getCharPositionInLine() + ": " + message);
+    }
+
+}
@@ -0,0 +1,161 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.*;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * On-the-fly SSA construction for scalar locals (Braun et al., "Simple and Efficient
+ * Construction of Static Single Assignment Form"). Variables are plain ids handed out by
+ * {@link #newVariable()}; the visitor reports every CFG edge it emits and seals a block once
+ * all of its predecessors are known.
+ */
+public class SSABuilder {
+    private final LLVMBuilderRef builder;
+    private final LLVMTypeRef type;
+    private final PointerArena arena;
+
+    private final Map<LLVMBasicBlockRef, Map<Integer, LLVMValueRef>> currentDef = new HashMap<>();
+    private final Map<LLVMBasicBlockRef, Map<Integer, LLVMValueRef>> incompletePhis = new HashMap<>();
+    private final Map<LLVMBasicBlockRef, List<LLVMBasicBlockRef>> preds = new HashMap<>();
+    private final Set<LLVMBasicBlockRef> sealed = new HashSet<>();
+    private int variables = 0;
+
+    public SSABuilder(LLVMBuilderRef builder, LLVMTypeRef type, PointerArena arena){
+        this.builder = builder;
+        this.type = type;
+        this.arena = arena;
+    }
+
+    public int newVariable(){
+        return variables++;
+    }
+
+    public void addPredecessor(LLVMBasicBlockRef block, LLVMBasicBlockRef pred){
+        preds.computeIfAbsent(block, k -> new ArrayList<>()).add(pred);
+    }
+
+    public void writeVariable(int variable, LLVMBasicBlockRef block, LLVMValueRef value){
+        currentDef.computeIfAbsent(block, k -> new HashMap<>()).put(variable, value);
+    }
+
+    public LLVMValueRef readVariable(int variable, LLVMBasicBlockRef block){
+        Map<Integer, LLVMValueRef> defs = currentDef.get(block);
+        if(defs != null && defs.containsKey(variable)){
+            return defs.get(variable);
+        }
+        return readVariableRecursive(variable, block);
+    }
+
+    public void sealBlock(LLVMBasicBlockRef block){
+        Map<Integer, LLVMValueRef> phis = incompletePhis.remove(block);
+        if(phis != null){
+            for(Map.Entry<Integer, LLVMValueRef> entry: phis.entrySet()){
+                addPhiOperands(entry.getKey(), entry.getValue(), block);
+            }
+        }
+        sealed.add(block);
+    }
+
+    private LLVMValueRef readVariableRecursive(int variable, LLVMBasicBlockRef block){
+        // sealed blocks with a single predecessor are walked in a loop, so a long else-if
+        // ladder does not recurse once per arm
+        List<LLVMBasicBlockRef> chain = new ArrayList<>();
+        LLVMValueRef value = null;
+        List<LLVMBasicBlockRef> blockPreds = preds.getOrDefault(block, Collections.emptyList());
+        while(sealed.contains(block) && blockPreds.size() == 1){
+            chain.add(block);
+            block = blockPreds.get(0);
+            Map<Integer, LLVMValueRef> defs = currentDef.get(block);
+            if(defs != null && defs.containsKey(variable)){
+                value = defs.get(variable);
+                break;
+            }
+            blockPreds = preds.getOrDefault(block, Collections.emptyList());
+        }
+
+        if(value == null){
+            if(!sealed.contains(block)){
+                value = newPhi(block);
+                incompletePhis.computeIfAbsent(block, k -> new HashMap<>()).put(variable, value);
+            } else if(blockPreds.isEmpty()){
+                value = LLVMGetUndef(type);
+            } else {
+                LLVMValueRef phi = newPhi(block);
+                writeVariable(variable, block, phi);
+                value = addPhiOperands(variable, phi, block);
+            }
+            writeVariable(variable, block, value);
+        }
+        for(LLVMBasicBlockRef walked: chain){
+            writeVariable(variable, walked, value);
+        }
+        return value;
+    }
+
+    private LLVMValueRef addPhiOperands(int variable, LLVMValueRef phi, LLVMBasicBlockRef block){
+        for(LLVMBasicBlockRef pred: preds.getOrDefault(block, Collections.emptyList())){
+            LLVMValueRef value = readVariable(variable, pred);
+            LLVMAddIncoming(phi, arena.of(value), arena.of(pred), 1);
+        }
+        return tryRemoveTrivialPhi(phi, new HashSet<>());
+    }
+
+    // removed only lives for one cascade: erased instructions free their address for reuse
+    private LLVMValueRef tryRemoveTrivialPhi(LLVMValueRef phi, Set<LLVMValueRef> removed){
+        LLVMValueRef same = null;
+        int count = LLVMCountIncoming(phi);
+        for(int i = 0;i < count;i++){
+            LLVMValueRef op = LLVMGetIncomingValue(phi, i);
+            if(op.equals(same) || op.equals(phi)){
+                continue;
+            }
+            if(same != null){
+                return phi;
+            }
+            same = op;
+        }
+        if(same == null){
+            same = LLVMGetUndef(type);
+        }
+
+        List<LLVMValueRef> users = new ArrayList<>();
+        for(LLVMUseRef use = LLVMGetFirstUse(phi); use != null; use = LLVMGetNextUse(use)){
+            LLVMValueRef user = LLVMGetUser(use);
+            if(!user.equals(phi) && LLVMIsAPHINode(user) != null){
+                users.add(user);
+            }
+        }
+        LLVMReplaceAllUsesWith(phi, same);
+        for(Map<Integer, LLVMValueRef> defs: currentDef.values()){
+            for(Map.Entry<Integer, LLVMValueRef> entry: defs.entrySet()){
+                if(entry.getValue().equals(phi)){
+                    entry.setValue(same);
+                }
+            }
+        }
+        LLVMInstructionEraseFromParent(phi);
+        removed.add(phi);
+
+        for(LLVMValueRef user: users){
+            if(!removed.contains(user)){
+                tryRemoveTrivialPhi(user, removed);
+            }
+        }
+        return same;
+    }
+
+    private LLVMValueRef newPhi(LLVMBasicBlockRef block){
+        LLVMBasicBlockRef current = LLVMGetInsertBlock(builder);
+        LLVMValueRef first = LLVMGetFirstInstruction(block);
+        if(first != null){
+            LLVMPositionBuilderBefore(builder, first);
+        } else {
+            LLVMPositionBuilderAtEnd(builder, block);
+        }
+        LLVMValueRef phi = LLVMBuildPhi(builder, type, "phi_");
+        LLVMPositionBuilderAtEnd(builder, current);
+        return phi;
+    }
+
+}
@@ -0,0 +1,36 @@
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+/**
+ * What codegen knows about one declared name, kept in the slot {@link Resolver} gave it.
+ * A scalar in SSA form has no value, only a variable id; consts also carry their dimensions
+ * and their values, flattened in row-major order.
+ */
+public class Symbol {
+    public final LLVMValueRef value;
+    public final LLVMTypeRef type;
+    public final int variable;
+    public final int[] constDims;
+    public final int[] constValues;
+
+    private Symbol(LLVMValueRef value, LLVMTypeRef type, int variable, int[] constDims, int[] constValues){
+        this.value = value;
+        this.type = type;
+        this.variable = variable;
+        this.constDims = constDims;
+        this.constValues = constValues;
+    }
+
+    public static Symbol ref(LLVMValueRef value, LLVMTypeRef type){
+        return new Symbol(value, type, -1, null, null);
+    }
+
+    public static Symbol var(int variable, LLVMTypeRef type){
+        return new Symbol(null, type, variable, null, null);
+    }
+
+    public static Symbol constant(LLVMValueRef value, LLVMTypeRef type, int[] dims, int[] values){
+        return new Symbol(value, type, -1, dims, values);
+    }
+
+}
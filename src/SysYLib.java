@@ -0,0 +1,106 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.LLVMContextRef;
+import org.bytedeco.llvm.LLVM.LLVMModuleRef;
+import org.bytedeco.llvm.LLVM.LLVMTypeRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+
+import java.io.File;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+/**
+ * The runtime library of runtime/sylib.c, whose functions every program can call without
+ * declaring them. {@link Resolver} gives them the first slots, in the order of FUNCTIONS, and
+ * LLVMVisitor declares the ones a module calls. starttime() and stoptime() are calls of
+ * _sysy_starttime and _sysy_stoptime with the line of the call, as the macros in sylib.h are.
+ */
+public class SysYLib {
+
+    public static class Function {
+        public final String name;
+        public final String symbol;
+        public final boolean returnsInt;
+        // i for int, p for int[], l for the line of the call, which the caller does not pass
+        public final String params;
+
+        Function(String name, String symbol, boolean returnsInt, String params){
+            this.name = name;
+            this.symbol = symbol;
+            this.returnsInt = returnsInt;
+            this.params = params;
+        }
+
+        public boolean passesLine(){
+            return params.equals("l");
+        }
+
+        public LLVMTypeRef type(LLVMContextRef context){
+            LLVMTypeRef i32Type = LLVMInt32TypeInContext(context);
+            LLVMTypeRef[] types = new LLVMTypeRef[params.length()];
+            for(int i = 0;i < types.length;i++){
+                types[i] = params.charAt(i) == 'p' ? LLVMPointerType(i32Type, 0) : i32Type;
+            }
+            LLVMTypeRef retType = returnsInt ? i32Type : LLVMVoidTypeInContext(context);
+            try (PointerPointer<LLVMTypeRef> array = new PointerPointer<>(types)) {
+                return LLVMFunctionType(retType, array, types.length, 0);
+            }
+        }
+
+        public LLVMValueRef declare(LLVMModuleRef module){
+            LLVMValueRef function = LLVMGetNamedFunction(module, symbol);
+            if(function == null){
+                function = LLVMAddFunction(module, symbol, type(LLVMGetModuleContext(module)));
+            }
+            return function;
+        }
+    }
+
+    public static final List<Function> FUNCTIONS = List.of(
+            new Function("getint", "getint", true, ""),
+            new Function("getch", "getch", true, ""),
+            new Function("getarray", "getarray", true, "p"),
+            new Function("putint", "putint", false, "i"),
+            new Function("putch", "putch", false, "i"),
+            new Function("putarray", "putarray", false, "ip"),
+            new Function("starttime", "_sysy_starttime", false, "l"),
+            new Function("stoptime", "_sysy_stoptime", false, "l")
+    );
+
+    // flushes output and reports the timers, and forgets everything before the next run
+    public static final String FINISH = "_sysy_finish";
+    public static final String RESET = "_sysy_reset";
+
+    private static Boolean loaded = null;
+
+    /**
+     * The shared library built by "make runtime", or the one named by -Dsysy.runtime.
+     */
+    public static String path(){
+        return System.getProperty("sysy.runtime", "runtime/libsysy.so");
+    }
+
+    /**
+     * Loads the library into the process once, so the JIT resolves the runtime functions to
+     * it. Returns false when there is no library to load.
+     */
+    public static synchronized boolean load(){
+        if(loaded == null){
+            String path = path();
+            loaded = new File(path).isFile() && LLVMLoadLibraryPermanently(path) == 0;
+        }
+        return loaded;
+    }
+
+    // a runtime function the module calls and does not define itself, if any
+    public static String calledBy(LLVMModuleRef module){
+        for(Function function: FUNCTIONS){
+            LLVMValueRef value = LLVMGetNamedFunction(module, function.symbol);
+            if(value != null && LLVMIsDeclaration(value) != 0){
+                return function.symbol;
+            }
+        }
+        return null;
+    }
+
+}
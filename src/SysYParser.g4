@@ -4,7 +4,7 @@ options {
     tokenVocab = SysYLexer;
 }
 
-program
+program locals [int symbolCount = -1]
    : compUnit
    ;
 
@@ -24,7 +24,7 @@ bType
    : INT
    ;
 
-constDef
+constDef locals [int slot = -1]
    : IDENT (L_BRACKT constExp R_BRACKT)* ASSIGN constInitVal
    ;
 
@@ -37,7 +37,7 @@ varDecl
    : bType varDef (COMMA varDef)* SEMICOLON
    ;
 
-varDef
+varDef locals [int slot = -1]
    : IDENT (L_BRACKT constExp R_BRACKT)* (ASSIGN initVal)?
    ;
 
@@ -46,7 +46,7 @@ initVal
    | L_BRACE (initVal (COMMA initVal)*)? R_BRACE
    ;
 
-funcDef
+funcDef locals [int slot = -1]
    : funcType IDENT L_PAREN (funcFParams)? R_PAREN block
    ;
 
@@ -59,7 +59,7 @@ funcFParams
    : funcFParam (COMMA funcFParam)*
    ;
 
-funcFParam
+funcFParam locals [int slot = -1]
    : bType IDENT (L_BRACKT R_BRACKT (L_BRACKT exp R_BRACKT)*)?
    ;
 
@@ -76,14 +76,16 @@ stmt
    : lVal ASSIGN exp SEMICOLON                      # assignStmt
    | (exp)? SEMICOLON                               # questionStmt
    | block                                          # blockStmt
-   | IF L_PAREN cond R_PAREN stmt (ELSE stmt)?      # ifStmt
+   | IF L_PAREN cond R_PAREN stmt
+     (ELSE IF L_PAREN cond R_PAREN stmt)*
+     (ELSE stmt)?                                   # ifStmt
    | WHILE L_PAREN cond R_PAREN stmt                # whileStmt
    | BREAK SEMICOLON                                # breakStmt
    | CONTINUE SEMICOLON                             # continueStmt
    | RETURN (exp)? SEMICOLON                        # returnStmt
    ;
 
-exp
+exp locals [int slot = -1]
    : L_PAREN exp R_PAREN                            # parenExp
    | lVal                                           # lValExp
    | number                                         # numberExp
@@ -101,7 +103,7 @@ cond
    | cond OR cond                                   # orCond
    ;
 
-lVal
+lVal locals [int slot = -1]
    : IDENT (L_BRACKT exp R_BRACKT)*
    ;
 
@@ -0,0 +1,764 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns an optimized {@link Mir} into x86-64 assembly for the System V ABI, in the AT&T syntax
+ * of the GNU assembler, without LLVM. Blocks are laid out in reverse postorder, so a jump to
+ * the next block is left out. Phis leave SSA the way {@link BytecodeCompiler} takes them out:
+ * as copies at the end of a predecessor that jumps and on an edge of their own when it
+ * branches, each edge's copies done as one parallel move.
+ * <p>
+ * Values are allocated by {@link LinearScan} over intervals taken from the liveness of SSA:
+ * from a use the value is live in every block back up to its definition. Constants, global
+ * addresses and local arrays take no register and are used as immediates, rip-relative or
+ * rbp-relative addresses. A comparison only branched on becomes a cmp and a jcc, and an element
+ * address only loaded or stored through becomes the addressing mode of the mov.
+ * %rax, %rdx and %r11 are never allocated, so division, addressing and moves between two stack
+ * slots always have them to work with.
+ */
+public class X86Lowering {
+    private static final String[] REGISTERS = {"%rbx", "%r12", "%r13", "%r14", "%r15",
+            "%rcx", "%rsi", "%rdi", "%r8", "%r9", "%r10"};
+    private static final String[] REGISTERS32 = {"%ebx", "%r12d", "%r13d", "%r14d", "%r15d",
+            "%ecx", "%esi", "%edi", "%r8d", "%r9d", "%r10d"};
+    // the first ones survive calls
+    private static final int CALLEE_SAVED = 5;
+    private static final String[] ARGUMENTS = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+    // clears up to this many ints are stores of zero, larger ones calls of memset
+    private static final int FEW_STORES = 16;
+
+    private final Mir program;
+    private final StringBuilder text = new StringBuilder();
+
+    // per function
+    private Mir.Function function = null;
+    private int functionIndex = 0;
+    private int[] order = null;
+    private int[] uses = null;
+    // the load, store or branch a folded instruction is part of, -1 if not folded
+    private int[] foldedInto = null;
+    private int[] positions = null;
+    private int[] blockEnds = null;
+    private LinearScan allocation = null;
+    private int[] allocaOffsets = null;
+    private int savedSize = 0;
+    private final List<String> savedRegisters = new ArrayList<>();
+    private int[] jumpEdges = null;
+    private int[] trueEdges = null;
+    private int[] falseEdges = null;
+
+    private X86Lowering(Mir program){
+        this.program = program;
+    }
+
+    public static String lower(Mir program){
+        return new X86Lowering(program).lower();
+    }
+
+    private String lower(){
+        for(Mir.Global global: program.globals){
+            addGlobal(global);
+        }
+        text.append("\t.text\n");
+        for(functionIndex = 0;functionIndex < program.functions.size();functionIndex++){
+            function = program.functions.get(functionIndex);
+            if(!function.external){
+                lowerFunction();
+            }
+        }
+        text.append("\t.section .note.GNU-stack,\"\",@progbits\n");
+        return text.toString();
+    }
+
+    private void addGlobal(Mir.Global global){
+        int tail = global.values == null ? 0 : Math.min(global.size, global.values.length);
+        while(tail > 0 && global.values[tail - 1] == 0){
+            tail--;
+        }
+        text.append(global.constant ? "\t.section .rodata\n" : tail == 0 ? "\t.bss\n" : "\t.data\n");
+        if(!global.internal){
+            text.append("\t.globl ").append(global.name).append('\n');
+        }
+        text.append("\t.p2align ").append(global.scalar ? 2 : 4).append('\n');
+        text.append("\t.type ").append(global.name).append(", @object\n");
+        text.append("\t.size ").append(global.name).append(", ").append(4L * global.size).append('\n');
+        text.append(global.name).append(":\n");
+        for(int i = 0;i < tail;i++){
+            text.append(i % 16 == 0 ? "\t.long " : ", ").append(global.values[i]);
+            if(i % 16 == 15 || i == tail - 1){
+                text.append('\n');
+            }
+        }
+        if(tail < global.size){
+            text.append("\t.zero ").append(4L * (global.size - tail)).append('\n');
+        }
+    }
+
+    private void lowerFunction(){
+        order = function.reversePostorder();
+        fold();
+        allocate();
+        findEdges();
+
+        text.append("\t.globl ").append(function.name).append('\n');
+        text.append("\t.type ").append(function.name).append(", @function\n");
+        text.append(function.name).append(":\n");
+        emit("pushq %rbp");
+        emit("movq %rsp, %rbp");
+        for(String register: savedRegisters){
+            emit("pushq " + register);
+        }
+        int frameSize = layOutFrame();
+        if(frameSize > 0){
+            emit("subq $" + frameSize + ", %rsp");
+        }
+
+        List<String> to = new ArrayList<>();
+        List<String> from = new ArrayList<>();
+        for(int i = 0;i < function.codeLength[0];i++){
+            int v = function.code[0][i];
+            if(function.op[v] == Mir.PARAM && allocation.locations[v] != LinearScan.NONE){
+                int index = function.a[v];
+                to.add(location(v));
+                from.add(index < ARGUMENTS.length ? ARGUMENTS[index] : 16 + 8 * (index - ARGUMENTS.length) + "(%rbp)");
+            }
+        }
+        parallelMove(to, from);
+
+        for(int at = 0;at < order.length;at++){
+            int block = order[at];
+            text.append(label(block)).append(":\n");
+            int next = at + 1 < order.length ? order[at + 1] : -1;
+            for(int i = 0;i < function.codeLength[block];i++){
+                lowerInstruction(function.code[block][i], block, next);
+            }
+        }
+        text.append("\t.size ").append(function.name).append(", .-").append(function.name).append('\n');
+    }
+
+    // which comparisons and element addresses are folded into their only use
+    private void fold(){
+        uses = new int[function.count];
+        foldedInto = new int[function.count];
+        Arrays.fill(foldedInto, -1);
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                for(int j = 0;j < function.operandCount(v);j++){
+                    uses[function.operand(v, j)]++;
+                }
+            }
+        }
+        for(int block: order){
+            int terminator = function.terminator(block);
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int op = function.op[v];
+                if(Mir.isCompare(op) && uses[v] == 1 && function.op[terminator] == Mir.BRANCH
+                        && function.a[terminator] == v){
+                    foldedInto[v] = terminator;
+                } else if((op == Mir.LOAD || op == Mir.STORE) && function.op[function.a[v]] == Mir.ELEM
+                        && uses[function.a[v]] == 1 && function.block[function.a[v]] == block){
+                    foldedInto[function.a[v]] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Numbers the instructions in layout order, a folded one taking the number of its use, and
+     * allocates every value that needs a place over the interval it is live in. A phi is
+     * written at the end of its predecessors and a phi operand read there, so both count as
+     * live at the end of the predecessor.
+     */
+    private void allocate(){
+        positions = new int[function.count];
+        blockEnds = new int[function.blocks];
+        int[] blockStarts = new int[function.blocks];
+        List<Integer> calls = new ArrayList<>();
+        int position = 1;
+        for(int block: order){
+            blockStarts[block] = position++;
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                int op = function.op[v];
+                positions[v] = op == Mir.PHI ? blockStarts[block] : op == Mir.PARAM ? 0 : position++;
+                if(op == Mir.CALL || op == Mir.COPY || op == Mir.CLEAR && function.b[v] > FEW_STORES){
+                    calls.add(positions[v]);
+                }
+            }
+            blockEnds[block] = position++;
+        }
+        for(int v = 0;v < function.count;v++){
+            if(foldedInto[v] >= 0){
+                positions[v] = positions[foldedInto[v]];
+            }
+        }
+
+        int[] starts = new int[function.count];
+        int[] ends = new int[function.count];
+        Arrays.fill(starts, -1);
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                if(needsLocation(v)){
+                    starts[v] = ends[v] = positions[v];
+                }
+            }
+        }
+        int[] marks = new int[function.blocks];
+        int[] stack = new int[function.blocks];
+        for(int block: order){
+            for(int i = 0;i < function.codeLength[block];i++){
+                int v = function.code[block][i];
+                boolean phi = function.op[v] == Mir.PHI;
+                for(int j = 0;j < function.operandCount(v);j++){
+                    int value = function.operand(v, j);
+                    if(starts[value] < 0){
+                        continue;
+                    }
+                    int from = phi ? function.preds[block][j] : block;
+                    ends[value] = Math.max(ends[value], phi ? blockEnds[from] : positions[v]);
+                    if(from != definingBlock(value)){
+                        markLive(value, from, ends, marks, stack);
+                    }
+                    if(phi){
+                        starts[v] = Math.min(starts[v], blockEnds[from]);
+                        ends[v] = Math.max(ends[v], blockEnds[from]);
+                    }
+                }
+            }
+        }
+
+        boolean[] crossesCall = new boolean[function.count];
+        int[] callPositions = calls.stream().mapToInt(Integer::intValue).toArray();
+        for(int v = 0;v < function.count;v++){
+            if(starts[v] >= 0){
+                int at = Arrays.binarySearch(callPositions, starts[v] + 1);
+                at = at < 0 ? -at - 1 : at;
+                crossesCall[v] = at < callPositions.length && callPositions[at] < ends[v];
+            }
+        }
+        allocation = LinearScan.allocate(starts, ends, crossesCall, REGISTERS.length, CALLEE_SAVED);
+        savedRegisters.clear();
+        for(int r = 0;r < CALLEE_SAVED;r++){
+            if(allocation.used[r]){
+                savedRegisters.add(REGISTERS[r]);
+            }
+        }
+        savedSize = 8 * savedRegisters.size();
+    }
+
+    // the value is live into the block, so it is live out of every predecessor, up to its definition
+    private void markLive(int value, int block, int[] ends, int[] marks, int[] stack){
+        int defined = definingBlock(value);
+        int depth = 0;
+        stack[depth++] = block;
+        marks[block] = value + 1;
+        while(depth > 0){
+            int live = stack[--depth];
+            for(int i = 0;i < function.predCount[live];i++){
+                int pred = function.preds[live][i];
+                ends[value] = Math.max(ends[value], blockEnds[pred]);
+                if(pred != defined && marks[pred] != value + 1){
+                    marks[pred] = value + 1;
+                    stack[depth++] = pred;
+                }
+            }
+        }
+    }
+
+    private int definingBlock(int value){
+        return function.op[value] == Mir.PARAM ? 0 : function.block[value];
+    }
+
+    private boolean needsLocation(int v){
+        switch (function.op[v]){
+            case Mir.PARAM:
+            case Mir.CALL:
+                return uses[v] > 0;
+            case Mir.PHI:
+            case Mir.LOAD:
+                return true;
+            case Mir.ELEM:
+                return foldedInto[v] < 0;
+            default:
+                return function.op[v] >= Mir.ADD && function.op[v] <= Mir.GE && foldedInto[v] < 0;
+        }
+    }
+
+    /**
+     * Below the saved registers come the spill slots, eight bytes each, then the local arrays.
+     * Returns what is taken off %rsp after the pushes, which keeps it 16-byte aligned at calls.
+     */
+    private int layOutFrame(){
+        int size = 8 * allocation.spillSlots;
+        allocaOffsets = new int[function.count];
+        for(int i = 0;i < function.codeLength[0];i++){
+            int v = function.code[0][i];
+            if(function.op[v] == Mir.ALLOCA){
+                size = (size + 4 * function.a[v] + 15) & ~15;
+                allocaOffsets[v] = -savedSize - size;
+            }
+        }
+        return (savedSize + size + 15 & ~15) - savedSize;
+    }
+
+    private void lowerInstruction(int v, int block, int next){
+        int op = function.op[v];
+        int a = function.a[v];
+        int b = function.b[v];
+        if(foldedInto[v] >= 0){
+            return;
+        }
+        switch (op){
+            case Mir.ADD:
+                if(isConstant(b) && isRegister(a) && isRegister(v)){
+                    emit("leal " + function.a[b] + "(" + REGISTERS[allocation.locations[a]] + "), " + int32(v));
+                } else binary("addl", true, v, a, b);
+                break;
+            case Mir.SUB:
+                if(isConstant(a) && function.a[a] == 0){
+                    move32(int32(v), int32(b));
+                    emit("negl " + int32(v));
+                } else binary("subl", false, v, a, b);
+                break;
+            case Mir.MUL:
+                if(isConstant(b) && isRegister(v) && !isConstant(a)){
+                    emit("imull $" + function.a[b] + ", " + int32(a) + ", " + int32(v));
+                } else binary("imull", true, v, a, b);
+                break;
+            case Mir.DIV:
+            case Mir.REM:
+                divide(v, op == Mir.REM, a, b);
+                break;
+            case Mir.EQ:
+            case Mir.NE:
+            case Mir.LT:
+            case Mir.GT:
+            case Mir.LE:
+            case Mir.GE:
+                emit("set" + compare(v) + " %al");
+                emit("movzbl %al, %eax");
+                move32(int32(v), "%eax");
+                break;
+            case Mir.ELEM:
+                move(location(v), "&" + address(v));
+                break;
+            case Mir.LOAD: {
+                String memory = function.op[a] == Mir.ELEM && foldedInto[a] == v ? address(a) : memory(a, 0);
+                if(isRegister(v)){
+                    emit("movl " + memory + ", " + int32(v));
+                } else {
+                    emit("movl " + memory + ", %r11d");
+                    emit("movl %r11d, " + int32(v));
+                }
+                break;
+            }
+            case Mir.STORE: {
+                String memory = function.op[a] == Mir.ELEM && foldedInto[a] == v ? address(a) : memory(a, 0);
+                if(isConstant(b) || isRegister(b)){
+                    emit("movl " + int32(b) + ", " + memory);
+                } else {
+                    emit("movl " + int32(b) + ", %r11d");
+                    emit("movl %r11d, " + memory);
+                }
+                break;
+            }
+            case Mir.CLEAR:
+                if(b <= FEW_STORES){
+                    for(int i = 0;i < b;i++){
+                        emit("movl $0, " + memory(a, 4 * i));
+                    }
+                } else call("memset@PLT", List.of(location(a), "$0", "$" + 4L * b));
+                break;
+            case Mir.COPY:
+                call("memcpy@PLT", List.of(location(a), location(b), "$" + 4L * function.c[v]));
+                break;
+            case Mir.CALL: {
+                Mir.Function callee = program.functions.get(a);
+                List<String> args = new ArrayList<>();
+                for(int i = 0;i < function.c[v];i++){
+                    args.add(location(function.extra[b + i]));
+                }
+                call(callee.external ? callee.name + "@PLT" : callee.name, args);
+                if(allocation.locations[v] != LinearScan.NONE){
+                    move32(int32(v), "%eax");
+                }
+                break;
+            }
+            case Mir.JUMP:
+                if(jumpEdges[block] >= 0){
+                    copies(a, jumpEdges[block]);
+                }
+                if(a != next){
+                    emit("jmp " + label(a));
+                }
+                break;
+            case Mir.BRANCH:
+                branch(v, block, next);
+                break;
+            case Mir.RET:
+                if(a >= 0){
+                    move32("%eax", int32(a));
+                }
+                if(savedRegisters.isEmpty()){
+                    emit("leave");
+                } else {
+                    emit("leaq " + -savedSize + "(%rbp), %rsp");
+                    for(int i = savedRegisters.size() - 1;i >= 0;i--){
+                        emit("popq " + savedRegisters.get(i));
+                    }
+                    emit("popq %rbp");
+                }
+                emit("ret");
+                break;
+        }
+    }
+
+    // v = a op b, through %r11d when v is in memory or is b and the operation is not commutative
+    private void binary(String mnemonic, boolean commutative, int v, int a, int b){
+        String to = int32(v);
+        String x = int32(a);
+        String y = int32(b);
+        if(!isRegister(v) || to.equals(y) && !to.equals(x) && !commutative){
+            emit("movl " + x + ", %r11d");
+            emit(mnemonic + " " + y + ", %r11d");
+            emit("movl %r11d, " + to);
+        } else if(to.equals(y)){
+            emit(mnemonic + " " + x + ", " + to);
+        } else {
+            move32(to, x);
+            emit(mnemonic + " " + y + ", " + to);
+        }
+    }
+
+    // signed division with truncation, as idiv does; by a power of two with shifts
+    private void divide(int v, boolean remainder, int a, int b){
+        move32("%eax", int32(a));
+        int divisor = isConstant(b) ? function.a[b] : 0;
+        if(divisor > 1 && (divisor & divisor - 1) == 0){
+            int shift = Integer.numberOfTrailingZeros(divisor);
+            // negative dividends are rounded toward zero by adding divisor - 1 first
+            emit("movl %eax, %r11d");
+            emit("sarl $31, %r11d");
+            emit("shrl $" + (32 - shift) + ", %r11d");
+            if(remainder){
+                emit("addl %eax, %r11d");
+                emit("andl $" + -divisor + ", %r11d");
+                emit("subl %r11d, %eax");
+            } else {
+                emit("addl %r11d, %eax");
+                emit("sarl $" + shift + ", %eax");
+            }
+            move32(int32(v), "%eax");
+            return;
+        }
+        emit("cltd");
+        if(isConstant(b)){
+            emit("movl " + int32(b) + ", %r11d");
+            emit("idivl %r11d");
+        } else emit("idivl " + int32(b));
+        move32(int32(v), remainder ? "%edx" : "%eax");
+    }
+
+    // compares the operands of a comparison and returns the condition code it holds on
+    private String compare(int v){
+        int a = function.a[v];
+        int b = function.b[v];
+        int op = function.op[v];
+        if(isConstant(a)){
+            // cmp takes no immediate on the left
+            int swap = a;
+            a = b;
+            b = swap;
+            op = op == Mir.LT ? Mir.GT : op == Mir.GT ? Mir.LT : op == Mir.LE ? Mir.GE : op == Mir.GE ? Mir.LE : op;
+        }
+        String x = int32(a);
+        if(isConstant(a) || !isRegister(a) && !isRegister(b) && !isConstant(b)){
+            emit("movl " + x + ", %r11d");
+            x = "%r11d";
+        }
+        emit("cmpl " + int32(b) + ", " + x);
+        return condition(op);
+    }
+
+    private static String condition(int op){
+        switch (op){
+            case Mir.EQ: return "e";
+            case Mir.NE: return "ne";
+            case Mir.LT: return "l";
+            case Mir.GT: return "g";
+            case Mir.LE: return "le";
+            default: return "ge";
+        }
+    }
+
+    private static String negate(String condition){
+        switch (condition){
+            case "e": return "ne";
+            case "ne": return "e";
+            case "l": return "ge";
+            case "g": return "le";
+            case "le": return "g";
+            default: return "l";
+        }
+    }
+
+    private void branch(int v, int block, int next){
+        int cond = function.a[v];
+        String holds;
+        if(foldedInto[cond] == v){
+            holds = compare(cond);
+        } else {
+            String x = int32(cond);
+            emit(isRegister(cond) ? "testl " + x + ", " + x : "cmpl $0, " + x);
+            holds = "ne";
+        }
+        boolean copiesTrue = trueEdges[block] >= 0;
+        boolean copiesFalse = falseEdges[block] >= 0;
+        String whenTrue = copiesTrue ? label(block) + "_t" : label(function.b[v]);
+        String whenFalse = copiesFalse ? label(block) + "_f" : label(function.c[v]);
+        if(copiesTrue || copiesFalse){
+            emit("j" + holds + " " + whenTrue);
+            emit("jmp " + whenFalse);
+        } else if(function.c[v] == next){
+            emit("j" + holds + " " + whenTrue);
+        } else if(function.b[v] == next){
+            emit("j" + negate(holds) + " " + whenFalse);
+        } else {
+            emit("j" + holds + " " + whenTrue);
+            emit("jmp " + whenFalse);
+        }
+        if(copiesTrue){
+            text.append(whenTrue).append(":\n");
+            copies(function.b[v], trueEdges[block]);
+            emit("jmp " + label(function.b[v]));
+        }
+        if(copiesFalse){
+            text.append(whenFalse).append(":\n");
+            copies(function.c[v], falseEdges[block]);
+            emit("jmp " + label(function.c[v]));
+        }
+    }
+
+    /**
+     * Arguments past the sixth are pushed, with padding first if there is an odd number of
+     * them, then the others are moved into their registers all at once.
+     */
+    private void call(String callee, List<String> args){
+        int pushed = Math.max(0, args.size() - ARGUMENTS.length);
+        if(pushed % 2 == 1){
+            emit("subq $8, %rsp");
+        }
+        for(int i = args.size() - 1;i >= ARGUMENTS.length;i--){
+            String arg = args.get(i);
+            if(arg.startsWith("&")){
+                emit("leaq " + arg.substring(1) + ", %rax");
+                arg = "%rax";
+            }
+            emit("pushq " + arg);
+        }
+        List<String> to = new ArrayList<>();
+        for(int i = 0;i < args.size() && i < ARGUMENTS.length;i++){
+            to.add(ARGUMENTS[i]);
+        }
+        parallelMove(to, args.subList(0, to.size()));
+        emit("call " + callee);
+        if(pushed > 0){
+            emit("addq $" + 8 * (pushed + pushed % 2) + ", %rsp");
+        }
+    }
+
+    // the moves into the phis of target on the edge carrying their operand index
+    private void copies(int target, int index){
+        List<String> to = new ArrayList<>();
+        List<String> from = new ArrayList<>();
+        for(int i = 0;i < function.codeLength[target];i++){
+            int phi = function.code[target][i];
+            if(function.op[phi] != Mir.PHI){
+                break;
+            }
+            to.add(location(phi));
+            from.add(location(function.operand(phi, index)));
+        }
+        parallelMove(to, from);
+    }
+
+    /**
+     * Moves every source into its destination as if all were read before any is written: a
+     * move goes first once no other still reads its destination, and when only cycles are left
+     * one destination is saved in %r11 first.
+     */
+    private void parallelMove(List<String> destinations, List<String> sources){
+        List<String> to = new ArrayList<>();
+        List<String> from = new ArrayList<>();
+        for(int i = 0;i < destinations.size();i++){
+            if(!destinations.get(i).equals(sources.get(i))){
+                to.add(destinations.get(i));
+                from.add(sources.get(i));
+            }
+        }
+        while(!to.isEmpty()){
+            int free = -1;
+            for(int i = 0;i < to.size() && free < 0;i++){
+                free = from.contains(to.get(i)) ? -1 : i;
+            }
+            if(free < 0){
+                String saved = to.get(0);
+                move("%r11", saved);
+                for(int i = 0;i < from.size();i++){
+                    if(from.get(i).equals(saved)){
+                        from.set(i, "%r11");
+                    }
+                }
+                free = 0;
+            }
+            move(to.remove(free), from.remove(free));
+        }
+    }
+
+    // a 64-bit move; a source starting with & is an address to load, as lea does
+    private void move(String to, String from){
+        if(to.equals(from)){
+            return;
+        }
+        if(from.startsWith("&")){
+            if(isMemory(to)){
+                emit("leaq " + from.substring(1) + ", %rax");
+                emit("movq %rax, " + to);
+            } else emit("leaq " + from.substring(1) + ", " + to);
+        } else if(isMemory(to) && isMemory(from)){
+            emit("movq " + from + ", %rax");
+            emit("movq %rax, " + to);
+        } else emit("movq " + from + ", " + to);
+    }
+
+    private void move32(String to, String from){
+        if(to.equals(from)){
+            return;
+        }
+        if(isMemory(to) && isMemory(from)){
+            emit("movl " + from + ", %r11d");
+            from = "%r11d";
+        }
+        emit("movl " + from + ", " + to);
+    }
+
+    /**
+     * The address of a folded element as a memory operand, and of an unfolded one as the operand
+     * of its lea. A variable index is sign-extended into %rax, and a base that is not in a
+     * register is loaded into %rdx.
+     */
+    private String address(int elem){
+        int base = function.a[elem];
+        int index = function.b[elem];
+        if(isConstant(index)){
+            return memory(base, 4 * function.a[index]);
+        }
+        emit("movslq " + int32(index) + ", %rax");
+        switch (function.op[base]){
+            case Mir.GLOBAL:
+                emit("leaq " + program.globals.get(function.a[base]).name + "(%rip), %rdx");
+                return "(%rdx,%rax,4)";
+            case Mir.ALLOCA:
+                return allocaOffsets[base] + "(%rbp,%rax,4)";
+            default:
+                return "(" + baseRegister(base) + ",%rax,4)";
+        }
+    }
+
+    // the int offset bytes after the address as a memory operand
+    private String memory(int address, int offset){
+        switch (function.op[address]){
+            case Mir.GLOBAL:
+                return program.globals.get(function.a[address]).name + (offset == 0 ? "" : offset > 0 ? "+" + offset : offset) + "(%rip)";
+            case Mir.ALLOCA:
+                return allocaOffsets[address] + offset + "(%rbp)";
+            default:
+                return (offset == 0 ? "" : offset) + "(" + baseRegister(address) + ")";
+        }
+    }
+
+    private String baseRegister(int address){
+        if(isRegister(address)){
+            return REGISTERS[allocation.locations[address]];
+        }
+        emit("movq " + location(address) + ", %rdx");
+        return "%rdx";
+    }
+
+    // where a value is, as a 64-bit operand
+    private String location(int v){
+        switch (function.op[v]){
+            case Mir.CONST:
+                return "$" + function.a[v];
+            case Mir.GLOBAL:
+            case Mir.ALLOCA:
+                return "&" + memory(v, 0);
+            default:
+                int location = allocation.locations[v];
+                return location >= 0 ? REGISTERS[location] : slot(location);
+        }
+    }
+
+    // where an int value is, as a 32-bit operand
+    private String int32(int v){
+        if(function.op[v] == Mir.CONST){
+            return "$" + function.a[v];
+        }
+        int location = allocation.locations[v];
+        return location >= 0 ? REGISTERS32[location] : slot(location);
+    }
+
+    private String slot(int location){
+        return -savedSize - 8 * (-location) + "(%rbp)";
+    }
+
+    private boolean isRegister(int v){
+        return function.op[v] != Mir.CONST && function.op[v] != Mir.GLOBAL && function.op[v] != Mir.ALLOCA
+                && allocation.locations[v] >= 0;
+    }
+
+    private boolean isConstant(int v){
+        return function.op[v] == Mir.CONST;
+    }
+
+    private static boolean isMemory(String operand){
+        return operand.endsWith(")");
+    }
+
+    private String label(int block){
+        return ".L" + functionIndex + "_" + block;
+    }
+
+    // which operand of the phis of its target each edge carries, and which edges need copies
+    private void findEdges(){
+        jumpEdges = new int[function.blocks];
+        trueEdges = new int[function.blocks];
+        falseEdges = new int[function.blocks];
+        Arrays.fill(jumpEdges, -1);
+        Arrays.fill(trueEdges, -1);
+        Arrays.fill(falseEdges, -1);
+        for(int block: order){
+            if(function.codeLength[block] == 0 || function.op[function.code[block][0]] != Mir.PHI){
+                continue;
+            }
+            for(int i = 0;i < function.predCount[block];i++){
+                int pred = function.preds[block][i];
+                int terminator = function.terminator(pred);
+                if(function.op[terminator] == Mir.JUMP){
+                    jumpEdges[pred] = i;
+                } else if(function.b[terminator] == block && trueEdges[pred] < 0){
+                    trueEdges[pred] = i;
+                } else falseEdges[pred] = i;
+            }
+        }
+    }
+
+    private void emit(String instruction){
+        text.append('\t').append(instruction).append('\n');
+    }
+
+}